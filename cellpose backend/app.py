@@ -1,12 +1,17 @@
-from fastapi import FastAPI, UploadFile, File, Response, Query
-import subprocess
-import tempfile
-import os
+from fastapi import FastAPI, UploadFile, File, Response, Query, Header, Depends
+from fastapi.responses import StreamingResponse
+from starlette.concurrency import run_in_threadpool
+import asyncio
 import json
+import os
 import logging
 import sys
+import time
 from pathlib import Path
 
+from jobs import JobManager
+from worker_pool import WorkerPool, WorkerError, WorkerTimeout, WorkerBusy
+
 # Setup Main Logger
 logging.basicConfig(level=logging.INFO)
 logger = logging.getLogger("CellposeAPI")
@@ -32,6 +37,57 @@ ENV_MAPPING = {
     "CellposeSAM": str(VENV_V4)
 }
 
+# Media type of the compact binary ROI format (see worker.encode_outlines_binary)
+BINARY_ROI_MEDIA_TYPE = "application/x-cellpose-rois"
+# Media type of the compressed label mask (see worker.encode_label_mask)
+LABEL_MASK_MEDIA_TYPE = "application/x-cellpose-labels"
+
+RESPONSE_MEDIA_TYPES = {
+    "text": "text/plain",
+    "binary": BINARY_ROI_MEDIA_TYPE,
+    "mask": LABEL_MASK_MEDIA_TYPE,
+}
+
+# Jobs longer than this kill the worker (it is restarted on the next job)
+JOB_TIMEOUT = 600
+
+# Jobs run at once per device (each running job has its own worker process), and how many more may wait.
+# Requests beyond that get 429 with a Retry-After hint instead of piling up on the box.
+DEVICE_CONCURRENCY = {
+    "cpu": int(os.environ.get("CELLPOSE_CPU_CONCURRENCY", "1")),
+    "gpu": int(os.environ.get("CELLPOSE_GPU_CONCURRENCY", "1")),
+}
+QUEUE_DEPTH = int(os.environ.get("CELLPOSE_QUEUE_DEPTH", "8"))
+
+# Persistent workers per venv and device; each keeps its loaded models cached between jobs
+worker_pool = WorkerPool(ENV_MAPPING, os.path.join(os.path.dirname(__file__), "worker.py"),
+                         concurrency=DEVICE_CONCURRENCY, queue_depth=QUEUE_DEPTH)
+
+# Asynchronous /jobs runs, for clients that want progress events and cancellation
+job_manager = JobManager(worker_pool, JOB_TIMEOUT)
+
+# How often an SSE stream checks its job for new events, and sends a keep-alive comment when idle
+EVENT_POLL_SECONDS = 0.2
+EVENT_KEEPALIVE_SECONDS = 15
+
+
+@app.on_event("shutdown")
+def shutdown_workers():
+    worker_pool.shutdown()
+
+
+def server_timing(timings):
+    """
+    W3C Server-Timing header value for a worker's stage timings (milliseconds),
+    e.g. "queue;dur=0.4, model;dur=2.1, decode;dur=8.0, inference;dur=812.5, encode;dur=31.0, total;dur=860.2".
+    """
+    return ", ".join(f"{name};dur={ms}" for name, ms in (timings or {}).items())
+
+
+def busy_response(e):
+    logger.info(f"⏳ Rejecting job: {e}, retry in {e.retry_after}s")
+    return Response(f"Backend is busy: {e}.", status_code=429, headers={"Retry-After": str(e.retry_after)})
+
 
 @app.get("/getModels")
 async def get_models():
@@ -65,9 +121,7 @@ async def get_models():
     return models_response
 
 
-@app.post("/segment")
-async def segment(
-        image: UploadFile = File(...),
+def segment_options(
         model_type: str = Query(..., enum=["Cellpose3.1", "CellposeSAM"]),
         model_name: str = Query(...),
         diameter: float = 0.0,
@@ -80,61 +134,177 @@ async def segment(
         cellprob_threshold: float = Query(0.0),
         percentile_low: float = Query(1.0),
         percentile_high: float = Query(99.0),
-        tile_norm: int = Query(0)
+        tile_norm: int = Query(0),
+        format: str = Query("text", enum=["text", "binary", "mask"]),
+        accept: str = Header(None)
 ):
-    with tempfile.NamedTemporaryFile(suffix=".png", delete=False) as tmp:
-        contents = await image.read()
-        tmp.write(contents)
-        tmp_path = tmp.name
+    """Query parameters shared by /segment and /jobs."""
+    # Text stays the default; other formats are opt-in via ?format= or the Accept header
+    if accept and LABEL_MASK_MEDIA_TYPE in accept:
+        format = "mask"
+    elif accept and BINARY_ROI_MEDIA_TYPE in accept:
+        format = "binary"
+
+    return {
+        "model_type": model_type,
+        "model_name": model_name,
+        "use_gpu": use_gpu,
+        "params": {
+            "diameter": diameter,
+            "channels": channels,
+            "batch_size": batch_size,
+            "resample": resample,
+            "normalize": normalize,
+            "flow_threshold": flow_threshold,
+            "cellprob_threshold": cellprob_threshold,
+            "percentile_low": percentile_low,
+            "percentile_high": percentile_high,
+            "tile_norm": tile_norm,
+            "format": format,
+        },
+    }
+
+
+@app.post("/segment")
+async def segment(image: UploadFile = File(...), options: dict = Depends(segment_options)):
+    started = time.monotonic()
+    contents = await image.read()
+    model_type = options["model_type"]
+    model_name = options["model_name"]
 
     try:
-        python_exec = ENV_MAPPING.get(model_type)
-        if not python_exec:
+        if model_type not in ENV_MAPPING:
             return Response("Server Error: Model misconfigured.", status_code=500)
 
         logger.info(f"🚀 Dispatching {model_type}/{model_name} job...")
 
-        worker_path = os.path.join(os.path.dirname(__file__), "worker.py")
-
-        cmd = [
-            python_exec, worker_path,
-            "--image", tmp_path,
-            "--model_type", model_type,
-            "--model_name", model_name,
-            "--diameter", str(diameter),
-            "--channels", channels,
-            "--batch_size", str(batch_size),
-            "--flow_threshold", str(flow_threshold),
-            "--cellprob_threshold", str(cellprob_threshold)
-        ]
-        if use_gpu:
-            cmd.append("--use_gpu")
-        if resample:
-            cmd.append("--resample")
-        if not normalize:
-            cmd.append("--no_normalize")
-        else:
-            cmd.extend(["--percentile_low", str(percentile_low)])
-            cmd.extend(["--percentile_high", str(percentile_high)])
-            cmd.extend(["--tile_norm", str(tile_norm)])
-        result = subprocess.check_output(cmd, timeout=600)
-
-        output_json = json.loads(result.decode("utf-8"))
+        # Off the event loop, so the next plane's upload is received while this one is inferred
+        header, payload = await run_in_threadpool(
+            worker_pool.segment, model_type, model_name, options["use_gpu"], options["params"], contents,
+            timeout=JOB_TIMEOUT)
 
-        if output_json["status"] == "success":
-            return Response(content=output_json["data"], media_type="text/plain")
+        if header["status"] == "success":
+            media_type = RESPONSE_MEDIA_TYPES.get(header.get("format"), "text/plain")
+            timings = dict(header.get("timings") or {}, total=round((time.monotonic() - started) * 1000, 1))
+            return Response(content=payload, media_type=media_type, headers={"Server-Timing": server_timing(timings)})
         else:
-            return Response(content=output_json["message"], status_code=500)
+            return Response(content=header["message"], status_code=500)
 
-    except subprocess.TimeoutExpired:
+    except WorkerBusy as e:
+        return busy_response(e)
+
+    except WorkerTimeout:
         return Response("Processing timed out.", status_code=504)
 
-    except subprocess.CalledProcessError as e:
-        # If the worker crashes, the error logs will have already printed to the console
-        # because we are not capturing them anymore.
-        logger.error(f"Worker crashed with return code {e.returncode}")
+    except WorkerError as e:
+        # The worker's own traceback has already been printed to the console via stderr
+        logger.error(f"Worker crashed: {e}")
+        return Response("Internal Worker Error", status_code=500)
+
+
+@app.post("/jobs", status_code=202)
+async def submit_job(image: UploadFile = File(...), options: dict = Depends(segment_options)):
+    """
+    Start a segmentation without waiting for it. Follow it with GET /jobs/{id}/events,
+    fetch the payload from GET /jobs/{id}/result and stop it with DELETE /jobs/{id}.
+    """
+    if options["model_type"] not in ENV_MAPPING:
+        return Response("Server Error: Model misconfigured.", status_code=500)
+    contents = await image.read()
+    logger.info(f"🚀 Queueing {options['model_type']}/{options['model_name']} job...")
+    try:
+        job = job_manager.submit(options["model_type"], options["model_name"], options["use_gpu"],
+                                 options["params"], contents)
+    except WorkerBusy as e:
+        return busy_response(e)
+    return job.status()
+
+
+@app.get("/jobs/{job_id}")
+async def job_status(job_id: str):
+    job = job_manager.get(job_id)
+    if job is None:
+        return Response("Unknown job.", status_code=404)
+    return job.status()
+
+
+@app.get("/jobs/{job_id}/events")
+async def job_events(job_id: str, since: int = 0):
+    """
+    Server-sent events for one job, starting at event index `since`. Each event is a JSON
+    object with "state" and, while running, "stage" (model, inference, masks, encode) with
+    "done"/"total" counts where known. The stream ends after the terminal state.
+    """
+    job = job_manager.get(job_id)
+    if job is None:
+        return Response("Unknown job.", status_code=404)
+
+    async def stream():
+        index = max(0, since)
+        idle = 0.0
+        while True:
+            events = job.events_since(index)
+            for event in events:
+                yield f"id: {event['seq']}\ndata: {json.dumps(event)}\n\n"
+            index += len(events)
+            if events:
+                idle = 0.0
+            if job.finished and not job.events_since(index):
+                return
+            if not events and idle >= EVENT_KEEPALIVE_SECONDS:
+                idle = 0.0
+                yield ": keep-alive\n\n"
+            await asyncio.sleep(EVENT_POLL_SECONDS)
+            idle += EVENT_POLL_SECONDS
+
+    return StreamingResponse(stream(), media_type="text/event-stream", headers={"Cache-Control": "no-cache"})
+
+
+@app.get("/jobs/{job_id}/result")
+async def job_result(job_id: str):
+    job = job_manager.get(job_id)
+    if job is None:
+        return Response("Unknown job.", status_code=404)
+    if job.state == "failed":
+        return Response(content=job.message or "Segmentation failed.", status_code=500)
+    if job.state == "cancelled":
+        return Response("Job was cancelled.", status_code=410)
+    if job.result is None:
+        return Response(f"Job is {job.state}.", status_code=409)
+    fmt, payload = job.result
+    return Response(content=payload, media_type=RESPONSE_MEDIA_TYPES.get(fmt, "text/plain"),
+                    headers={"Server-Timing": server_timing(job.timings)})
+
+
+@app.delete("/jobs/{job_id}")
+async def cancel_job(job_id: str):
+    """Stop a queued or running job. The worker is interrupted, not restarted, so its models stay loaded."""
+    job = job_manager.get(job_id)
+    if job is None:
+        return Response("Unknown job.", status_code=404)
+    await run_in_threadpool(job_manager.cancel, job)
+    return job.status()
+
+
+@app.post("/warmup")
+async def warmup(
+        model_type: str = Query(..., enum=["Cellpose3.1", "CellposeSAM"]),
+        model_name: str = Query(...),
+        use_gpu: bool = Query(False)
+):
+    """
+    Load a model into its worker ahead of the first /segment call.
+    """
+    if model_type not in ENV_MAPPING:
+        return Response("Server Error: Model misconfigured.", status_code=500)
+    try:
+        header = await run_in_threadpool(worker_pool.warmup, model_type, model_name, use_gpu, timeout=JOB_TIMEOUT)
+    except WorkerBusy as e:
+        return busy_response(e)
+    except (WorkerError, WorkerTimeout) as e:
+        logger.error(f"Warmup failed: {e}")
         return Response("Internal Worker Error", status_code=500)
 
-    finally:
-        if os.path.exists(tmp_path):
-            os.remove(tmp_path)
\ No newline at end of file
+    if header["status"] != "success":
+        return Response(content=header["message"], status_code=500)
+    return {"status": "ready", "model_type": model_type, "model_name": model_name}
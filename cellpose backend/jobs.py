@@ -0,0 +1,146 @@
+import logging
+import threading
+import time
+import uuid
+
+from worker_pool import WorkerError, WorkerTimeout, WorkerCancelled
+
+logger = logging.getLogger("CellposeAPI")
+
+# Finished jobs (and their results) are dropped this long after they end
+JOB_RETENTION_SECONDS = 600
+
+QUEUED = "queued"
+RUNNING = "running"
+SUCCEEDED = "succeeded"
+FAILED = "failed"
+CANCELLED = "cancelled"
+FINISHED_STATES = (SUCCEEDED, FAILED, CANCELLED)
+
+
+class Job:
+    """
+    One asynchronous /jobs segmentation. Every state change and worker progress
+    report is appended to `events`, which the SSE endpoint replays from any index.
+    """
+
+    def __init__(self, model_type):
+        self.id = uuid.uuid4().hex
+        self.model_type = model_type
+        self.state = QUEUED
+        self.stage = None
+        self.message = None
+        self.result = None  # (media format, payload bytes) once succeeded
+        self.timings = None  # stage name -> milliseconds once succeeded
+        self.events = []
+        self.finished_at = None
+        self.cancel_token = threading.Event()
+        self._lock = threading.Lock()
+        self._emit({"state": QUEUED})
+
+    def _emit(self, event):
+        with self._lock:
+            event = dict(event, job_id=self.id, seq=len(self.events))
+            self.events.append(event)
+
+    def progress(self, worker_event):
+        self.state = RUNNING
+        self.stage = worker_event.get("stage")
+        self._emit({
+            "state": RUNNING,
+            "stage": self.stage,
+            "done": worker_event.get("done"),
+            "total": worker_event.get("total"),
+        })
+
+    def set_state(self, state, message=None):
+        # The event goes out first, so a job that reads as finished has its terminal event recorded
+        self._emit({"state": state, "message": message})
+        self.message = message
+        self.state = state
+        if state in FINISHED_STATES:
+            self.finished_at = time.monotonic()
+
+    def events_since(self, index):
+        with self._lock:
+            return self.events[index:]
+
+    @property
+    def finished(self):
+        return self.state in FINISHED_STATES
+
+    def status(self):
+        return {
+            "job_id": self.id,
+            "state": self.state,
+            "stage": self.stage,
+            "message": self.message,
+        }
+
+
+class JobManager:
+    """Runs submitted jobs on their own threads against the shared WorkerPool."""
+
+    def __init__(self, worker_pool, timeout):
+        self._pool = worker_pool
+        self._timeout = timeout
+        self._jobs = {}
+        self._lock = threading.Lock()
+
+    def submit(self, model_type, model_name, use_gpu, params, image_bytes):
+        """Queue a job, or raise WorkerBusy when its device queue is already full."""
+        admission = self._pool.admit(use_gpu)
+        job = Job(model_type)
+        with self._lock:
+            self._prune()
+            self._jobs[job.id] = job
+        thread = threading.Thread(
+            target=self._run, args=(job, model_name, use_gpu, params, image_bytes, admission),
+            name=f"job-{job.id[:8]}", daemon=True)
+        thread.start()
+        return job
+
+    def get(self, job_id):
+        with self._lock:
+            return self._jobs.get(job_id)
+
+    def cancel(self, job):
+        if job.finished:
+            return
+        job.cancel_token.set()
+        self._pool.cancel(job.cancel_token)
+
+    def _run(self, job, model_name, use_gpu, params, image_bytes, admission):
+        started = time.monotonic()
+        try:
+            header, payload = self._pool.segment(
+                job.model_type, model_name, use_gpu, params, image_bytes, timeout=self._timeout,
+                on_event=job.progress, cancel_token=job.cancel_token, admission=admission)
+        except WorkerCancelled:
+            job.set_state(CANCELLED)
+            return
+        except WorkerTimeout:
+            job.set_state(FAILED, "Processing timed out.")
+            return
+        except WorkerError as e:
+            logger.error(f"Worker crashed: {e}")
+            job.set_state(FAILED, "Internal Worker Error")
+            return
+        except Exception as e:
+            logger.error(f"Job {job.id} failed: {e}", exc_info=True)
+            job.set_state(FAILED, str(e))
+            return
+
+        if header["status"] == "success":
+            job.result = (header.get("format"), payload)
+            job.timings = dict(header.get("timings") or {}, total=round((time.monotonic() - started) * 1000, 1))
+            job.set_state(SUCCEEDED)
+        else:
+            job.set_state(FAILED, header.get("message"))
+
+    def _prune(self):
+        now = time.monotonic()
+        expired = [job_id for job_id, job in self._jobs.items()
+                   if job.finished_at is not None and now - job.finished_at > JOB_RETENTION_SECONDS]
+        for job_id in expired:
+            del self._jobs[job_id]
@@ -3,6 +3,16 @@ import uvicorn
 
 from app import app
 
+# Printed once the server is accepting connections; BackendManager waits for this line on stdout
+READY_LINE = "CELLPOSE_BACKEND_READY"
+
+
+class AnnouncingServer(uvicorn.Server):
+    async def startup(self, sockets=None):
+        await super().startup(sockets=sockets)
+        if self.started:
+            print(f"{READY_LINE} {self.config.host}:{self.config.port}", flush=True)
+
 
 def main():
     parser = argparse.ArgumentParser()
@@ -10,7 +20,7 @@ def main():
     parser.add_argument("--port", type=int, default=8000)
     args = parser.parse_args()
 
-    uvicorn.run(app, host=args.host, port=args.port, log_level="info")
+    AnnouncingServer(uvicorn.Config(app, host=args.host, port=args.port, log_level="info")).run()
 
 
 if __name__ == "__main__":
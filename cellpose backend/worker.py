@@ -1,10 +1,16 @@
 import argparse
+import functools
 import os
 import cv2
+import signal
 import json
 import sys
 import logging
+import struct
+import time
+import zlib
 import numpy as np
+from collections import OrderedDict
 
 # --- LOGGING SETUP ---
 logging.basicConfig(
@@ -20,12 +26,492 @@ MODELS_DIR = os.path.join(BASE_DIR, "models")
 CELLPOSE_31_DIR = os.path.join(MODELS_DIR, "Cellpose 3.1")
 CELLPOSE_SAM_DIR = os.path.join(MODELS_DIR, "CellposeSAM")
 
+# Built-in models are downloaded by cellpose itself and have no file on disk
+BUILTIN_MODELS = ['cyto3', 'cpsam']
+
+# Number of loaded models kept in memory by a serving worker
+MODEL_CACHE_SIZE = int(os.environ.get("CELLPOSE_MODEL_CACHE_SIZE", "2"))
+
+DEFAULT_PARAMS = {
+    "diameter": 0.0,
+    "channels": "0,0",
+    "batch_size": 64,
+    "resample": False,
+    "normalize": True,
+    "flow_threshold": 0.4,
+    "cellprob_threshold": 0.0,
+    "percentile_low": 1.0,
+    "percentile_high": 99.0,
+    "tile_norm": 0,
+    "format": "text",
+}
+
+# Binary ROI response: header (magic, version, 3 pad bytes, u32 cell count), then per cell
+# a varint vertex count followed by zigzag-varint x/y deltas (the first vertex is a delta from 0,0).
+BINARY_ROI_MAGIC = b"CPRB"
+BINARY_ROI_VERSION = 1
+
+# Label mask response: header (magic, version, bytes per label, 2 pad bytes, u32 width, u32 height),
+# then the zlib-compressed little-endian label array. Outlines are traced by the client.
+LABEL_MASK_MAGIC = b"CPLM"
+LABEL_MASK_VERSION = 1
+
+# Raw pixel upload from the plugin: header (magic, version, bytes per sample, u16 channels,
+# u32 width, u32 height), then little-endian channel planes. Already RGB-ordered, no cv2 decode.
+RAW_IMAGE_MAGIC = b"CPIX"
+RAW_IMAGE_HEADER = struct.Struct("<4sBBHII")
+RAW_IMAGE_DTYPES = {1: "<u1", 2: "<u2", 4: "<f4"}
+
+
+# Progress callback of the job being served, or None (see serve and install_progress_hooks)
+_progress = None
+_progress_hooks_installed = False
+_tiles_done = 0
+
+# Set by the SIGINT handler of a serving worker; the running job stops at its next checkpoint
+_cancel_requested = False
+
+
+class JobCancelled(BaseException):
+    """Raised at a checkpoint after SIGINT. A BaseException, so cellpose's own handlers cannot swallow it."""
+
+
+def elapsed_ms(started):
+    """Milliseconds since a time.perf_counter() reading, as reported in reply "timings"."""
+    return round((time.perf_counter() - started) * 1000, 1)
+
+
+def check_cancelled():
+    if _cancel_requested:
+        raise JobCancelled()
+
+
+def report_progress(stage, done=None, total=None):
+    """Checkpoint between stages and batches: stops a cancelled job, otherwise reports progress."""
+    check_cancelled()
+    if _progress is not None:
+        _progress(stage, done, total)
+
+
+def _request_cancel(signum, frame):
+    # Only sets the flag: raising here could tear a frame being written or kill a blocking read
+    global _cancel_requested
+    _cancel_requested = True
+
+
+def _wrap(module, name, before):
+    original = getattr(module, name, None)
+    if original is None:
+        return
+
+    @functools.wraps(original)
+    def wrapper(*args, **kwargs):
+        before(*args)
+        return original(*args, **kwargs)
+
+    setattr(module, name, wrapper)
+
+
+def install_progress_hooks():
+    """
+    Patch cellpose's network forward pass and mask reconstruction so a serving
+    worker can report per-batch progress and stop a cancelled job between batches.
+    Both cellpose 3 and 4 look these up as module globals at call time; anything
+    missing is simply not reported.
+    """
+    global _progress_hooks_installed
+    if _progress_hooks_installed:
+        return
+    _progress_hooks_installed = True
+    try:
+        from cellpose import core, dynamics
+    except Exception as e:
+        logger.warning(f"⚠️ Progress hooks unavailable: {e}")
+        return
+
+    def on_forward(net, x=None, *rest):
+        global _tiles_done
+        _tiles_done += len(x) if hasattr(x, "__len__") else 1
+        report_progress("inference", _tiles_done)
+
+    _wrap(core, "_forward", on_forward)
+    _wrap(dynamics, "resize_and_compute_masks", lambda *args: report_progress("masks"))
+
+
+def resolve_model_path(model_type, model_name):
+    if model_type == "Cellpose3.1":
+        model_dir = CELLPOSE_31_DIR
+    else:  # CellposeSAM
+        model_dir = CELLPOSE_SAM_DIR
+    return os.path.join(model_dir, model_name)
+
+
+def load_model(model_type, model_name, use_gpu):
+    """
+    Construct the cellpose model for the given type/name.
+    Raises FileNotFoundError if a custom model has no weights on disk.
+    """
+    from cellpose import models
+
+    model_path = resolve_model_path(model_type, model_name)
+    if model_name not in BUILTIN_MODELS and not os.path.exists(model_path):
+        logger.error(f"❌ CRITICAL ERROR: Model file not found at: {model_path}")
+        raise FileNotFoundError(f"Model file missing: {model_path}")
+
+    logger.info(f"🚀 Initializing model: {model_type}/{model_name} | GPU: {use_gpu}")
+
+    model = None
+    if model_type == "Cellpose3.1":
+        # Cellpose 3.1 models
+        if model_name == 'cyto3':
+            model = models.Cellpose(gpu=use_gpu, model_type='cyto3')
+        else:
+            # Custom Cellpose 3.1 model
+            logger.info(f"📂 Loading custom Cellpose 3.1 weights from: {model_path}")
+            model = models.CellposeModel(gpu=use_gpu, pretrained_model=model_path)
+
+    elif model_type == "CellposeSAM":
+        # CellposeSAM models
+        if model_name == 'cpsam':
+            model = models.CellposeModel(gpu=use_gpu, model_type='cpsam')
+        else:
+            # Custom SAM model
+            logger.info(f"📂 Loading custom SAM weights from: {model_path}")
+            model = models.CellposeModel(gpu=use_gpu, model_type='cpsam', pretrained_model=model_path)
+
+    if model is None:
+        raise ValueError(f"Unknown model: {model_type}/{model_name}")
+    return model
+
+
+class ModelCache:
+    """
+    LRU cache of loaded models keyed by (model_type, model_name, gpu).
+    Only used by a serving worker; one-shot runs load the model directly.
+    """
+
+    def __init__(self, max_size=MODEL_CACHE_SIZE):
+        self.max_size = max(1, max_size)
+        self._models = OrderedDict()
+
+    def get(self, model_type, model_name, use_gpu):
+        key = (model_type, model_name, bool(use_gpu))
+        if key in self._models:
+            self._models.move_to_end(key)
+            return self._models[key]
+
+        model = load_model(model_type, model_name, use_gpu)
+        self._models[key] = model
+        while len(self._models) > self.max_size:
+            evicted, _ = self._models.popitem(last=False)
+            logger.info(f"♻️ Evicting cached model: {evicted[0]}/{evicted[1]} | GPU: {evicted[2]}")
+            self._release_gpu_memory()
+        return model
+
+    @staticmethod
+    def _release_gpu_memory():
+        try:
+            import torch
+            if torch.cuda.is_available():
+                torch.cuda.empty_cache()
+        except Exception:
+            pass
+
+
+def decode_raw_image(data):
+    magic, version, bytes_per_sample, channels, width, height = RAW_IMAGE_HEADER.unpack_from(data, 0)
+    dtype = RAW_IMAGE_DTYPES.get(bytes_per_sample)
+    if dtype is None:
+        raise ValueError(f"Unsupported raw sample size: {bytes_per_sample}")
+    planes = np.frombuffer(data, dtype=dtype, count=channels * height * width, offset=RAW_IMAGE_HEADER.size)
+    # Planar (C, H, W) -> interleaved (H, W, C), which is what cellpose expects
+    return np.ascontiguousarray(np.moveaxis(planes.reshape(channels, height, width), 0, -1))
+
+
+def decode_image(data):
+    """Decode raw plugin pixels or encoded image bytes (PNG, TIFF, ...) into an (H, W, C) array."""
+    if data[:4] == RAW_IMAGE_MAGIC:
+        return decode_raw_image(data)
+    img = cv2.imdecode(np.frombuffer(data, dtype=np.uint8), cv2.IMREAD_UNCHANGED)
+    if img is None:
+        raise ValueError("Could not decode image data")
+    return to_hwc(img)
+
+
+def read_image(path):
+    # Note: cv2 loads as BGR. Cellpose generally expects RGB.
+    img = cv2.imread(path, cv2.IMREAD_UNCHANGED)
+    if img is None:
+        raise ValueError("Could not read image file")
+    return to_hwc(img)
+
+
+def to_hwc(img):
+    # Ensure image has 3 dimensions (H, W, C) if it's color
+    # If grayscale (H, W), add channel dim -> (H, W, 1)
+    if img.ndim == 2:
+        img = img[:, :, np.newaxis]
+    elif img.ndim == 3:
+        # Convert BGR to RGB for consistency with Cellpose training
+        img = cv2.cvtColor(img, cv2.COLOR_BGR2RGB)
+    return img
+
+
+def build_normalize_param(params):
+    if not params["normalize"]:
+        return False
+    return {
+        "percentile": [params["percentile_low"], params["percentile_high"]],
+        "tile_norm_blocksize": params["tile_norm"]
+    }
+
+
+def run_inference(model, model_type, img, params):
+    """Run model.eval with the version-specific channel handling. Returns the label mask."""
+    global _tiles_done
+    logger.info("⚡ Starting inference...")
+    _tiles_done = 0
+    report_progress("inference", 0)
+
+    # Parse channel string "0,2" -> [0, 2]
+    user_channels = [int(c) for c in params["channels"].split(',') if c.strip().isdigit()]
+    diameter = params["diameter"] if params["diameter"] > 0 else None
+    normalize_param = build_normalize_param(params)
+
+    # === LOGIC A: CELLPOSE SAM (V4) ===
+    # SAM expects the relevant channels to be moved to indices 0,1,2...
+    # and does NOT take a 'channels' argument in eval().
+    if model_type == "CellposeSAM":
+
+        # Create a blank container of the same shape
+        img_input = np.zeros_like(img)
+
+        # "Pack" the selected channels into the front of the array
+        # Example: If user selects [2, 1] (Red and Green),
+        # img_input channel 0 becomes old channel 2
+        # img_input channel 1 becomes old channel 1
+        # img_input channel 2 remains 0
+        if len(user_channels) > 0:
+            # Safety check for dimensions
+            valid_channels = []
+            s = set()
+            for x in user_channels:
+                if x not in s:
+                    s.add(x)
+                    valid_channels.append(x)
+
+            valid_channels = [c for c in valid_channels if c < img.shape[-1]]
+            if len(valid_channels) != len(user_channels):
+                logger.warning(f"⚠️ Some requested channels were out of bounds for image with shape {img.shape}")
+
+            img_input[:, :, :len(valid_channels)] = img[:, :, valid_channels]
+        else:
+            # If no channels specified/valid, pass original (or grayscale)
+            img_input = img
+
+        # Call Eval WITHOUT 'channels' arg
+        masks, flows, styles = model.eval(
+            img_input,
+            diameter=diameter,
+            batch_size=params["batch_size"],
+            resample=params["resample"],
+            normalize=normalize_param,
+            flow_threshold=params["flow_threshold"],
+            cellprob_threshold=params["cellprob_threshold"]
+        )[:3]
+
+    # === LOGIC B: CELLPOSE V3 (Standard) ===
+    # V3 expects the original image + a 'channels=[cyto, nuc]' list
+    else:
+        # Standard Cellpose usually expects exactly 2 values [cyto, nucleus]
+        # We pad with 0 if only 1 is given, or slice to 2 if too many.
+        chan_arg = user_channels + [0, 0]  # Pad with defaults
+        chan_arg = chan_arg[:2]  # Take first two
+
+        masks, flows, styles = model.eval(
+            img,
+            diameter=diameter,
+            channels=chan_arg,
+            batch_size=params["batch_size"],
+            resample=params["resample"],
+            normalize=normalize_param,
+            flow_threshold=params["flow_threshold"],
+            cellprob_threshold=params["cellprob_threshold"]
+        )[:3]
+
+    logger.info("✅ Inference complete.")
+    return masks
+
+
+def format_outlines(masks):
+    from cellpose import utils
+
+    outlines = utils.outlines_list(masks)
+    results = []
+    for outline in outlines:
+        roi_coords = ",".join([f"{p[0]},{p[1]}" for p in outline])
+        results.append(roi_coords)
+    return "\n".join(results)
+
+
+def _encode_varints(values):
+    """Vectorized LEB128 encoding of an array of non-negative integers."""
+    values = np.asarray(values, dtype=np.uint64)
+    nbytes = np.ones(len(values), dtype=np.int64)
+    for shift in (7, 14, 21, 28, 35):
+        nbytes += values >= (1 << shift)
+    offsets = np.cumsum(nbytes) - nbytes
+    out = np.empty(int(nbytes.sum()), dtype=np.uint8)
+    for b in range(int(nbytes.max()) if len(values) else 0):
+        mask = nbytes > b
+        low = (values[mask] >> np.uint64(7 * b)) & np.uint64(0x7F)
+        more = (nbytes[mask] > b + 1).astype(np.uint64) << np.uint64(7)
+        out[offsets[mask] + b] = (low | more).astype(np.uint8)
+    return out.tobytes()
+
+
+def encode_outlines_binary(masks):
+    from cellpose import utils
+
+    outlines = utils.outlines_list(masks)
+    chunks = []
+    for outline in outlines:
+        pts = np.asarray(outline, dtype=np.int64).reshape(-1, 2)
+        deltas = np.diff(pts, axis=0, prepend=np.zeros((1, 2), dtype=np.int64))
+        zigzag = (deltas << 1) ^ (deltas >> 63)
+        chunks.append(np.array([len(pts)], dtype=np.int64))
+        chunks.append(zigzag.ravel())
+    values = np.concatenate(chunks) if chunks else np.zeros(0, dtype=np.int64)
+    header = struct.pack("<4sB3xI", BINARY_ROI_MAGIC, BINARY_ROI_VERSION, len(outlines))
+    return header + _encode_varints(values)
+
+
+def encode_label_mask(masks):
+    masks = np.asarray(masks)
+    if masks.max(initial=0) <= 0xFFFF:
+        data, bytes_per_label = masks.astype("<u2", copy=False), 2
+    else:
+        data, bytes_per_label = masks.astype("<u4", copy=False), 4
+    height, width = masks.shape[:2]
+    header = struct.pack("<4sBB2xII", LABEL_MASK_MAGIC, LABEL_MASK_VERSION, bytes_per_label, width, height)
+    # Level 1: label masks are mostly runs, so fast compression already gets most of the gain
+    return header + zlib.compress(np.ascontiguousarray(data).tobytes(), 1)
+
+
+def encode_result(masks, fmt):
+    if fmt == "mask":
+        return encode_label_mask(masks)
+    if fmt == "binary":
+        return encode_outlines_binary(masks)
+    return format_outlines(masks).encode("utf-8")
+
+
+def serve():
+    """
+    Long-lived worker mode. Jobs arrive on stdin as JSON-lines framed messages:
+
+        {"op": "segment", "model_type": ..., "model_name": ..., "use_gpu": ..., "params": {...}, "image_size": N}\\n
+        <N raw image bytes>
+
+    Each job is answered on stdout with a JSON header line followed by "data_size" payload bytes.
+    Successful answers carry "timings": milliseconds spent per stage (model, decode, inference, encode).
+    Before the answer, zero or more progress lines {"event": "progress", "stage": ..., "done": ..., "total": ...}
+    may be written (always with data_size 0). SIGINT cancels the running job at its next checkpoint
+    (between stages and inference batches), which is answered with {"status": "cancelled"}; the worker
+    and its cached models stay alive. The signal only sets a flag, so protocol I/O is never interrupted;
+    a job header with "clear_cancel" drops a flag left by a signal whose job finished first.
+    Loaded models stay cached between jobs, so only the first job per model pays the load cost.
+    """
+    global _progress, _cancel_requested
+    signal.signal(signal.SIGINT, _request_cancel)
+    proto_in = sys.stdin.buffer
+    proto_out = os.fdopen(os.dup(sys.stdout.fileno()), "wb")
+    # Anything cellpose/torch prints must not corrupt the protocol stream
+    os.dup2(sys.stderr.fileno(), sys.stdout.fileno())
+    sys.stdout = sys.stderr
+
+    cache = ModelCache()
+    logger.info(f"🟢 Worker serving (model cache size: {cache.max_size})")
+
+    def reply(header, payload=b""):
+        header["data_size"] = len(payload)
+        proto_out.write((json.dumps(header) + "\n").encode("utf-8"))
+        if payload:
+            proto_out.write(payload)
+        proto_out.flush()
+
+    def progress(stage, done=None, total=None):
+        reply({"event": "progress", "stage": stage, "done": done, "total": total})
+
+    while True:
+        line = proto_in.readline()
+        if not line:
+            break  # parent closed the pipe
+        line = line.strip()
+        if not line:
+            continue
+
+        try:
+            job = json.loads(line.decode("utf-8"))
+        except ValueError as e:
+            reply({"status": "error", "message": f"Malformed job header: {e}"})
+            continue
+
+        image_size = int(job.get("image_size", 0))
+        image_bytes = proto_in.read(image_size) if image_size > 0 else b""
+
+        op = job.get("op", "segment")
+        if op == "shutdown":
+            break
+
+        # The parent signalled a job that finished before reaching a checkpoint
+        if job.get("clear_cancel"):
+            _cancel_requested = False
+        _progress = progress if job.get("progress") else None
+        timings = {}
+        try:
+            report_progress("model")
+            started = time.perf_counter()
+            model = cache.get(job["model_type"], job["model_name"], job.get("use_gpu", False))
+            timings["model"] = elapsed_ms(started)
+            if op == "warmup":
+                reply({"status": "success", "timings": timings})
+                continue
+
+            params = dict(DEFAULT_PARAMS)
+            params.update(job.get("params") or {})
+            started = time.perf_counter()
+            img = decode_image(image_bytes)
+            timings["decode"] = elapsed_ms(started)
+            install_progress_hooks()
+            check_cancelled()
+            started = time.perf_counter()
+            masks = run_inference(model, job["model_type"], img, params)
+            timings["inference"] = elapsed_ms(started)
+            report_progress("encode")
+            started = time.perf_counter()
+            payload = encode_result(masks, params["format"])
+            timings["encode"] = elapsed_ms(started)
+            reply({"status": "success", "format": params["format"], "timings": timings}, payload)
+        except JobCancelled:
+            _cancel_requested = False
+            logger.info("🛑 Job cancelled.")
+            reply({"status": "cancelled"})
+        except Exception as e:
+            logger.error(f"💥 Error occurred: {e}", exc_info=True)
+            reply({"status": "error", "message": str(e)})
+        finally:
+            _progress = None
+
+    proto_out.close()
+
 
 def main():
     parser = argparse.ArgumentParser()
-    parser.add_argument("--image", required=True)
-    parser.add_argument("--model_type", required=True, choices=["Cellpose3.1", "CellposeSAM"])
-    parser.add_argument("--model_name", required=True)
+    parser.add_argument("--serve", action="store_true", help="Run as a long-lived worker reading jobs from stdin")
+    parser.add_argument("--image")
+    parser.add_argument("--model_type", choices=["Cellpose3.1", "CellposeSAM"])
+    parser.add_argument("--model_name")
     parser.add_argument("--diameter", type=float, default=0.0)
     # Channels should be passed as comma-separated indices, e.g., "0,2" or "1"
     parser.add_argument("--channels", default="0,0")
@@ -41,158 +527,31 @@ def main():
 
     args = parser.parse_args()
 
-    # 1. DETERMINE MODEL PATH BASED ON TYPE
-    if args.model_type == "Cellpose3.1":
-        model_dir = CELLPOSE_31_DIR
-    else:  # CellposeSAM
-        model_dir = CELLPOSE_SAM_DIR
-    
-    model_path = os.path.join(model_dir, args.model_name)
-    
-    # 2. VERIFY MODEL EXISTS (skip for built-in models)
-    if args.model_name not in ['cyto3', 'cpsam']:
-        if not os.path.exists(model_path):
-            logger.error(f"❌ CRITICAL ERROR: Model file not found at: {model_path}")
-            print(json.dumps({"status": "error", "message": f"Model file missing: {model_path}"}))
-            return
+    if args.serve:
+        serve()
+        return
+
+    if not args.image or not args.model_type or not args.model_name:
+        parser.error("--image, --model_type and --model_name are required unless --serve is given")
+
+    params = {
+        "diameter": args.diameter,
+        "channels": args.channels,
+        "batch_size": args.batch_size,
+        "resample": args.resample,
+        "normalize": not args.no_normalize,
+        "flow_threshold": args.flow_threshold,
+        "cellprob_threshold": args.cellprob_threshold,
+        "percentile_low": args.percentile_low,
+        "percentile_high": args.percentile_high,
+        "tile_norm": args.tile_norm,
+    }
 
     try:
-        from cellpose import models, utils
-
-        # 2. LOAD IMAGE
-        # Note: cv2 loads as BGR. Cellpose generally expects RGB.
-        img = cv2.imread(args.image, cv2.IMREAD_UNCHANGED)
-        if img is None:
-            raise ValueError("Could not read image file")
-
-        # Ensure image has 3 dimensions (H, W, C) if it's color
-        # If grayscale (H, W), add channel dim -> (H, W, 1)
-        if img.ndim == 2:
-            img = img[:, :, np.newaxis]
-        elif img.ndim == 3:
-            # Convert BGR to RGB for consistency with Cellpose training
-            img = cv2.cvtColor(img, cv2.COLOR_BGR2RGB)
-
-        model = None
-        logger.info(f"🚀 Initializing model: {args.model_type}/{args.model_name} | GPU: {args.use_gpu}")
-        
-        # 3. INITIALIZE MODELS
-        if args.model_type == "Cellpose3.1":
-            # Cellpose 3.1 models
-            if args.model_name == 'cyto3':
-                model = models.Cellpose(gpu=args.use_gpu, model_type='cyto3')
-            else:
-                # Custom Cellpose 3.1 model
-                logger.info(f"📂 Loading custom Cellpose 3.1 weights from: {model_path}")
-                model = models.CellposeModel(gpu=args.use_gpu, pretrained_model=model_path)
-        
-        elif args.model_type == "CellposeSAM":
-            # CellposeSAM models
-            if args.model_name == 'cpsam':
-                model = models.CellposeModel(gpu=args.use_gpu, model_type='cpsam')
-            else:
-                # Custom SAM model
-                logger.info(f"📂 Loading custom SAM weights from: {model_path}")
-                model = models.CellposeModel(gpu=args.use_gpu, model_type='cpsam', pretrained_model=model_path)
-
-        if model is None:
-            raise ValueError(f"Unknown model: {args.model_type}/{args.model_name}")
-
-        # 4. RUN INFERENCE (Logic splits based on version)
-        logger.info("⚡ Starting inference...")
-
-        # Parse channel string "0,2" -> [0, 2]
-        user_channels = [int(c) for c in args.channels.split(',') if c.strip().isdigit()]
-
-        # === LOGIC A: CELLPOSE SAM (V4) ===
-        # SAM expects the relevant channels to be moved to indices 0,1,2...
-        # and does NOT take a 'channels' argument in eval().
-        if args.model_type == "CellposeSAM":
-
-            # Create a blank container of the same shape
-            img_input = np.zeros_like(img)
-
-            # "Pack" the selected channels into the front of the array
-            # Example: If user selects [2, 1] (Red and Green),
-            # img_input channel 0 becomes old channel 2
-            # img_input channel 1 becomes old channel 1
-            # img_input channel 2 remains 0
-            if len(user_channels) > 0:
-                # Safety check for dimensions
-                valid_channels = []
-                s = set()
-                for x in user_channels:
-                    if x not in s:
-                        s.add(x)
-                        valid_channels.append(x)
-
-                valid_channels = [c for c in valid_channels if c < img.shape[-1]]
-                if len(valid_channels) != len(user_channels):
-                    logger.warning(f"⚠️ Some requested channels were out of bounds for image with shape {img.shape}")
-
-                img_input[:, :, :len(valid_channels)] = img[:, :, valid_channels]
-            else:
-                # If no channels specified/valid, pass original (or grayscale)
-                img_input = img
-
-            # Call Eval WITHOUT 'channels' arg
-            # Build normalize parameter
-            if args.no_normalize:
-                normalize_param = False
-            else:
-                normalize_param = {
-                    "percentile": [args.percentile_low, args.percentile_high],
-                    "tile_norm_blocksize": args.tile_norm
-                }
-            
-            masks, flows, styles = model.eval(
-                img_input,
-                diameter=args.diameter if args.diameter > 0 else None,
-                batch_size=args.batch_size,
-                resample=args.resample,
-                normalize=normalize_param,
-                flow_threshold=args.flow_threshold,
-                cellprob_threshold=args.cellprob_threshold
-            )[:3]
-
-        # === LOGIC B: CELLPOSE V3 (Standard) ===
-        # V3 expects the original image + a 'channels=[cyto, nuc]' list
-        else:
-            # Standard Cellpose usually expects exactly 2 values [cyto, nucleus]
-            # We pad with 0 if only 1 is given, or slice to 2 if too many.
-            chan_arg = user_channels + [0, 0]  # Pad with defaults
-            chan_arg = chan_arg[:2]  # Take first two
-
-            # Build normalize parameter
-            if args.no_normalize:
-                normalize_param = False
-            else:
-                normalize_param = {
-                    "percentile": [args.percentile_low, args.percentile_high],
-                    "tile_norm_blocksize": args.tile_norm
-                }
-
-            masks, flows, styles = model.eval(
-                img,
-                diameter=args.diameter if args.diameter > 0 else None,
-                channels=chan_arg,
-                batch_size=args.batch_size,
-                resample=args.resample,
-                normalize=normalize_param,
-                flow_threshold=args.flow_threshold,
-                cellprob_threshold=args.cellprob_threshold
-            )[:3]
-
-        logger.info("✅ Inference complete.")
-
-        # 5. FORMAT OUTPUT
-        outlines = utils.outlines_list(masks)
-        results = []
-        for outline in outlines:
-            roi_coords = ",".join([f"{p[0]},{p[1]}" for p in outline])
-            results.append(roi_coords)
-
-        print(json.dumps({"status": "success", "data": "\n".join(results)}))
+        model = load_model(args.model_type, args.model_name, args.use_gpu)
+        img = read_image(args.image)
+        masks = run_inference(model, args.model_type, img, params)
+        print(json.dumps({"status": "success", "data": format_outlines(masks)}))
 
     except Exception as e:
         logger.error(f"💥 Error occurred: {e}", exc_info=True)
@@ -200,4 +559,4 @@ def main():
 
 
 if __name__ == "__main__":
-    main()
\ No newline at end of file
+    main()
@@ -0,0 +1,338 @@
+import json
+import logging
+import math
+import os
+import signal
+import subprocess
+import threading
+import time
+from concurrent.futures import ThreadPoolExecutor, TimeoutError as FutureTimeout
+
+logger = logging.getLogger("CellposeAPI")
+
+
+class WorkerError(Exception):
+    """The worker process died or answered with a malformed frame."""
+
+
+class WorkerTimeout(Exception):
+    """The worker did not answer within the job timeout and was killed."""
+
+
+class WorkerCancelled(Exception):
+    """The job was cancelled before or while the worker ran it."""
+
+
+class WorkerBusy(Exception):
+    """The device's run slots and queue are full; the client should retry after `retry_after` seconds."""
+
+    def __init__(self, device, retry_after):
+        super().__init__(f"{device} queue is full")
+        self.device = device
+        self.retry_after = retry_after
+
+
+# How long an interrupted worker gets to answer "cancelled" before it is killed
+CANCEL_GRACE_SECONDS = 10
+
+
+class WorkerProcess:
+    """
+    One long-lived `worker.py --serve` process bound to a single venv.
+    Jobs are written to its stdin and answered on its stdout (see worker.serve).
+    The process keeps its loaded models, so it is restarted only if it dies.
+    """
+
+    def __init__(self, name, python_exec, worker_path):
+        self.name = name
+        self.python_exec = python_exec
+        self.worker_path = worker_path
+        self._process = None
+        self._lock = threading.Lock()
+        # Cancel token (a threading.Event) of the job currently on the worker
+        self._active_token = None
+        # Token the worker was last sent SIGINT for; if that job still finished normally,
+        # the worker's cancel flag is stale and the next job tells it to clear the flag
+        self._signalled_token = None
+        self._clear_cancel = False
+        self._reader = ThreadPoolExecutor(max_workers=1, thread_name_prefix=f"worker-{name}")
+
+    def _ensure_started(self):
+        if self._process is not None and self._process.poll() is None:
+            return
+        logger.info(f"🔧 Starting {self.name} worker process...")
+        self._clear_cancel = False
+        self._process = subprocess.Popen(
+            [self.python_exec, self.worker_path, "--serve"],
+            stdin=subprocess.PIPE,
+            stdout=subprocess.PIPE,
+            # stderr is inherited so worker logs show up in the backend console
+        )
+
+    def _read_reply(self, process, on_event):
+        while True:
+            line = process.stdout.readline()
+            if not line:
+                raise WorkerError(f"{self.name} worker exited with code {process.wait()}")
+            header = json.loads(line.decode("utf-8"))
+            size = int(header.get("data_size", 0))
+            payload = process.stdout.read(size) if size > 0 else b""
+            if len(payload) != size:
+                raise WorkerError(f"{self.name} worker closed the pipe mid-reply")
+            if "event" not in header:
+                return header, payload
+            if on_event is not None:
+                on_event(header)
+
+    def request(self, header, payload=b"", timeout=None, on_event=None, cancel_token=None):
+        """
+        Send one job and block for its reply. Jobs on the same process are serialized.
+        Progress events are passed to on_event on a reader thread; setting cancel_token
+        and calling cancel() with it stops the job with WorkerCancelled.
+        """
+        with self._lock:
+            if cancel_token is not None and cancel_token.is_set():
+                raise WorkerCancelled(f"{self.name} job cancelled before it started")
+            self._ensure_started()
+            process = self._process
+            # Published before the job is written and the token checked again, so a cancel
+            # in between is either seen here or signals the worker instead of being dropped
+            self._active_token = cancel_token
+            try:
+                if cancel_token is not None and cancel_token.is_set():
+                    raise WorkerCancelled(f"{self.name} job cancelled before it started")
+                header = dict(header)
+                header["image_size"] = len(payload)
+                header["progress"] = on_event is not None
+                header["clear_cancel"] = self._clear_cancel
+                self._clear_cancel = False
+                try:
+                    process.stdin.write((json.dumps(header) + "\n").encode("utf-8"))
+                    if payload:
+                        process.stdin.write(payload)
+                    process.stdin.flush()
+                except (BrokenPipeError, OSError) as e:
+                    self._kill()
+                    raise WorkerError(f"{self.name} worker is not accepting jobs: {e}")
+                future = self._reader.submit(self._read_reply, process, on_event)
+                reply = future.result(timeout=timeout)
+            except FutureTimeout:
+                # The only way to stop a running inference is to kill the process
+                self._kill()
+                raise WorkerTimeout(f"{self.name} job exceeded {timeout}s")
+            except WorkerError:
+                self._kill()
+                if cancel_token is not None and cancel_token.is_set():
+                    raise WorkerCancelled(f"{self.name} job cancelled")
+                raise
+            finally:
+                self._active_token = None
+                # Unless the job answers "cancelled", a signal sent for it is still pending in the worker
+                if cancel_token is not None and self._signalled_token is cancel_token:
+                    self._clear_cancel = True
+                self._signalled_token = None
+            if reply[0].get("status") == "cancelled":
+                self._clear_cancel = False
+                raise WorkerCancelled(f"{self.name} job cancelled")
+            return reply
+
+    def cancel(self, cancel_token):
+        """
+        Interrupt the running job if it was started with cancel_token. The worker is
+        sent SIGINT, which stops the job at its next checkpoint and keeps the cached models;
+        where that is unavailable, or it does not answer in time, the process is killed.
+        """
+        process = self._process
+        if process is None or self._active_token is not cancel_token or process.poll() is not None:
+            return
+        logger.info(f"🛑 Cancelling {self.name} job...")
+        if os.name == "nt":
+            process.kill()
+            return
+        self._signalled_token = cancel_token
+        process.send_signal(signal.SIGINT)
+
+        def kill_if_still_running():
+            if self._active_token is cancel_token and process.poll() is None:
+                logger.warning(f"{self.name} worker ignored the cancel; killing it")
+                process.kill()
+
+        timer = threading.Timer(CANCEL_GRACE_SECONDS, kill_if_still_running)
+        timer.daemon = True
+        timer.start()
+
+    def _kill(self):
+        if self._process is None:
+            return
+        if self._process.poll() is None:
+            self._process.kill()
+            self._process.wait()
+        self._process = None
+
+    def stop(self):
+        with self._lock:
+            if self._process is not None and self._process.poll() is None:
+                try:
+                    self._process.stdin.write(b'{"op": "shutdown"}\n')
+                    self._process.stdin.flush()
+                    self._process.wait(timeout=5)
+                except Exception:
+                    pass
+            self._kill()
+        self._reader.shutdown(wait=False)
+
+
+class DeviceAdmission:
+    """
+    Admission control for one device: at most `concurrency` jobs run at once and at most
+    `queue_depth` more wait for a slot. Anything beyond that is rejected with WorkerBusy,
+    with a retry hint estimated from recent job durations.
+    """
+
+    def __init__(self, device, concurrency, queue_depth):
+        self.device = device
+        self.concurrency = max(1, concurrency)
+        self.limit = self.concurrency + max(0, queue_depth)
+        self._slots = threading.BoundedSemaphore(self.concurrency)
+        self._lock = threading.Lock()
+        self._admitted = 0
+        self._avg_seconds = 5.0
+
+    def admit(self):
+        with self._lock:
+            if self._admitted >= self.limit:
+                waiting = self._admitted - self.concurrency + 1
+                retry_after = math.ceil(self._avg_seconds * waiting / self.concurrency)
+                raise WorkerBusy(self.device, min(max(1, retry_after), 60))
+            self._admitted += 1
+
+    def release(self):
+        with self._lock:
+            self._admitted -= 1
+
+    def acquire_slot(self, cancel_token=None):
+        # Poll so a job cancelled while queued leaves the queue right away
+        while not self._slots.acquire(timeout=0.5):
+            if cancel_token is not None and cancel_token.is_set():
+                raise WorkerCancelled(f"{self.device} job cancelled while queued")
+
+    def release_slot(self, seconds):
+        with self._lock:
+            self._avg_seconds = 0.8 * self._avg_seconds + 0.2 * seconds
+        self._slots.release()
+
+
+class Admission:
+    """A job's place in its device queue, held from admission until the job ends."""
+
+    def __init__(self, device_admission):
+        self._device = device_admission
+        self._released = False
+
+    def release(self):
+        if not self._released:
+            self._released = True
+            self._device.release()
+
+
+class WorkerPool:
+    """
+    Lazily started worker processes per model type (i.e. per venv) and device. Each device
+    runs at most its configured concurrency of jobs; a new process for a model type is only
+    started when all of that type's processes on the device are busy.
+    """
+
+    def __init__(self, env_mapping, worker_path, concurrency=None, queue_depth=8):
+        concurrency = concurrency or {}
+        self._env_mapping = dict(env_mapping)
+        self._worker_path = worker_path
+        self._devices = {
+            device: DeviceAdmission(device, concurrency.get(device, 1), queue_depth)
+            for device in ("cpu", "gpu")
+        }
+        self._lock = threading.Lock()
+        self._workers = []  # every process started, for cancel and shutdown
+        self._idle = {}  # (model_type, device) -> idle WorkerProcess list
+
+    @staticmethod
+    def _device(use_gpu):
+        return "gpu" if use_gpu else "cpu"
+
+    def admit(self, use_gpu):
+        """Reserve a queue place on the device or raise WorkerBusy. Pass the result to segment()."""
+        device = self._devices[self._device(use_gpu)]
+        device.admit()
+        return Admission(device)
+
+    def _checkout(self, model_type, device):
+        if model_type not in self._env_mapping:
+            raise ValueError(f"No worker configured for model type: {model_type}")
+        with self._lock:
+            idle = self._idle.setdefault((model_type, device), [])
+            if idle:
+                return idle.pop()
+            index = sum(1 for w in self._workers if w.name.startswith(f"{model_type}-{device}-"))
+            worker = WorkerProcess(f"{model_type}-{device}-{index}", self._env_mapping[model_type], self._worker_path)
+            self._workers.append(worker)
+            return worker
+
+    def _checkin(self, model_type, device, worker):
+        with self._lock:
+            self._idle[(model_type, device)].append(worker)
+
+    def _run(self, model_type, use_gpu, header, payload=b"", timeout=None, on_event=None,
+             cancel_token=None, admission=None):
+        device_name = self._device(use_gpu)
+        device = self._devices[device_name]
+        if admission is None:
+            admission = self.admit(use_gpu)
+        try:
+            queued = time.monotonic()
+            device.acquire_slot(cancel_token)
+            started = time.monotonic()
+            try:
+                worker = self._checkout(model_type, device_name)
+                try:
+                    reply_header, reply_payload = worker.request(header, payload, timeout=timeout, on_event=on_event,
+                                                                 cancel_token=cancel_token)
+                    # Time spent waiting for a device slot, next to the worker's own stage timings
+                    reply_header.setdefault("timings", {})["queue"] = round((started - queued) * 1000, 1)
+                    return reply_header, reply_payload
+                finally:
+                    self._checkin(model_type, device_name, worker)
+            finally:
+                device.release_slot(time.monotonic() - started)
+        finally:
+            admission.release()
+
+    def segment(self, model_type, model_name, use_gpu, params, image_bytes, timeout=None,
+                on_event=None, cancel_token=None, admission=None):
+        header, payload = self._run(model_type, use_gpu, {
+            "op": "segment",
+            "model_type": model_type,
+            "model_name": model_name,
+            "use_gpu": use_gpu,
+            "params": params,
+        }, image_bytes, timeout=timeout, on_event=on_event, cancel_token=cancel_token, admission=admission)
+        return header, payload
+
+    def cancel(self, cancel_token):
+        with self._lock:
+            workers = list(self._workers)
+        for worker in workers:
+            worker.cancel(cancel_token)
+
+    def warmup(self, model_type, model_name, use_gpu, timeout=None):
+        header, _ = self._run(model_type, use_gpu, {
+            "op": "warmup",
+            "model_type": model_type,
+            "model_name": model_name,
+            "use_gpu": use_gpu,
+        }, timeout=timeout)
+        return header
+
+    def shutdown(self):
+        with self._lock:
+            workers = list(self._workers)
+        for worker in workers:
+            worker.stop()
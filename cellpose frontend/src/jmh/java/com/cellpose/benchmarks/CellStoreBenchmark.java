@@ -0,0 +1,71 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.model.Cell;
+import com.cellpose.model.CellStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building cells: outlines into a {@link CellStore}, and the store back into
+ * the {@code PolygonRoi}s and {@link Cell}s the overlay and older callers use.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class CellStoreBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int cells;
+
+    @Param({"16", "64"})
+    public int vertices;
+
+    private float[][][] pool;
+    private CellStore store;
+
+    @Setup
+    public void setUp() {
+        pool = SyntheticCells.pool(cells, vertices);
+        store = SyntheticCells.store(cells, vertices);
+    }
+
+    @Benchmark
+    public CellStore build() {
+        CellStore.Builder builder = new CellStore.Builder();
+        for (int i = 0; i < cells; i++) {
+            float[][] outline = pool[i % pool.length];
+            builder.add(outline[0], outline[1], vertices);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public void rois(Blackhole blackhole) {
+        for (int i = 0; i < store.size(); i++) {
+            blackhole.consume(store.getRoi(i));
+        }
+    }
+
+    @Benchmark
+    public void asCells(Blackhole blackhole) {
+        List<Cell> list = store.asCells();
+        for (int i = 0; i < list.size(); i++) {
+            blackhole.consume(list.get(i));
+        }
+    }
+}
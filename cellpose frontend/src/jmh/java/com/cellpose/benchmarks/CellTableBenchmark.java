@@ -0,0 +1,91 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.model.CellStore;
+import com.cellpose.ui.CellRowSorter;
+import com.cellpose.ui.CellTableModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.RowSorter.SortKey;
+import javax.swing.SortOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cell table updates without a JTable attached: refilling the model from a
+ * result, appending a stack result plane by plane, and sorting and
+ * filtering the rows.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class CellTableBenchmark {
+    private static final int PLANES = 10;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int cells;
+
+    private CellStore store;
+    private List<CellStore> planes;
+    private CellRowSorter sorter;
+    private List<SortKey> byArea;
+
+    @Setup
+    public void setUp() {
+        store = SyntheticCells.store(cells, 16);
+        planes = new ArrayList<>(PLANES);
+        for (int p = 0; p < PLANES; p++) {
+            planes.add(SyntheticCells.store(cells / PLANES, 16));
+        }
+        CellTableModel model = new CellTableModel();
+        model.setCells(store);
+        sorter = new CellRowSorter(model);
+        byArea = Collections.singletonList(new SortKey(CellTableModel.AREA, SortOrder.DESCENDING));
+    }
+
+    @Benchmark
+    public CellTableModel setCells() {
+        CellTableModel fresh = new CellTableModel();
+        fresh.setCells(store);
+        return fresh;
+    }
+
+    @Benchmark
+    public CellTableModel appendPlanes() {
+        CellTableModel fresh = new CellTableModel();
+        for (CellStore plane : planes) {
+            fresh.append(plane);
+        }
+        return fresh;
+    }
+
+    @Benchmark
+    public int sortByArea() {
+        sorter.setSortKeys(byArea);
+        int first = sorter.convertRowIndexToModel(0);
+        sorter.setSortKeys(null);
+        return first;
+    }
+
+    @Benchmark
+    public int filterByArea() {
+        sorter.setFilter("area > 300");
+        int count = sorter.getViewRowCount();
+        sorter.setFilter("");
+        return count;
+    }
+}
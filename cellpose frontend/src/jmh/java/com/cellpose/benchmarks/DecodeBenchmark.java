@@ -0,0 +1,53 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.backend.RoiResponseDecoder;
+import com.cellpose.model.CellStore;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a response body into a {@link CellStore}, in both wire formats.
+ * The text response of a million 64-vertex cells is close to 1 GB, hence
+ * the larger heap.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+@State(Scope.Benchmark)
+public class DecodeBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int cells;
+
+    @Param({"16", "64"})
+    public int vertices;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    private SyntheticCells.Response response;
+
+    @Setup
+    public void setUp() {
+        response = "text".equals(format)
+                ? SyntheticCells.textResponse(cells, vertices)
+                : SyntheticCells.binaryResponse(cells, vertices);
+    }
+
+    @Benchmark
+    public CellStore decode() {
+        return RoiResponseDecoder.decodeStore(response.data, 0, response.length);
+    }
+}
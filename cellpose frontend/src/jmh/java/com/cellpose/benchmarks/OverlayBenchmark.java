@@ -0,0 +1,78 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.analysis.CellIndex;
+import com.cellpose.model.CellStore;
+import ij.gui.Overlay;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Rectangle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The overlay refresh: every outline for a zoomed-out view, or only those
+ * the spatial index finds near a zoomed-in view, as the cell window does.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class OverlayBenchmark {
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int cells;
+
+    @Param({"16", "64"})
+    public int vertices;
+
+    /** Side of the zoomed-in view, in image pixels. */
+    @Param({"1024"})
+    public int view;
+
+    private CellStore store;
+    private CellIndex index;
+    private Rectangle margin;
+
+    @Setup
+    public void setUp() {
+        store = SyntheticCells.store(cells, vertices);
+        index = CellIndex.build(store);
+        int size = SyntheticCells.imageSize(cells);
+        Rectangle visible = new Rectangle((size - view) / 2, (size - view) / 2, view, view);
+        margin = new Rectangle(visible);
+        margin.grow(view / 2, view / 2);
+    }
+
+    @Benchmark
+    public Overlay wholeImage() {
+        Overlay overlay = new Overlay();
+        for (int i = 0; i < store.size(); i++) {
+            overlay.add(store.getRoi(i));
+        }
+        return overlay;
+    }
+
+    @Benchmark
+    public Overlay culled() {
+        Overlay overlay = new Overlay();
+        for (int i : index.query(margin)) {
+            overlay.add(store.getRoi(i));
+        }
+        return overlay;
+    }
+
+    @Benchmark
+    public CellIndex buildIndex() {
+        return CellIndex.build(store);
+    }
+}
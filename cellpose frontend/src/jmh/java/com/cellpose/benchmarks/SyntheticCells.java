@@ -0,0 +1,180 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.model.CellStore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Deterministic stand-ins for a segmentation result: roughly round cells
+ * with integer vertices scattered over a square image at a typical density,
+ * in the shapes the backend sends them (text lines or the binary format)
+ * and as a {@link CellStore}. The same arguments always give the same cells.
+ */
+final class SyntheticCells {
+    static final long SEED = 20240611L;
+    /** Outlines kept by {@link #pool}; enough that the builder does not see the same few arrays. */
+    static final int POOL_SIZE = 4096;
+
+    private static final double MIN_RADIUS = 5;
+    private static final double MAX_RADIUS = 14;
+    // About one cell per 32x32 pixels
+    private static final int PIXELS_PER_CELL_SIDE = 32;
+
+    private SyntheticCells() {
+    }
+
+    /** Bytes of an encoded response; only the first {@code length} of {@code data} are used. */
+    static final class Response {
+        final byte[] data;
+        final int length;
+
+        Response(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+
+    /** Side of the square image that holds {@code cells} cells. */
+    static int imageSize(int cells) {
+        return (int) Math.ceil(Math.sqrt(cells) * PIXELS_PER_CELL_SIDE);
+    }
+
+    /** The text response: one {@code x1,y1,x2,y2,...} line per cell. */
+    static Response textResponse(int cells, int vertices) {
+        Random random = new Random(SEED);
+        int size = imageSize(cells);
+        int[] x = new int[vertices], y = new int[vertices];
+        ByteBuffer out = new ByteBuffer((long) cells * vertices * 2 * 7);
+        for (int c = 0; c < cells; c++) {
+            outline(random, size, vertices, x, y);
+            for (int i = 0; i < vertices; i++) {
+                if (i > 0) out.put(',');
+                out.putAscii(Integer.toString(x[i]));
+                out.put(',');
+                out.putAscii(Integer.toString(y[i]));
+            }
+            out.put('\n');
+        }
+        return new Response(out.data, out.length);
+    }
+
+    /**
+     * The binary response: the {@code CPRB} header, then per cell a varint
+     * vertex count and zigzag varint deltas, the first from (0, 0).
+     */
+    static Response binaryResponse(int cells, int vertices) {
+        Random random = new Random(SEED);
+        int size = imageSize(cells);
+        int[] x = new int[vertices], y = new int[vertices];
+        ByteBuffer out = new ByteBuffer(12 + (long) cells * (2 + vertices * 2 * 2));
+        out.putAscii("CPRB");
+        out.put(1);
+        out.put(0);
+        out.put(0);
+        out.put(0);
+        out.put(cells & 0xFF);
+        out.put(cells >>> 8 & 0xFF);
+        out.put(cells >>> 16 & 0xFF);
+        out.put(cells >>> 24);
+        for (int c = 0; c < cells; c++) {
+            outline(random, size, vertices, x, y);
+            out.putVarint(vertices);
+            int px = 0, py = 0;
+            for (int i = 0; i < vertices; i++) {
+                out.putVarint(zigzag(x[i] - px));
+                out.putVarint(zigzag(y[i] - py));
+                px = x[i];
+                py = y[i];
+            }
+        }
+        return new Response(out.data, out.length);
+    }
+
+    /** The same cells as the responses, built directly into a store. */
+    static CellStore store(int cells, int vertices) {
+        Random random = new Random(SEED);
+        int size = imageSize(cells);
+        int[] x = new int[vertices], y = new int[vertices];
+        float[] fx = new float[vertices], fy = new float[vertices];
+        CellStore.Builder builder = new CellStore.Builder();
+        for (int c = 0; c < cells; c++) {
+            outline(random, size, vertices, x, y);
+            for (int i = 0; i < vertices; i++) {
+                fx[i] = x[i];
+                fy[i] = y[i];
+            }
+            builder.add(fx, fy, vertices);
+        }
+        return builder.build();
+    }
+
+    /**
+     * {@link #POOL_SIZE} outlines as float coordinates, {@code [cell][0]}
+     * holding x and {@code [cell][1]} y, for feeding a builder without
+     * generating shapes inside the measured loop.
+     */
+    static float[][][] pool(int cells, int vertices) {
+        Random random = new Random(SEED);
+        int size = imageSize(cells);
+        int[] x = new int[vertices], y = new int[vertices];
+        float[][][] pool = new float[POOL_SIZE][2][vertices];
+        for (float[][] outline : pool) {
+            outline(random, size, vertices, x, y);
+            for (int i = 0; i < vertices; i++) {
+                outline[0][i] = x[i];
+                outline[1][i] = y[i];
+            }
+        }
+        return pool;
+    }
+
+    private static int zigzag(int v) {
+        return v << 1 ^ v >> 31;
+    }
+
+    /** A slightly irregular circle with {@code vertices} vertices in order around its centre. */
+    private static void outline(Random random, int size, int vertices, int[] x, int[] y) {
+        double radius = MIN_RADIUS + random.nextDouble() * (MAX_RADIUS - MIN_RADIUS);
+        double cx = radius + random.nextDouble() * Math.max(1, size - 2 * radius);
+        double cy = radius + random.nextDouble() * Math.max(1, size - 2 * radius);
+        double phase = random.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < vertices; i++) {
+            double angle = phase + 2 * Math.PI * i / vertices;
+            double r = radius * (0.85 + 0.3 * random.nextDouble());
+            x[i] = (int) Math.round(cx + r * Math.cos(angle));
+            y[i] = (int) Math.round(cy + r * Math.sin(angle));
+        }
+    }
+
+    /** Growable byte array; the responses stay in it untrimmed so the largest ones are not copied. */
+    private static final class ByteBuffer {
+        byte[] data;
+        int length;
+
+        ByteBuffer(long expected) {
+            data = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(64, expected))];
+        }
+
+        void put(int b) {
+            if (length == data.length) {
+                data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, 2L * data.length));
+            }
+            data[length++] = (byte) b;
+        }
+
+        void putAscii(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+            for (byte b : bytes) put(b);
+        }
+
+        void putVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                put(value & 0x7F | 0x80);
+                value >>>= 7;
+            }
+            put(value);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.cellpose.benchmarks;
+
+import com.cellpose.backend.RawImageBody;
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the upload body: one plane written by {@link RawImageBody} to a
+ * stream that only counts, so the time is the encoder's and not the network's.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+    @Param({"1024", "4096"})
+    public int size;
+
+    @Param({"8-bit", "16-bit", "32-bit", "RGB"})
+    public String type;
+
+    private ImagePlus image;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(SyntheticCells.SEED);
+        ImageProcessor ip;
+        switch (type) {
+            case "8-bit": ip = new ByteProcessor(size, size); break;
+            case "16-bit": ip = new ShortProcessor(size, size); break;
+            case "32-bit": ip = new FloatProcessor(size, size); break;
+            default: ip = new ColorProcessor(size, size); break;
+        }
+        for (int i = 0; i < size * size; i++) {
+            ip.set(i, random.nextInt(type.equals("RGB") ? 0x1000000 : 256));
+        }
+        image = new ImagePlus("benchmark", ip);
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        CountingStream out = new CountingStream();
+        RawImageBody.of(image, 1, 1).writeTo(out);
+        return out.count;
+    }
+
+    private static final class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
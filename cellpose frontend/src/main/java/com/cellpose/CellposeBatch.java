@@ -0,0 +1,61 @@
+package com.cellpose;
+
+import ij.IJ;
+import ij.Macro;
+import ij.plugin.PlugIn;
+import com.cellpose.backend.BackendRegistry;
+import com.cellpose.batch.BatchConfig;
+import com.cellpose.batch.BatchSegmenter;
+
+/**
+ * Headless batch segmentation of a folder. Constructs no windows, so it runs
+ * from a macro, from Fiji with --headless, or with java -jar:
+ *
+ * <pre>
+ * run("Cellpose Batch", "input=[/data/in] output=[/data/out] model_type=CellposeSAM concurrency=4");
+ * java -jar cellpose-frontend.jar input=/data/in output=/data/out concurrency=4
+ * </pre>
+ *
+ * Rerunning with the same output folder resumes an interrupted run.
+ */
+public class CellposeBatch implements PlugIn {
+
+    @Override
+    public void run(String arg) {
+        String options = Macro.getOptions();
+        if (options == null || options.trim().isEmpty()) {
+            IJ.log("Cellpose Batch options:\n" + BatchConfig.USAGE);
+            return;
+        }
+        try {
+            runBatch(BatchConfig.fromOptions(options));
+        } catch (Exception e) {
+            IJ.log("[Cellpose Batch] " + e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java -jar <plugin jar> " + BatchConfig.USAGE);
+            System.exit(2);
+        }
+        try {
+            int failed = runBatch(BatchConfig.fromOptions(BatchConfig.optionsFromArgs(args)));
+            System.exit(failed == 0 ? 0 : 1);
+        } catch (Exception e) {
+            System.err.println("Cellpose batch failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    private static int runBatch(BatchConfig config) throws Exception {
+        // Shares the backend and connection pool with any open Cellpose window
+        try (BackendRegistry.Lease lease = BackendRegistry.acquire()) {
+            if (config.isStartBackend()) {
+                config.setBackendUrl(lease.getManager().start(config.getParams().getModelType(),
+                        config.getParams().getModelName(), config.getParams().isUseGpu()));
+            }
+            return new BatchSegmenter(config, lease.getClient()).run();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellStore;
+import ij.gui.Roi;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over cell bounding boxes, for hit-testing clicks, selecting
+ * cells inside a drawn ROI and culling ROIs outside the viewport.
+ *
+ * Buckets are stored CSR-style in two int arrays (bucket start offsets and
+ * the cell indices they hold), so the index costs a few ints per cell and
+ * lookups touch only the buckets under the query. The bucket size follows
+ * the mean cell size, which keeps a bucket at a handful of cells for any
+ * density. Indices refer to positions in the store the index was built from.
+ *
+ * The grid is two-dimensional: cells of an All Planes result share it, and
+ * the hit tests take the displayed slice and frame so that only that plane's
+ * cells (and unplaced ones) are picked.
+ */
+public final class CellIndex {
+    private static final int MAX_BUCKETS = 1 << 22;
+
+    private final CellStore cells;
+    private final int[] minX;
+    private final int[] minY;
+    private final int[] maxX;
+    private final int[] maxY;
+    private final int originX;
+    private final int originY;
+    private final int bucketSize;
+    private final int columns;
+    private final int rows;
+    private final int[] bucketStart;
+    private final int[] bucketCells;
+    // Per-query dedupe: a cell spanning several buckets is reported once
+    private final int[] seen;
+    private int stamp;
+
+    private CellIndex(CellStore cells) {
+        int n = cells.size();
+        this.cells = cells;
+        minX = new int[n];
+        minY = new int[n];
+        maxX = new int[n];
+        maxY = new int[n];
+        seen = new int[n];
+
+        int x0 = Integer.MAX_VALUE, y0 = Integer.MAX_VALUE, x1 = Integer.MIN_VALUE, y1 = Integer.MIN_VALUE;
+        long sumSize = 0;
+        for (int i = 0; i < n; i++) {
+            minX[i] = cells.getMinX(i);
+            minY[i] = cells.getMinY(i);
+            maxX[i] = cells.getMaxX(i);
+            maxY[i] = cells.getMaxY(i);
+            x0 = Math.min(x0, minX[i]);
+            y0 = Math.min(y0, minY[i]);
+            x1 = Math.max(x1, maxX[i]);
+            y1 = Math.max(y1, maxY[i]);
+            sumSize += Math.max(maxX[i] - minX[i], maxY[i] - minY[i]);
+        }
+        if (n == 0) {
+            x0 = y0 = 0;
+            x1 = y1 = 1;
+        }
+        originX = x0;
+        originY = y0;
+        int width = Math.max(1, x1 - x0);
+        int height = Math.max(1, y1 - y0);
+        int size = (int) Math.max(8, n == 0 ? width : 2 * sumSize / n);
+        while ((long) (width / size + 1) * (height / size + 1) > MAX_BUCKETS) {
+            size *= 2;
+        }
+        bucketSize = size;
+        columns = width / size + 1;
+        rows = height / size + 1;
+
+        // Two passes: count cells per bucket, then fill
+        bucketStart = new int[columns * rows + 1];
+        for (int i = 0; i < n; i++) {
+            for (int r = row(minY[i]); r <= row(maxY[i]); r++) {
+                for (int c = column(minX[i]); c <= column(maxX[i]); c++) {
+                    bucketStart[r * columns + c + 1]++;
+                }
+            }
+        }
+        for (int b = 0; b < columns * rows; b++) {
+            bucketStart[b + 1] += bucketStart[b];
+        }
+        bucketCells = new int[bucketStart[columns * rows]];
+        int[] fill = Arrays.copyOf(bucketStart, columns * rows);
+        for (int i = 0; i < n; i++) {
+            for (int r = row(minY[i]); r <= row(maxY[i]); r++) {
+                for (int c = column(minX[i]); c <= column(maxX[i]); c++) {
+                    bucketCells[fill[r * columns + c]++] = i;
+                }
+            }
+        }
+    }
+
+    public static CellIndex build(CellStore cells) {
+        return new CellIndex(cells);
+    }
+
+    public int size() {
+        return minX.length;
+    }
+
+    /**
+     * The cell on the given 1-based plane whose outline contains the image
+     * point, or -1. Where outlines overlap, the cell with the smallest
+     * bounding box wins.
+     */
+    public synchronized int find(double x, double y, int slice, int frame) {
+        if (size() == 0) return -1;
+        int c = column((int) Math.floor(x));
+        int r = row((int) Math.floor(y));
+        if (c < 0 || r < 0 || c >= columns || r >= rows) return -1;
+        int best = -1;
+        long bestArea = Long.MAX_VALUE;
+        int bucket = r * columns + c;
+        for (int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+            int i = bucketCells[k];
+            if (x < minX[i] || x > maxX[i] || y < minY[i] || y > maxY[i]) continue;
+            if (!onPlane(i, slice, frame)) continue;
+            long area = (long) (maxX[i] - minX[i]) * (maxY[i] - minY[i]);
+            if (area >= bestArea) continue;
+            if (cells.contains(i, x, y)) {
+                best = i;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /** Indices of cells whose bounding box intersects {@code area}, in index order. */
+    public synchronized int[] query(Rectangle area) {
+        int[] out = new int[16];
+        int count = 0;
+        if (size() == 0) return new int[0];
+        int c0 = Math.max(0, column(area.x));
+        int c1 = Math.min(columns - 1, column(area.x + area.width));
+        int r0 = Math.max(0, row(area.y));
+        int r1 = Math.min(rows - 1, row(area.y + area.height));
+        int ax1 = area.x + area.width;
+        int ay1 = area.y + area.height;
+        nextStamp();
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int bucket = r * columns + c;
+                for (int k = bucketStart[bucket]; k < bucketStart[bucket + 1]; k++) {
+                    int i = bucketCells[k];
+                    if (seen[i] == stamp) continue;
+                    seen[i] = stamp;
+                    if (maxX[i] < area.x || minX[i] > ax1 || maxY[i] < area.y || minY[i] > ay1) continue;
+                    if (count == out.length) out = Arrays.copyOf(out, count * 2);
+                    out[count++] = i;
+                }
+            }
+        }
+        int[] result = Arrays.copyOf(out, count);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Indices of cells on the given 1-based plane whose centroid lies inside
+     * {@code selection} (rectangle, oval, polygon or freehand).
+     */
+    public int[] within(Roi selection, int slice, int frame) {
+        int[] candidates = query(selection.getBounds());
+        int count = 0;
+        for (int i : candidates) {
+            if (onPlane(i, slice, frame) && selection.containsPoint(cells.getX(i), cells.getY(i))) {
+                candidates[count++] = i;
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    // Unplaced cells (slice and frame 0) belong to whichever plane is shown
+    private boolean onPlane(int i, int slice, int frame) {
+        int s = cells.getSlice(i), f = cells.getFrame(i);
+        return (s == 0 || s == slice) && (f == 0 || f == frame);
+    }
+
+    private void nextStamp() {
+        if (++stamp == 0) {
+            Arrays.fill(seen, 0);
+            stamp = 1;
+        }
+    }
+
+    private int column(int x) {
+        return Math.floorDiv(x - originX, bucketSize);
+    }
+
+    private int row(int y) {
+        return Math.floorDiv(y - originY, bucketSize);
+    }
+}
@@ -0,0 +1,190 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellMeasurements;
+import com.cellpose.model.CellStore;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Measures every cell of a {@link CellStore} against an image: pixel area,
+ * perimeter, circularity, and mean/min/max/integrated intensity of each
+ * channel (the three components of an RGB image count as channels).
+ *
+ * Outlines are scan-converted straight from the store and the spans are
+ * summed over the planes' primitive pixel arrays, so no ROI, mask or
+ * ImageProcessor is created per cell. Cells are measured in chunks on the
+ * common fork-join pool. Cells placed on a plane are measured on that
+ * plane; the others on the plane passed in.
+ */
+public final class CellMeasurer {
+    private static final int CELLS_PER_CHUNK = 256;
+
+    private CellMeasurer() {
+    }
+
+    /** Measures {@code cells} on plane ({@code z}, {@code t}) of {@code imp}, both 1-based. */
+    public static CellMeasurements measure(CellStore cells, ImagePlus imp, int z, int t) {
+        int n = cells.size();
+        boolean rgb = imp.getType() == ImagePlus.COLOR_RGB;
+        int channels = rgb ? 3 : Math.max(1, imp.getNChannels());
+
+        // Pixels of every plane some cell lies on, one array per channel
+        Map<Long, Object[]> planes = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            long key = planeKey(cells, i, z, t);
+            if (!planes.containsKey(key)) {
+                planes.put(key, planePixels(imp, (int) (key >>> 32), (int) key, rgb, channels));
+            }
+        }
+
+        int[] pixelCounts = new int[n];
+        float[] perimeters = new float[n];
+        double[][] sums = new double[channels][n];
+        float[][] mins = new float[channels][n];
+        float[][] maxs = new float[channels][n];
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+
+        int chunks = (n + CELLS_PER_CHUNK - 1) / CELLS_PER_CHUNK;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            Worker worker = new Worker(width, channels, rgb, pixelCounts, sums, mins, maxs);
+            int to = Math.min(n, (chunk + 1) * CELLS_PER_CHUNK);
+            for (int i = chunk * CELLS_PER_CHUNK; i < to; i++) {
+                worker.measure(cells, i, planes.get(planeKey(cells, i, z, t)), height, perimeters);
+            }
+        });
+        return new CellMeasurements(cells, channels, pixelCounts, perimeters, sums, mins, maxs);
+    }
+
+    private static long planeKey(CellStore cells, int i, int z, int t) {
+        int slice = cells.getSlice(i) > 0 ? cells.getSlice(i) : z;
+        int frame = cells.getFrame(i) > 0 ? cells.getFrame(i) : t;
+        return (long) slice << 32 | (frame & 0xFFFFFFFFL);
+    }
+
+    private static Object[] planePixels(ImagePlus imp, int z, int t, boolean rgb, int channels) {
+        ImageStack stack = imp.getStack();
+        Object[] pixels = new Object[channels];
+        for (int c = 0; c < channels; c++) {
+            // RGB components all come from the one packed int[] plane
+            pixels[c] = stack.getPixels(imp.getStackIndex(rgb ? 1 : c + 1, z, t));
+        }
+        return pixels;
+    }
+
+    /** Per-chunk state: the vertex and crossing buffers are reused from cell to cell. */
+    private static final class Worker implements ScanlineFill.SpanVisitor {
+        private final int width;
+        private final int channels;
+        private final boolean rgb;
+        private final int[] pixelCounts;
+        private final double[][] sums;
+        private final float[][] mins;
+        private final float[][] maxs;
+        private final ScanlineFill fill = new ScanlineFill();
+        private float[] xs = new float[256];
+        private float[] ys = new float[256];
+        private Object[] pixels;
+        private int cell;
+        // Running statistics of the current cell, per channel
+        private final double[] sum;
+        private final float[] min;
+        private final float[] max;
+
+        Worker(int width, int channels, boolean rgb, int[] pixelCounts, double[][] sums, float[][] mins, float[][] maxs) {
+            this.width = width;
+            this.channels = channels;
+            this.rgb = rgb;
+            this.pixelCounts = pixelCounts;
+            this.sums = sums;
+            this.mins = mins;
+            this.maxs = maxs;
+            this.sum = new double[channels];
+            this.min = new float[channels];
+            this.max = new float[channels];
+        }
+
+        void measure(CellStore cells, int i, Object[] planePixels, int height, float[] perimeters) {
+            int n = cells.getVertexCount(i);
+            if (n > xs.length) {
+                xs = new float[Math.max(n, 2 * xs.length)];
+                ys = new float[xs.length];
+            }
+            cells.getVertices(i, xs, ys);
+
+            double perimeter = 0;
+            for (int a = 0, b = n - 1; a < n; b = a++) {
+                double dx = xs[a] - xs[b];
+                double dy = ys[a] - ys[b];
+                perimeter += Math.sqrt(dx * dx + dy * dy);
+            }
+            perimeters[i] = (float) perimeter;
+
+            pixels = planePixels;
+            cell = i;
+            Arrays.fill(sum, 0);
+            Arrays.fill(min, Float.POSITIVE_INFINITY);
+            Arrays.fill(max, Float.NEGATIVE_INFINITY);
+            fill.fill(xs, ys, n, width, 0, height, this);
+            for (int c = 0; c < channels; c++) {
+                sums[c][i] = sum[c];
+                mins[c][i] = min[c];
+                maxs[c][i] = max[c];
+            }
+        }
+
+        @Override
+        public void span(int y, int fromX, int toX) {
+            pixelCounts[cell] += toX - fromX;
+            int from = y * width + fromX;
+            int to = y * width + toX;
+            for (int c = 0; c < channels; c++) {
+                Object p = pixels[c];
+                double s = 0;
+                float lo = min[c], hi = max[c];
+                if (p instanceof byte[]) {
+                    byte[] values = (byte[]) p;
+                    for (int k = from; k < to; k++) {
+                        float v = values[k] & 0xFF;
+                        s += v;
+                        if (v < lo) lo = v;
+                        if (v > hi) hi = v;
+                    }
+                } else if (p instanceof short[]) {
+                    short[] values = (short[]) p;
+                    for (int k = from; k < to; k++) {
+                        float v = values[k] & 0xFFFF;
+                        s += v;
+                        if (v < lo) lo = v;
+                        if (v > hi) hi = v;
+                    }
+                } else if (p instanceof float[]) {
+                    float[] values = (float[]) p;
+                    for (int k = from; k < to; k++) {
+                        float v = values[k];
+                        s += v;
+                        if (v < lo) lo = v;
+                        if (v > hi) hi = v;
+                    }
+                } else if (p instanceof int[] && rgb) {
+                    int[] values = (int[]) p;
+                    int shift = 16 - 8 * c;
+                    for (int k = from; k < to; k++) {
+                        float v = (values[k] >> shift) & 0xFF;
+                        s += v;
+                        if (v < lo) lo = v;
+                        if (v > hi) hi = v;
+                    }
+                }
+                sum[c] += s;
+                min[c] = lo;
+                max[c] = hi;
+            }
+        }
+    }
+}
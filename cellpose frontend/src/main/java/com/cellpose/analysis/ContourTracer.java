@@ -0,0 +1,240 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellStore;
+import com.cellpose.model.LabelMask;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Traces the outline of every label in a {@link LabelMask} into a polygon cell,
+ * producing pixel-centre outlines like cellpose's {@code utils.outlines_list}.
+ *
+ * A banded parallel scan finds each label's first (top-left) pixel and
+ * bounding box, merged into one set of shared arrays. Each label is then
+ * traced independently with Moore-neighbour tracing on the common fork-join
+ * pool. A label split into several 8-connected pieces gets the outline of the
+ * piece with the longest outline, which is the one {@code outlines_list} keeps;
+ * labels the scan proves to be in one piece skip that search.
+ */
+public final class ContourTracer {
+    // Clockwise in image coordinates (y down), starting east
+    private static final int[] DX = {1, 1, 0, -1, -1, -1, 0, 1};
+    private static final int[] DY = {0, 1, 1, 1, 0, -1, -1, -1};
+
+    private ContourTracer() {
+    }
+
+    public static CellStore trace(LabelMask mask) {
+        int maxLabel = mask.getMaxLabel();
+        if (maxLabel == 0) {
+            return CellStore.EMPTY;
+        }
+
+        Bounds bounds = findBounds(mask, maxLabel);
+        int[] present = IntStream.rangeClosed(1, maxLabel).filter(bounds::isPresent).toArray();
+
+        List<float[][]> outlines = Arrays.stream(present)
+                .parallel()
+                .mapToObj(label -> traceLongestPiece(mask, label, bounds))
+                .collect(Collectors.toList());
+
+        CellStore.Builder cells = new CellStore.Builder();
+        for (float[][] outline : outlines) {
+            cells.add(outline[0], outline[1], outline[0].length);
+        }
+        return cells.build();
+    }
+
+    /**
+     * First pixel and bounding box of every label. Bands of rows are scanned
+     * in parallel, one run of equal labels at a time, and each run is merged
+     * into the shared arrays with a min/max update. Runs not 8-connected to
+     * the label in the row above are counted: every piece has at least one,
+     * so a label with a single such run is in one piece.
+     */
+    private static Bounds findBounds(LabelMask mask, int maxLabel) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        int bands = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), height / 64));
+        Bounds bounds = new Bounds(maxLabel);
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int firstRow = (int) ((long) band * height / bands);
+            int endRow = (int) ((long) (band + 1) * height / bands);
+            for (int y = firstRow; y < endRow; y++) {
+                int row = y * width;
+                int x = 0;
+                while (x < width) {
+                    int label = mask.getLabel(row + x);
+                    int from = x++;
+                    while (x < width && mask.getLabel(row + x) == label) {
+                        x++;
+                    }
+                    if (label != 0) {
+                        boolean top = y == 0 || !touchesRow(mask, label, from - 1, x, row - width, width);
+                        bounds.include(label, row + from, from, x - 1, y, top);
+                    }
+                }
+            }
+        });
+        return bounds;
+    }
+
+    /** Whether any pixel in columns {@code fromX..toX} of the row starting at {@code row} has the label. */
+    private static boolean touchesRow(LabelMask mask, int label, int fromX, int toX, int row, int width) {
+        for (int x = Math.max(fromX, 0); x <= Math.min(toX, width - 1); x++) {
+            if (mask.getLabel(row + x) == label) return true;
+        }
+        return false;
+    }
+
+    /** Traces every piece of the label inside its bounding box and keeps the longest outline. */
+    private static float[][] traceLongestPiece(LabelMask mask, int label, Bounds bounds) {
+        int width = mask.getWidth();
+        int first = bounds.first.get(label);
+        if (bounds.topRuns.get(label) == 1) {
+            return traceLabel(mask, label, first % width, first / width);
+        }
+        int x0 = bounds.minX.get(label);
+        int y0 = first / width;
+        int w = bounds.maxX.get(label) - x0 + 1;
+        int h = bounds.maxY.get(label) - y0 + 1;
+        boolean[] visited = new boolean[w * h];
+        int[] stack = new int[64];
+        float[][] longest = null;
+
+        // Raster order, so each piece is entered at its own first pixel, as traceLabel expects
+        for (int y = y0; y < y0 + h; y++) {
+            for (int x = x0; x < x0 + w; x++) {
+                if (visited[(y - y0) * w + x - x0] || mask.getLabel(y * width + x) != label) continue;
+                float[][] outline = traceLabel(mask, label, x, y);
+                if (longest == null || outline[0].length > longest[0].length) {
+                    longest = outline;
+                }
+                stack = markPiece(mask, label, x, y, x0, y0, w, h, visited, stack);
+            }
+        }
+        return longest;
+    }
+
+    /** Flood-fills the 8-connected piece containing (x, y) into {@code visited}; returns the (grown) stack. */
+    private static int[] markPiece(LabelMask mask, int label, int x, int y, int x0, int y0, int w, int h,
+                                   boolean[] visited, int[] stack) {
+        int width = mask.getWidth();
+        int size = 0;
+        visited[(y - y0) * w + x - x0] = true;
+        stack[size++] = (y - y0) * w + x - x0;
+        while (size > 0) {
+            int p = stack[--size];
+            int px = p % w, py = p / w;
+            for (int d = 0; d < 8; d++) {
+                int nx = px + DX[d], ny = py + DY[d];
+                if (nx < 0 || ny < 0 || nx >= w || ny >= h) continue;
+                int q = ny * w + nx;
+                if (visited[q] || mask.getLabel((ny + y0) * width + nx + x0) != label) continue;
+                visited[q] = true;
+                if (size == stack.length) stack = Arrays.copyOf(stack, size * 2);
+                stack[size++] = q;
+            }
+        }
+        return stack;
+    }
+
+    /** The label's outline as {x[], y[]}, trimmed to length. */
+    private static float[][] traceLabel(LabelMask mask, int label, int startX, int startY) {
+        int width = mask.getWidth();
+        int height = mask.getHeight();
+        float[] xs = new float[64];
+        float[] ys = new float[64];
+        int n = 0;
+
+        int x = startX, y = startY;
+        // The start pixel is the first in raster order, so its west neighbour is outside the label
+        int searchFrom = 5;
+        int firstDir = -1;
+        long maxSteps = 4L * width * height + 8;
+
+        for (long step = 0; step < maxSteps; step++) {
+            int dir = -1;
+            for (int k = 0; k < 8; k++) {
+                int d = (searchFrom + k) & 7;
+                int nx = x + DX[d];
+                int ny = y + DY[d];
+                if (nx >= 0 && ny >= 0 && nx < width && ny < height && mask.getLabel(ny * width + nx) == label) {
+                    dir = d;
+                    break;
+                }
+            }
+
+            // Jacob's stopping criterion: back at the start, about to repeat the first move
+            if (firstDir >= 0 && x == startX && y == startY && dir == firstDir) {
+                break;
+            }
+
+            if (n == xs.length) {
+                xs = Arrays.copyOf(xs, n * 2);
+                ys = Arrays.copyOf(ys, n * 2);
+            }
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+
+            if (dir < 0) {
+                break; // isolated single pixel
+            }
+            if (firstDir < 0) {
+                firstDir = dir;
+            }
+            x += DX[dir];
+            y += DY[dir];
+            // Resume the clockwise search just past the background pixel we backtracked from
+            searchFrom = (dir & 1) == 0 ? (dir + 7) & 7 : (dir + 6) & 7;
+        }
+
+        return new float[][]{Arrays.copyOf(xs, n), Arrays.copyOf(ys, n)};
+    }
+
+    /** First raster index, bounding box and top-run count per label, shared by all scan bands. */
+    private static final class Bounds {
+        final AtomicIntegerArray first;
+        final AtomicIntegerArray minX;
+        final AtomicIntegerArray maxX;
+        final AtomicIntegerArray maxY;
+        final AtomicIntegerArray topRuns;
+
+        Bounds(int maxLabel) {
+            first = new AtomicIntegerArray(maxLabel + 1);
+            minX = new AtomicIntegerArray(maxLabel + 1);
+            maxX = new AtomicIntegerArray(maxLabel + 1);
+            maxY = new AtomicIntegerArray(maxLabel + 1);
+            topRuns = new AtomicIntegerArray(maxLabel + 1);
+            for (int label = 0; label <= maxLabel; label++) {
+                first.set(label, Integer.MAX_VALUE);
+                minX.set(label, Integer.MAX_VALUE);
+                maxX.set(label, -1);
+                maxY.set(label, -1);
+            }
+        }
+
+        boolean isPresent(int label) {
+            return first.get(label) != Integer.MAX_VALUE;
+        }
+
+        /**
+         * Adds the run of pixels {@code fromX..toX} on row {@code y}, starting at raster index {@code index};
+         * {@code top} if no label pixel in the row above touches it.
+         */
+        void include(int label, int index, int fromX, int toX, int y, boolean top) {
+            if (top) topRuns.incrementAndGet(label);
+            // Plain reads first: most runs do not move a bound, and then no update is needed
+            if (index < first.get(label)) first.accumulateAndGet(label, index, Math::min);
+            if (fromX < minX.get(label)) minX.accumulateAndGet(label, fromX, Math::min);
+            if (toX > maxX.get(label)) maxX.accumulateAndGet(label, toX, Math::max);
+            if (y > maxY.get(label)) maxY.accumulateAndGet(label, y, Math::max);
+        }
+    }
+}
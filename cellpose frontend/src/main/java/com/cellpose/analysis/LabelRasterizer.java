@@ -0,0 +1,201 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellStore;
+import com.cellpose.model.LabelMask;
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fills cell outlines into a label image, each cell's pixels set to its id
+ * (0 = background), and from there into binary masks.
+ *
+ * The image is split into bands of rows filled in parallel. A band is only
+ * ever written by one thread, which fills the cells overlapping it in store
+ * order, so where outlines overlap the later cell wins whatever the thread
+ * count. Outlines run through the centres of a cell's boundary pixels, as
+ * the backend and {@link ContourTracer} produce them, and those pixels count
+ * as inside, so the label image reproduces the mask the outlines were traced
+ * from (except for holes). This covers more pixels than {@link CellMeasurer},
+ * which follows ImageJ's ROI rule.
+ */
+public final class LabelRasterizer {
+    private static final int BAND_ROWS = 64;
+
+    private LabelRasterizer() {
+    }
+
+    /** Fills every cell, ignoring plane placement, into one {@code width} x {@code height} label mask. */
+    public static LabelMask rasterize(CellStore cells, int width, int height) {
+        int[] all = new int[cells.size()];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = i;
+        }
+        return rasterize(cells, all, width, height, fits16Bit(cells));
+    }
+
+    /**
+     * Label image for {@code imp}: a single plane when no cell is placed on a
+     * plane, otherwise one plane per slice and frame of {@code imp}, each
+     * holding the cells placed there. Ids are kept, so labels match the cell
+     * table. 16-bit when every id fits, 32-bit float otherwise.
+     */
+    public static ImagePlus toLabelImage(CellStore cells, ImagePlus imp, String title) {
+        return toImage(cells, imp, title, false);
+    }
+
+    /** Binary 8-bit mask (255 = cell, 0 = background), laid out like {@link #toLabelImage}. */
+    public static ImagePlus toBinaryMask(CellStore cells, ImagePlus imp, String title) {
+        return toImage(cells, imp, title, true);
+    }
+
+    private static ImagePlus toImage(CellStore cells, ImagePlus imp, String title, boolean binary) {
+        int width = imp.getWidth();
+        int height = imp.getHeight();
+        boolean placed = cells.size() > 0 && cells.getSlice(0) > 0;
+        if (!placed) {
+            LabelMask mask = rasterize(cells, width, height);
+            return new ImagePlus(title, binary ? mask.toBinaryProcessor() : mask.toProcessor());
+        }
+
+        int nSlices = imp.getNSlices();
+        int nFrames = imp.getNFrames();
+        int planes = nSlices * nFrames;
+        // Group the cell indices by plane, CSR-style, keeping store order within a plane
+        int[] planeStart = new int[planes + 1];
+        for (int i = 0; i < cells.size(); i++) {
+            planeStart[plane(cells, i, nSlices, planes) + 1]++;
+        }
+        for (int p = 0; p < planes; p++) {
+            planeStart[p + 1] += planeStart[p];
+        }
+        int[] planeCells = new int[cells.size()];
+        int[] next = Arrays.copyOf(planeStart, planes);
+        for (int i = 0; i < cells.size(); i++) {
+            planeCells[next[plane(cells, i, nSlices, planes)]++] = i;
+        }
+
+        // One pixel type for the whole stack, so decide it from every id
+        boolean wide = !fits16Bit(cells);
+        ImageStack stack = new ImageStack(width, height);
+        for (int p = 0; p < planes; p++) {
+            int[] indices = Arrays.copyOfRange(planeCells, planeStart[p], planeStart[p + 1]);
+            LabelMask mask = rasterize(cells, indices, width, height, !wide);
+            stack.addSlice("z" + (p % nSlices + 1) + "_t" + (p / nSlices + 1),
+                    binary ? mask.toBinaryProcessor() : mask.toProcessor());
+        }
+        ImagePlus result = new ImagePlus(title, stack);
+        result.setDimensions(1, nSlices, nFrames);
+        if (nSlices > 1 && nFrames > 1) {
+            result.setOpenAsHyperStack(true);
+        }
+        if (!binary) {
+            // Show every label, not just those of the first plane
+            result.setDisplayRange(0, maxId(cells));
+        }
+        return result;
+    }
+
+    /** 0-based plane of cell {@code i}, in stack order (slices within frames). */
+    private static int plane(CellStore cells, int i, int nSlices, int planes) {
+        int p = (cells.getFrame(i) - 1) * nSlices + cells.getSlice(i) - 1;
+        if (p < 0 || p >= planes) {
+            throw new IllegalArgumentException("Cell " + cells.getId(i) + " lies outside the image's planes");
+        }
+        return p;
+    }
+
+    private static int maxId(CellStore cells) {
+        int max = 0;
+        for (int i = 0; i < cells.size(); i++) {
+            max = Math.max(max, cells.getId(i));
+        }
+        return max;
+    }
+
+    private static boolean fits16Bit(CellStore cells) {
+        return maxId(cells) <= 0xFFFF;
+    }
+
+    /** Fills the cells at {@code indices}, in that order, into a new mask. */
+    private static LabelMask rasterize(CellStore cells, int[] indices, int width, int height, boolean narrow) {
+        short[] labels16 = narrow ? new short[width * height] : null;
+        int[] labels32 = narrow ? null : new int[width * height];
+        int bands = (height + BAND_ROWS - 1) / BAND_ROWS;
+
+        // Bucket the cells by the bands their bounding boxes touch, in order
+        int[] bandStart = new int[bands + 1];
+        for (int i : indices) {
+            for (int b = firstBand(cells, i, bands); b <= lastBand(cells, i, bands); b++) {
+                bandStart[b + 1]++;
+            }
+        }
+        for (int b = 0; b < bands; b++) {
+            bandStart[b + 1] += bandStart[b];
+        }
+        int[] bandCells = new int[bandStart[bands]];
+        int[] next = Arrays.copyOf(bandStart, bands);
+        for (int i : indices) {
+            for (int b = firstBand(cells, i, bands); b <= lastBand(cells, i, bands); b++) {
+                bandCells[next[b]++] = i;
+            }
+        }
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            BandFiller filler = new BandFiller(width, labels16, labels32);
+            int minRow = band * BAND_ROWS;
+            int maxRow = Math.min(height, minRow + BAND_ROWS);
+            for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+                filler.fill(cells, bandCells[k], minRow, maxRow);
+            }
+        });
+        return narrow ? new LabelMask(width, height, labels16) : new LabelMask(width, height, labels32);
+    }
+
+    private static int firstBand(CellStore cells, int i, int bands) {
+        return Math.max(0, Math.min(bands - 1, cells.getMinY(i) / BAND_ROWS));
+    }
+
+    private static int lastBand(CellStore cells, int i, int bands) {
+        return Math.max(0, Math.min(bands - 1, cells.getMaxY(i) / BAND_ROWS));
+    }
+
+    /** Per-band state: vertex and crossing buffers reused from cell to cell. */
+    private static final class BandFiller implements ScanlineFill.SpanVisitor {
+        private final int width;
+        private final short[] labels16;
+        private final int[] labels32;
+        private final ScanlineFill scanline = new ScanlineFill();
+        private float[] xs = new float[256];
+        private float[] ys = new float[256];
+        private int label;
+
+        BandFiller(int width, short[] labels16, int[] labels32) {
+            this.width = width;
+            this.labels16 = labels16;
+            this.labels32 = labels32;
+        }
+
+        void fill(CellStore cells, int i, int minRow, int maxRow) {
+            int n = cells.getVertexCount(i);
+            if (n > xs.length) {
+                xs = new float[Math.max(n, 2 * xs.length)];
+                ys = new float[xs.length];
+            }
+            cells.getVertices(i, xs, ys);
+            label = cells.getId(i);
+            scanline.fillOutline(xs, ys, n, width, minRow, maxRow, this);
+        }
+
+        @Override
+        public void span(int y, int fromX, int toX) {
+            if (labels16 != null) {
+                Arrays.fill(labels16, y * width + fromX, y * width + toX, (short) label);
+            } else {
+                Arrays.fill(labels32, y * width + fromX, y * width + toX, label);
+            }
+        }
+    }
+}
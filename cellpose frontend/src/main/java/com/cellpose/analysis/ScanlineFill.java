@@ -0,0 +1,264 @@
+package com.cellpose.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Scanline polygon fill over pixel rows, under one of two pixel rules.
+ *
+ * {@link #fill} treats vertices as pixel corners, as ImageJ does: a pixel
+ * belongs to the polygon when its centre does (even-odd rule), which is how
+ * ImageJ fills and masks polygon ROIs, so pixel counts match
+ * {@code ImageStatistics}. {@link #fillOutline} treats vertices as pixel
+ * centres, as cellpose's outlines and {@link ContourTracer} do, and also
+ * covers the pixels the outline runs through, so filling the outline traced
+ * from a label gives back the label's pixels.
+ *
+ * Instances keep their crossing buffers between calls and are not thread-safe;
+ * parallel callers use one per thread or chunk.
+ */
+final class ScanlineFill {
+    /** Receives the pixels {@code fromX} (inclusive) to {@code toX} (exclusive) of row {@code y}. */
+    interface SpanVisitor {
+        void span(int y, int fromX, int toX);
+    }
+
+    private float[] crossings = new float[64];
+    private int[] rowStart = new int[64];
+    // fillOutline: per-row pixel runs [runFrom, runTo] of the outline itself, bucketed like the crossings
+    private int[] runStart = new int[64];
+    private int[] runFrom = new int[64];
+    private int[] runTo = new int[64];
+    // fillOutline: one row's runs before merging
+    private int[] rowFrom = new int[16];
+    private int[] rowTo = new int[16];
+
+    /**
+     * Visits every covered pixel of the polygon made of the first {@code n}
+     * vertices, clipped to rows {@code minRow..maxRow - 1} and columns
+     * {@code 0..width - 1}.
+     */
+    void fill(float[] xs, float[] ys, int n, int width, int minRow, int maxRow, SpanVisitor visitor) {
+        if (n < 3) return;
+        float top = Float.POSITIVE_INFINITY, bottom = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            top = Math.min(top, ys[i]);
+            bottom = Math.max(bottom, ys[i]);
+        }
+        // Rows whose centre (y + 0.5) falls within the polygon's vertical extent
+        int firstRow = Math.max(minRow, ceil(top - 0.5f));
+        int lastRow = Math.min(maxRow - 1, ceil(bottom - 0.5f) - 1);
+        if (firstRow > lastRow) return;
+        int rows = lastRow - firstRow + 1;
+        bucketCrossings(xs, ys, n, firstRow, lastRow, 0.5f);
+
+        for (int r = 0, begin = 0; r < rows; r++) {
+            int end = rowStart[r];
+            if (end - begin >= 2) {
+                sort(crossings, begin, end);
+                int y = firstRow + r;
+                for (int k = begin; k + 1 < end; k += 2) {
+                    // Pixels whose centre x + 0.5 lies in [left, right)
+                    int left = Math.max(0, ceil(crossings[k] - 0.5f));
+                    int right = Math.min(width, ceil(crossings[k + 1] - 0.5f));
+                    if (left < right) {
+                        visitor.span(y, left, right);
+                    }
+                }
+            }
+            begin = end;
+        }
+    }
+
+    /**
+     * Visits every pixel inside or on the outline made of the first {@code n}
+     * vertices, where vertex (x, y) is the centre of pixel (x, y), clipped to
+     * rows {@code minRow..maxRow - 1} and columns {@code 0..width - 1}. Lines
+     * one pixel wide and single pixels are covered too. The spans of a row do
+     * not overlap.
+     */
+    void fillOutline(float[] xs, float[] ys, int n, int width, int minRow, int maxRow, SpanVisitor visitor) {
+        if (n < 1) return;
+        float top = Float.POSITIVE_INFINITY, bottom = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            top = Math.min(top, ys[i]);
+            bottom = Math.max(bottom, ys[i]);
+        }
+        int firstRow = Math.max(minRow, ceil(top));
+        int lastRow = Math.min(maxRow - 1, floor(bottom));
+        if (firstRow > lastRow) return;
+        int rows = lastRow - firstRow + 1;
+        // Interior: crossings on the pixel-centre rows themselves
+        bucketCrossings(xs, ys, n, firstRow, lastRow, 0f);
+
+        // The outline's own pixels, which the half-open crossings leave out:
+        // each vertex, widened to the whole edge where the edge is horizontal
+        if (runStart.length < rows + 1) runStart = new int[Math.max(rows + 1, 2 * runStart.length)];
+        Arrays.fill(runStart, 0, rows + 1, 0);
+        for (int j = 0; j < n; j++) {
+            if (isPixelRow(ys[j], firstRow, lastRow)) {
+                runStart[(int) ys[j] - firstRow + 1]++;
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            runStart[r + 1] += runStart[r];
+        }
+        int runs = runStart[rows];
+        if (runFrom.length < runs) {
+            runFrom = new int[Math.max(runs, 2 * runFrom.length)];
+            runTo = new int[runFrom.length];
+        }
+        for (int j = 0; j < n; j++) {
+            if (!isPixelRow(ys[j], firstRow, lastRow)) continue;
+            int i = j + 1 < n ? j + 1 : 0;
+            int from, to;
+            if (ys[i] == ys[j]) {
+                from = ceil(Math.min(xs[i], xs[j]));
+                to = floor(Math.max(xs[i], xs[j]));
+            } else {
+                from = ceil(xs[j]);
+                to = floor(xs[j]);
+            }
+            int k = runStart[(int) ys[j] - firstRow]++;
+            runFrom[k] = from;
+            runTo[k] = to;
+        }
+
+        for (int r = 0, begin = 0, runBegin = 0; r < rows; r++) {
+            int end = rowStart[r];
+            int runEnd = runStart[r];
+            int count = 0;
+            if (rowFrom.length < (end - begin) / 2 + (runEnd - runBegin)) {
+                rowFrom = new int[Math.max((end - begin) / 2 + (runEnd - runBegin), 2 * rowFrom.length)];
+                rowTo = new int[rowFrom.length];
+            }
+            sort(crossings, begin, end);
+            for (int k = begin; k + 1 < end; k += 2) {
+                // Pixels whose centre x lies in [left, right]
+                rowFrom[count] = ceil(crossings[k]);
+                rowTo[count++] = floor(crossings[k + 1]);
+            }
+            for (int k = runBegin; k < runEnd; k++) {
+                rowFrom[count] = runFrom[k];
+                rowTo[count++] = runTo[k];
+            }
+            emitMerged(firstRow + r, count, width, visitor);
+            begin = end;
+            runBegin = runEnd;
+        }
+    }
+
+    /**
+     * Buckets the x where each edge crosses the line {@code row + offset}, for
+     * rows {@code firstRow..lastRow}, into {@link #crossings} by row. On return
+     * {@code rowStart[r]} is the end of row {@code firstRow + r}'s crossings
+     * (and the start of the next row's).
+     */
+    private void bucketCrossings(float[] xs, float[] ys, int n, int firstRow, int lastRow, float offset) {
+        int rows = lastRow - firstRow + 1;
+        if (rowStart.length < rows + 1) rowStart = new int[Math.max(rows + 1, 2 * rowStart.length)];
+        Arrays.fill(rowStart, 0, rows + 1, 0);
+
+        // Bucket each edge's crossings by row in two passes (count, then place),
+        // so an edge only visits the rows it spans rather than every row
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            int from = edgeFirstRow(ys[j], ys[i], firstRow, offset);
+            int to = edgeLastRow(ys[j], ys[i], lastRow, offset);
+            for (int y = from; y <= to; y++) {
+                rowStart[y - firstRow + 1]++;
+            }
+        }
+        for (int r = 0; r < rows; r++) {
+            rowStart[r + 1] += rowStart[r];
+        }
+        int total = rowStart[rows];
+        if (crossings.length < total) crossings = new float[Math.max(total, 2 * crossings.length)];
+        for (int i = 0, j = n - 1; i < n; j = i++) {
+            float y0 = ys[j], y1 = ys[i];
+            int from = edgeFirstRow(y0, y1, firstRow, offset);
+            int to = edgeLastRow(y0, y1, lastRow, offset);
+            float slope = (xs[i] - xs[j]) / (y1 - y0);
+            for (int y = from; y <= to; y++) {
+                // rowStart[r] doubles as row r's cursor and ends up at row r + 1's start
+                crossings[rowStart[y - firstRow]++] = xs[j] + (y + offset - y0) * slope;
+            }
+        }
+    }
+
+    /** Sorts the first {@code count} runs of the row buffers and visits their union, clipped to the row. */
+    private void emitMerged(int y, int count, int width, SpanVisitor visitor) {
+        for (int i = 1; i < count; i++) {
+            int from = rowFrom[i], to = rowTo[i];
+            int j = i - 1;
+            while (j >= 0 && rowFrom[j] > from) {
+                rowFrom[j + 1] = rowFrom[j];
+                rowTo[j + 1] = rowTo[j];
+                j--;
+            }
+            rowFrom[j + 1] = from;
+            rowTo[j + 1] = to;
+        }
+        int from = 0, to = -1;
+        boolean open = false;
+        for (int i = 0; i < count; i++) {
+            if (rowFrom[i] > rowTo[i]) continue;
+            if (open && rowFrom[i] <= to + 1) {
+                to = Math.max(to, rowTo[i]);
+                continue;
+            }
+            if (open) emit(y, from, to, width, visitor);
+            from = rowFrom[i];
+            to = rowTo[i];
+            open = true;
+        }
+        if (open) emit(y, from, to, width, visitor);
+    }
+
+    private static void emit(int y, int from, int to, int width, SpanVisitor visitor) {
+        int left = Math.max(0, from);
+        int right = Math.min(width, to + 1);
+        if (left < right) {
+            visitor.span(y, left, right);
+        }
+    }
+
+    /** Whether {@code y} is a whole pixel row within {@code firstRow..lastRow}. */
+    private static boolean isPixelRow(float y, int firstRow, int lastRow) {
+        return y == (int) y && y >= firstRow && y <= lastRow;
+    }
+
+    /**
+     * First row, not above {@code firstRow}, whose line {@code y + offset} the
+     * edge crosses. Half-open in y, so a vertex exactly on that line is counted once.
+     */
+    private static int edgeFirstRow(float y0, float y1, int firstRow, float offset) {
+        return Math.max(firstRow, ceil(Math.min(y0, y1) - offset));
+    }
+
+    private static int edgeLastRow(float y0, float y1, int lastRow, float offset) {
+        return Math.min(lastRow, ceil(Math.max(y0, y1) - offset) - 1);
+    }
+
+    /** {@code (int) Math.ceil(v)} without the double round trip; this runs for every crossing. */
+    private static int ceil(float v) {
+        int i = (int) v;
+        return i < v ? i + 1 : i;
+    }
+
+    private static int floor(float v) {
+        int i = (int) v;
+        return i > v ? i - 1 : i;
+    }
+
+    /** Insertion sort; rows of cell outlines rarely cross more than a handful of edges. */
+    private static void sort(float[] values, int from, int to) {
+        for (int i = from + 1; i < to; i++) {
+            float v = values[i];
+            int j = i - 1;
+            while (j >= from && values[j] > v) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = v;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellStore;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Merges per-tile segmentations into one store of cells in image coordinates.
+ *
+ * Cells found in a tile's overlap are usually found again by the neighbouring
+ * tile, and a cell cut by a tile edge shows up as a partial outline. Cells
+ * from different tiles whose masks overlap by more than half of the smaller
+ * one are treated as the same cell, and only one copy is kept: a copy that
+ * does not touch an inner tile edge wins over a clipped one, then the larger
+ * copy wins. Slivers whose outline encloses no pixels are matched by position.
+ *
+ * Everything works on the tiles' stores: bounding boxes and areas come from
+ * their columns, masks are scan-filled from the decoded vertices only for
+ * cells that may be duplicates, and the kept outlines are copied, shifted to
+ * the tile origin, straight into the result. No ROIs are built.
+ */
+public final class TileStitcher {
+    /** Fraction of the smaller mask two cells must share to be considered the same cell. */
+    public static final double DUPLICATE_OVERLAP = 0.5;
+
+    private static final int BUCKET_SIZE = 64;
+
+    private TileStitcher() {
+    }
+
+    /**
+     * @param tiles        tile rectangles in image coordinates
+     * @param cellsPerTile cells of each tile in tile-local coordinates
+     * @return the kept cells in image coordinates, in tile order and numbered from 1
+     */
+    public static CellStore stitch(List<Rectangle> tiles, List<CellStore> cellsPerTile, int imageWidth, int imageHeight) {
+        if (tiles.size() != cellsPerTile.size()) {
+            throw new IllegalArgumentException(tiles.size() + " tiles but " + cellsPerTile.size() + " results");
+        }
+
+        List<Candidate> candidates = IntStream.range(0, tiles.size())
+                .parallel()
+                .mapToObj(t -> toGlobal(t, tiles.get(t), cellsPerTile.get(t), imageWidth, imageHeight))
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+
+        List<Candidate> ranked = new ArrayList<>(candidates);
+        ranked.sort(Comparator.comparing((Candidate c) -> c.clipped)
+                .thenComparing(c -> -c.area)
+                .thenComparingInt(c -> c.tile)
+                .thenComparingInt(c -> c.index));
+
+        // Greedy suppression: accept in rank order unless an accepted copy from another tile covers it
+        ScanlineFill fill = new ScanlineFill();
+        Map<Long, List<Candidate>> buckets = new HashMap<>();
+        boolean[][] accepted = new boolean[tiles.size()][];
+        for (int t = 0; t < tiles.size(); t++) {
+            accepted[t] = new boolean[cellsPerTile.get(t).size()];
+        }
+        for (Candidate candidate : ranked) {
+            if (!isDuplicate(candidate, buckets, fill)) {
+                accepted[candidate.tile][candidate.index] = true;
+                forEachBucket(candidate.bounds, key -> buckets.computeIfAbsent(key, k -> new ArrayList<>()).add(candidate));
+            }
+        }
+
+        // One builder per tile, joined in tile order (which also renumbers the cells)
+        List<CellStore> parts = IntStream.range(0, tiles.size())
+                .parallel()
+                .mapToObj(t -> shifted(cellsPerTile.get(t), accepted[t], tiles.get(t)))
+                .collect(Collectors.toList());
+        return CellStore.concat(parts);
+    }
+
+    private static List<Candidate> toGlobal(int tile, Rectangle region, CellStore cells, int imageWidth, int imageHeight) {
+        // Only edges shared with a neighbouring tile clip cells; the image border does not
+        boolean innerLeft = region.x > 0;
+        boolean innerTop = region.y > 0;
+        boolean innerRight = region.x + region.width < imageWidth;
+        boolean innerBottom = region.y + region.height < imageHeight;
+
+        List<Candidate> result = new ArrayList<>(cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            boolean clipped = (innerLeft && cells.getMinX(i) <= 0)
+                    || (innerTop && cells.getMinY(i) <= 0)
+                    || (innerRight && cells.getMaxX(i) >= region.width - 1)
+                    || (innerBottom && cells.getMaxY(i) >= region.height - 1);
+            Rectangle bounds = cells.getBounds(i);
+            bounds.translate(region.x, region.y);
+            result.add(new Candidate(cells, tile, i, region.x, region.y, clipped, bounds));
+        }
+        return result;
+    }
+
+    /** The accepted cells of one tile with their outlines moved from tile to image coordinates. */
+    private static CellStore shifted(CellStore cells, boolean[] accepted, Rectangle region) {
+        CellStore.Builder builder = new CellStore.Builder();
+        float[] xs = new float[64], ys = new float[64];
+        for (int i = 0; i < cells.size(); i++) {
+            if (!accepted[i]) continue;
+            int n = cells.getVertexCount(i);
+            if (xs.length < n) {
+                xs = new float[Math.max(n, 2 * xs.length)];
+                ys = new float[xs.length];
+            }
+            cells.getVertices(i, xs, ys);
+            for (int v = 0; v < n; v++) {
+                xs[v] += region.x;
+                ys[v] += region.y;
+            }
+            builder.add(xs, ys, n);
+        }
+        return builder.build();
+    }
+
+    private static boolean isDuplicate(Candidate candidate, Map<Long, List<Candidate>> buckets, ScanlineFill fill) {
+        boolean[] duplicate = {false};
+        forEachBucket(candidate.bounds, key -> {
+            if (duplicate[0]) return;
+            List<Candidate> bucket = buckets.get(key);
+            if (bucket == null) return;
+            for (Candidate other : bucket) {
+                if (other.tile != candidate.tile && sameCell(candidate, other, fill)) {
+                    duplicate[0] = true;
+                    return;
+                }
+            }
+        });
+        return duplicate[0];
+    }
+
+    private static boolean sameCell(Candidate a, Candidate b, ScanlineFill fill) {
+        // Outlines one pixel wide (slivers cut off by a tile edge) have empty masks; match those by position
+        if (a.maskArea(fill) == 0 || b.maskArea(fill) == 0) {
+            Candidate thin = a.maskArea(fill) == 0 ? a : b;
+            Candidate other = thin == a ? b : a;
+            Rectangle near = new Rectangle(other.bounds);
+            near.grow(1, 1);
+            return near.contains(thin.centerX(), thin.centerY());
+        }
+        return a.bounds.intersects(b.bounds) && overlapFraction(a, b, fill) > DUPLICATE_OVERLAP;
+    }
+
+    /** Shared mask pixels as a fraction of the smaller of the two masks. */
+    private static double overlapFraction(Candidate a, Candidate b, ScanlineFill fill) {
+        Rectangle shared = a.bounds.intersection(b.bounds);
+        boolean[] maskA = a.mask(fill);
+        boolean[] maskB = b.mask(fill);
+        int common = 0;
+        for (int y = shared.y; y < shared.y + shared.height; y++) {
+            int rowA = (y - a.bounds.y) * a.bounds.width - a.bounds.x;
+            int rowB = (y - b.bounds.y) * b.bounds.width - b.bounds.x;
+            for (int x = shared.x; x < shared.x + shared.width; x++) {
+                if (maskA[rowA + x] && maskB[rowB + x]) {
+                    common++;
+                }
+            }
+        }
+        return (double) common / Math.min(a.maskArea(fill), b.maskArea(fill));
+    }
+
+    private interface BucketVisitor {
+        void visit(long key);
+    }
+
+    private static void forEachBucket(Rectangle bounds, BucketVisitor visitor) {
+        int x0 = Math.floorDiv(bounds.x, BUCKET_SIZE);
+        int y0 = Math.floorDiv(bounds.y, BUCKET_SIZE);
+        int x1 = Math.floorDiv(bounds.x + bounds.width, BUCKET_SIZE);
+        int y1 = Math.floorDiv(bounds.y + bounds.height, BUCKET_SIZE);
+        for (int by = y0; by <= y1; by++) {
+            for (int bx = x0; bx <= x1; bx++) {
+                visitor.visit(((long) by << 32) | (bx & 0xFFFFFFFFL));
+            }
+        }
+    }
+
+    /** A tile's cell in image coordinates; its mask is only filled when it is compared with another cell. */
+    private static final class Candidate {
+        final CellStore cells;
+        final int tile;
+        final int index;
+        final int offsetX;
+        final int offsetY;
+        final boolean clipped;
+        final double area;
+        final Rectangle bounds;
+        // Row-major over bounds, true where the pixel centre is inside the outline
+        private boolean[] mask;
+        private int maskArea = -1;
+
+        Candidate(CellStore cells, int tile, int index, int offsetX, int offsetY, boolean clipped, Rectangle bounds) {
+            this.cells = cells;
+            this.tile = tile;
+            this.index = index;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            this.clipped = clipped;
+            this.area = cells.getArea(index);
+            this.bounds = bounds;
+        }
+
+        double centerX() {
+            return cells.getX(index) + offsetX;
+        }
+
+        double centerY() {
+            return cells.getY(index) + offsetY;
+        }
+
+        boolean[] mask(ScanlineFill fill) {
+            if (mask == null) {
+                int n = cells.getVertexCount(index);
+                float[] xs = new float[n], ys = new float[n];
+                cells.getVertices(index, xs, ys);
+                // Tile-local vertices relative to the box's corner
+                int localX = bounds.x - offsetX, localY = bounds.y - offsetY;
+                for (int v = 0; v < n; v++) {
+                    xs[v] -= localX;
+                    ys[v] -= localY;
+                }
+                boolean[] m = new boolean[bounds.width * bounds.height];
+                int width = bounds.width;
+                int[] count = {0};
+                fill.fill(xs, ys, n, width, 0, bounds.height, (y, fromX, toX) -> {
+                    Arrays.fill(m, y * width + fromX, y * width + toX, true);
+                    count[0] += toX - fromX;
+                });
+                mask = m;
+                maskArea = count[0];
+            }
+            return mask;
+        }
+
+        int maskArea(ScanlineFill fill) {
+            if (maskArea < 0) mask(fill);
+            return maskArea;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+package com.cellpose.backend;
+
+import com.cellpose.diagnostics.PipelineMetrics;
+import com.cellpose.model.SegmentationResult;
+import org.apache.hc.client5.http.classic.methods.HttpDelete;
+import org.apache.hc.client5.http.classic.methods.HttpGet;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.entity.mime.ContentBody;
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.client5.http.impl.DefaultHttpRequestRetryStrategy;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Single HTTP client for all backend traffic. Connections are pooled and kept
+ * alive between requests, so a batch of images reuses the same sockets instead
+ * of opening one per request. Idempotent requests (GET) are retried on I/O
+ * failures; POSTs are never retried on I/O failures.
+ *
+ * A busy backend answers 429 with a Retry-After hint. Any request, including
+ * uploads, is then queued on the client and re-sent after that delay, for up
+ * to {@link #DEFAULT_MAX_BUSY_RETRIES} attempts, before the 429 is surfaced.
+ *
+ * Wherever a base URL is taken, a comma- or space-separated list of backends
+ * may be given instead. Segmentation requests are then load balanced by an
+ * {@link EndpointRouter}, which handles 429 and 503 itself by moving on to
+ * another backend; other calls go to the first backend.
+ */
+public class BackendClient implements AutoCloseable {
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 5_000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 30_000;
+    public static final int DEFAULT_SEGMENT_TIMEOUT_MS = 660_000;
+    public static final int DEFAULT_MAX_PER_ROUTE = 8;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_MAX_BUSY_RETRIES = 30;
+    /** Upper bound on one Retry-After wait, whatever the backend asks for. */
+    public static final int MAX_BUSY_WAIT_SECONDS = 60;
+
+    // Context attribute that turns off the retries on 429 and 503 for one request
+    private static final String NO_STATUS_RETRY = "cellpose.noStatusRetry";
+
+    /** Reads a successful response body. The stream is closed by the client afterwards. */
+    public interface BodyReader<T> {
+        T read(InputStream in) throws IOException;
+    }
+
+    /** Receives the data of one server-sent event; return false to stop reading the stream. */
+    public interface EventListener {
+        boolean onEvent(String data) throws IOException;
+    }
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final RequestConfig segmentRequestConfig;
+    private final Map<String, EndpointRouter> routers = new ConcurrentHashMap<>();
+
+    public BackendClient() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS, DEFAULT_READ_TIMEOUT_MS, DEFAULT_SEGMENT_TIMEOUT_MS,
+                DEFAULT_MAX_PER_ROUTE, DEFAULT_MAX_RETRIES);
+    }
+
+    public BackendClient(int connectTimeoutMs, int readTimeoutMs, int segmentTimeoutMs, int maxPerRoute, int maxRetries) {
+        this.connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofMilliseconds(connectTimeoutMs))
+                        .setSocketTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        .setValidateAfterInactivity(TimeValue.ofSeconds(10))
+                        .build())
+                .setMaxConnPerRoute(maxPerRoute)
+                .setMaxConnTotal(maxPerRoute * 4)
+                .build();
+
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(Timeout.ofMilliseconds(readTimeoutMs))
+                        .build())
+                .setRetryStrategy(new BackpressureRetryStrategy(maxRetries, DEFAULT_MAX_BUSY_RETRIES))
+                .evictIdleConnections(TimeValue.ofMinutes(1))
+                .build();
+
+        // Segmentation responses can take minutes on large images
+        this.segmentRequestConfig = RequestConfig.custom()
+                .setResponseTimeout(Timeout.ofMilliseconds(segmentTimeoutMs))
+                .build();
+    }
+
+    public <T> T get(String url, BodyReader<T> reader) throws IOException {
+        return execute(new HttpGet(url), reader);
+    }
+
+    public String getString(String url) throws IOException {
+        return get(url, in -> new String(readAll(in), StandardCharsets.UTF_8));
+    }
+
+    /** POSTs a (typically multipart) entity to a long-running endpoint such as /segment. */
+    public <T> T post(String url, HttpEntity entity, BodyReader<T> reader) throws IOException {
+        HttpPost post = new HttpPost(url);
+        post.setEntity(entity);
+        return post(post, reader);
+    }
+
+    <T> T post(HttpPost post, BodyReader<T> reader) throws IOException {
+        return post(post, reader, true);
+    }
+
+    /**
+     * With {@code retryBusy} false, a 429 or 503 is thrown at once as a
+     * {@link BackendException} instead of being waited out on the same
+     * backend, for callers that can send the request elsewhere.
+     */
+    <T> T post(HttpPost post, BodyReader<T> reader, boolean retryBusy) throws IOException {
+        post.setConfig(segmentRequestConfig);
+        if (post.getEntity() != null) {
+            post.setEntity(new TimedEntity(post.getEntity()));
+        }
+        HttpClientContext context = HttpClientContext.create();
+        if (!retryBusy) {
+            context.setAttribute(NO_STATUS_RETRY, Boolean.TRUE);
+        }
+        return execute(post, context, reader);
+    }
+
+    /** Uploads one image to {@code /segment} and decodes whichever response format comes back. */
+    public SegmentationResult segment(String baseUrl, SegmentationParams params, ContentBody image) throws IOException {
+        EndpointRouter router = router(baseUrl);
+        if (router != null) {
+            return router.segment(params, image);
+        }
+        String url = endpoint(baseUrl, "/segment") + "?" + params.toQueryString();
+        HttpEntity entity = MultipartEntityBuilder.create()
+                .addPart("image", image)
+                .build();
+        return post(url, entity, RoiResponseDecoder::decodeResult);
+    }
+
+    /**
+     * Reads a {@code text/event-stream} response, handing each event's data
+     * (multi-line data joined with newlines) to {@code listener} until the
+     * server ends the stream or the listener returns false.
+     */
+    public void events(String url, EventListener listener) throws IOException {
+        HttpGet get = new HttpGet(url);
+        get.setConfig(segmentRequestConfig);
+        get.setHeader("Accept", "text/event-stream");
+        execute(get, in -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (data.length() > 0 && !listener.onEvent(data.toString())) {
+                        break;
+                    }
+                    data.setLength(0);
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) data.append('\n');
+                    data.append(line.startsWith("data: ") ? line.substring(6) : line.substring(5));
+                }
+                // Comments (keep-alives), ids and event names are not used
+            }
+            return null;
+        });
+    }
+
+    public String delete(String url) throws IOException {
+        return execute(new HttpDelete(url), in -> new String(readAll(in), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The least loaded healthy backend of a list, for calls that must stay on
+     * one backend (such as a job and its events); a single URL is returned as is.
+     */
+    public String pick(String baseUrl) {
+        EndpointRouter router = router(baseUrl);
+        return router != null ? router.pick() : baseUrl;
+    }
+
+    /** The router for a list of backends, created on first use; null for a single URL. */
+    private EndpointRouter router(String baseUrl) {
+        List<String> urls = endpoints(baseUrl);
+        if (urls.size() < 2) return null;
+        return routers.computeIfAbsent(String.join(",", urls), key -> new EndpointRouter(this, urls));
+    }
+
+    /** Splits a comma- or whitespace-separated list of backend URLs. */
+    public static List<String> endpoints(String baseUrls) {
+        List<String> urls = new ArrayList<>();
+        if (baseUrls == null) return urls;
+        for (String url : baseUrls.split("[,\\s]+")) {
+            if (!url.isEmpty()) urls.add(url);
+        }
+        return urls;
+    }
+
+    /**
+     * Joins a user-entered base URL and an endpoint path without doubling
+     * slashes. Of a list of backends, the first is used.
+     */
+    public static String endpoint(String baseUrl, String path) {
+        if (baseUrl == null) return path;
+        List<String> urls = endpoints(baseUrl);
+        String trimmed = urls.isEmpty() ? "" : urls.get(0);
+        if (trimmed.endsWith("/")) {
+            trimmed = trimmed.substring(0, trimmed.length() - 1);
+        }
+        if (path != null && !path.startsWith("/")) {
+            return trimmed + "/" + path;
+        }
+        return trimmed + path;
+    }
+
+    /**
+     * Responses carrying the backend's {@code Server-Timing} header are
+     * segmentation results; for those the wait for the response and its
+     * decoding are recorded in {@link PipelineMetrics} next to the backend's
+     * own stage timings.
+     */
+    private <T> T execute(ClassicHttpRequest request, BodyReader<T> reader) throws IOException {
+        return execute(request, HttpClientContext.create(), reader);
+    }
+
+    private <T> T execute(ClassicHttpRequest request, HttpClientContext context, BodyReader<T> reader) throws IOException {
+        long sent = System.nanoTime();
+        return httpClient.execute(request, context, response -> {
+            long received = System.nanoTime();
+            int statusCode = response.getCode();
+            HttpEntity entity = response.getEntity();
+            if (statusCode < 200 || statusCode >= 300) {
+                String message = entity != null ? EntityUtils.toString(entity) : response.getReasonPhrase();
+                Header retryAfter = response.getFirstHeader("Retry-After");
+                throw new BackendException(statusCode, message, retryAfter != null ? parseSeconds(retryAfter.getValue()) : -1);
+            }
+            Header serverTiming = response.getFirstHeader("Server-Timing");
+            if (serverTiming != null) {
+                PipelineMetrics.recordServerTiming(serverTiming.getValue());
+                HttpEntity body = request.getEntity();
+                long uploaded = body instanceof TimedEntity ? ((TimedEntity) body).writtenAt : 0;
+                PipelineMetrics.record(PipelineMetrics.WAIT, received - (uploaded != 0 ? uploaded : sent));
+            }
+            T result;
+            if (entity == null) {
+                result = reader.read(new ByteArrayInputStream(new byte[0]));
+            } else {
+                try (InputStream in = entity.getContent()) {
+                    result = reader.read(in);
+                }
+            }
+            if (serverTiming != null) {
+                PipelineMetrics.recordSince(PipelineMetrics.RESPONSE, received);
+            }
+            return result;
+        });
+    }
+
+    /** A Retry-After value in delay-seconds form; -1 for an HTTP date or garbage. */
+    private static int parseSeconds(String value) {
+        try {
+            return Math.max(0, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /** Records how long writing (uploading) the wrapped body takes, each time it is written. */
+    private static final class TimedEntity extends HttpEntityWrapper {
+        // System.nanoTime() when the last write finished; 0 until then
+        volatile long writtenAt;
+
+        TimedEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long start = System.nanoTime();
+            super.writeTo(out);
+            writtenAt = System.nanoTime();
+            PipelineMetrics.record(PipelineMetrics.UPLOAD, writtenAt - start);
+        }
+    }
+
+    /**
+     * The default strategy (I/O retries for idempotent requests, 503 retries),
+     * plus patient retries on 429 that wait as long as Retry-After says.
+     * Multipart uploads have a known length and are therefore repeatable.
+     * Requests marked with {@link #NO_STATUS_RETRY} get the I/O retries only.
+     */
+    private static final class BackpressureRetryStrategy extends DefaultHttpRequestRetryStrategy {
+        private final int maxBusyRetries;
+
+        BackpressureRetryStrategy(int maxRetries, int maxBusyRetries) {
+            super(maxRetries, TimeValue.ofMilliseconds(500));
+            this.maxBusyRetries = maxBusyRetries;
+        }
+
+        @Override
+        public boolean retryRequest(HttpResponse response, int execCount, HttpContext context) {
+            if (context != null && Boolean.TRUE.equals(context.getAttribute(NO_STATUS_RETRY))) {
+                return false;
+            }
+            if (response.getCode() == HttpStatus.SC_TOO_MANY_REQUESTS) {
+                return execCount <= maxBusyRetries;
+            }
+            return super.retryRequest(response, execCount, context);
+        }
+
+        @Override
+        public TimeValue getRetryInterval(HttpResponse response, int execCount, HttpContext context) {
+            TimeValue interval = super.getRetryInterval(response, execCount, context);
+            long cap = TimeValue.ofSeconds(MAX_BUSY_WAIT_SECONDS).toMilliseconds();
+            return interval.toMilliseconds() > cap ? TimeValue.ofSeconds(MAX_BUSY_WAIT_SECONDS) : interval;
+        }
+    }
+
+    @Override
+    public void close() {
+        for (EndpointRouter router : routers.values()) {
+            router.close();
+        }
+        try {
+            httpClient.close();
+        } catch (IOException ignored) {
+        }
+        connectionManager.close();
+    }
+}
@@ -0,0 +1,31 @@
+package com.cellpose.backend;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the backend answers with a non-2xx status. The message is the
+ * response body, which the backend uses for human-readable errors.
+ */
+public class BackendException extends IOException {
+    private final int statusCode;
+    private final int retryAfterSeconds;
+
+    public BackendException(int statusCode, String message) {
+        this(statusCode, message, -1);
+    }
+
+    public BackendException(int statusCode, String message, int retryAfterSeconds) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** The Retry-After hint of a busy (429) or unavailable (503) backend in seconds; -1 if none was sent. */
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -0,0 +1,218 @@
+package com.cellpose.backend;
+
+import com.cellpose.diagnostics.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Keeps an extracted copy of the bundled backend in sync with the plugin.
+ *
+ * Every bundled file is described by a signature: its size and CRC-32 from
+ * the jar's central directory (no decompression needed), or its size and
+ * modification time when running from a class folder. The signatures of the
+ * last extraction are stored in {@value #MANIFEST_NAME} together with a
+ * version stamp hashed over all of them. If the stamps match, nothing is
+ * touched; otherwise only new or changed files are extracted, in parallel,
+ * and files that are no longer bundled are deleted.
+ */
+public class BackendExtractor {
+    public static final String MANIFEST_NAME = ".manifest";
+    private static final String LEGACY_MARKER = ".extracted";
+    private static final String VERSION_PREFIX = "version\t";
+
+    private final String resourceRoot;
+    private final Path targetDir;
+
+    public BackendExtractor(String resourceRoot, Path targetDir) {
+        this.resourceRoot = resourceRoot;
+        this.targetDir = targetDir;
+    }
+
+    /** Brings the target folder up to date and returns the relative paths that were (re)written. */
+    public Set<String> sync() throws IOException {
+        URL resourceUrl = getClass().getClassLoader().getResource(resourceRoot);
+        if (resourceUrl == null) {
+            throw new IOException("Backend resources not found: " + resourceRoot);
+        }
+
+        if ("jar".equalsIgnoreCase(resourceUrl.getProtocol())) {
+            JarURLConnection jarConnection = (JarURLConnection) resourceUrl.openConnection();
+            jarConnection.setUseCaches(false);
+            try (JarFile jarFile = jarConnection.getJarFile()) {
+                Map<String, String> bundled = new TreeMap<>();
+                Map<String, JarEntry> entries = new TreeMap<>();
+                Enumeration<JarEntry> all = jarFile.entries();
+                while (all.hasMoreElements()) {
+                    JarEntry entry = all.nextElement();
+                    String name = entry.getName();
+                    if (entry.isDirectory() || !name.startsWith(resourceRoot + "/")) continue;
+                    String relative = name.substring(resourceRoot.length() + 1);
+                    bundled.put(relative, entry.getSize() + ":" + Long.toHexString(entry.getCrc()));
+                    entries.put(relative, entry);
+                }
+                return sync(bundled, relative -> jarFile.getInputStream(entries.get(relative)));
+            }
+        } else if ("file".equalsIgnoreCase(resourceUrl.getProtocol())) {
+            Path sourceDir;
+            try {
+                sourceDir = Paths.get(resourceUrl.toURI());
+            } catch (Exception e) {
+                throw new IOException("Failed to resolve backend resource path.", e);
+            }
+            Map<String, String> bundled = new TreeMap<>();
+            Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String relative = sourceDir.relativize(file).toString().replace('\\', '/');
+                    bundled.put(relative, attrs.size() + ":" + Long.toHexString(attrs.lastModifiedTime().toMillis()));
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return sync(bundled, relative -> Files.newInputStream(sourceDir.resolve(relative)));
+        }
+        throw new IOException("Unsupported resource protocol: " + resourceUrl.getProtocol());
+    }
+
+    private interface Source {
+        InputStream open(String relative) throws IOException;
+    }
+
+    private Set<String> sync(Map<String, String> bundled, Source source) throws IOException {
+        String version = stamp(bundled);
+        Path manifestPath = targetDir.resolve(MANIFEST_NAME);
+        Map<String, String> extracted = new TreeMap<>();
+        String extractedVersion = readManifest(manifestPath, extracted);
+        if (version.equals(extractedVersion)) {
+            return new HashSet<>();
+        }
+
+        List<String> changed = new ArrayList<>();
+        for (Map.Entry<String, String> entry : bundled.entrySet()) {
+            if (!entry.getValue().equals(extracted.get(entry.getKey()))
+                    || !Files.exists(targetDir.resolve(entry.getKey()))) {
+                changed.add(entry.getKey());
+            }
+        }
+        Log.info("[Cellpose Backend] Updating " + changed.size() + " of " + bundled.size() + " backend files...");
+
+        Files.createDirectories(targetDir);
+        // Until the new manifest is written, an interrupted update is redone on the next start
+        Files.deleteIfExists(manifestPath);
+        Files.deleteIfExists(targetDir.resolve(LEGACY_MARKER));
+        extractAll(changed, source);
+
+        for (String relative : extracted.keySet()) {
+            if (!bundled.containsKey(relative)) {
+                Files.deleteIfExists(targetDir.resolve(relative));
+            }
+        }
+        writeManifest(manifestPath, version, bundled);
+        return new HashSet<>(changed);
+    }
+
+    private void extractAll(List<String> changed, Source source) throws IOException {
+        int threads = Math.max(1, Math.min(changed.size(), Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "cellpose-extract");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>(changed.size());
+            for (String relative : changed) {
+                futures.add(executor.submit(() -> {
+                    Path destPath = targetDir.resolve(relative);
+                    Files.createDirectories(destPath.getParent());
+                    try (InputStream in = source.open(relative)) {
+                        Files.copy(in, destPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Backend extraction interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Backend extraction failed", cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String readManifest(Path manifestPath, Map<String, String> into) throws IOException {
+        if (!Files.exists(manifestPath)) return null;
+        String version = null;
+        for (String line : Files.readAllLines(manifestPath, StandardCharsets.UTF_8)) {
+            if (line.startsWith(VERSION_PREFIX)) {
+                version = line.substring(VERSION_PREFIX.length());
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                into.put(line.substring(tab + 1), line.substring(0, tab));
+            }
+        }
+        return version;
+    }
+
+    private static void writeManifest(Path manifestPath, String version, Map<String, String> bundled) throws IOException {
+        List<String> lines = new ArrayList<>(bundled.size() + 1);
+        lines.add(VERSION_PREFIX + version);
+        for (Map.Entry<String, String> entry : bundled.entrySet()) {
+            lines.add(entry.getValue() + "\t" + entry.getKey());
+        }
+        Path temp = manifestPath.resolveSibling(MANIFEST_NAME + ".tmp");
+        Files.write(temp, lines, StandardCharsets.UTF_8);
+        Files.move(temp, manifestPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String stamp(Map<String, String> bundled) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (Map.Entry<String, String> entry : bundled.entrySet()) {
+                digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(entry.getValue().getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) '\n');
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
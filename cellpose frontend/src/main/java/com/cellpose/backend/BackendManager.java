@@ -1,35 +1,42 @@
 package com.cellpose.backend;
 
-import ij.IJ;
+import com.cellpose.diagnostics.Log;
+import ij.Prefs;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
 import java.net.ServerSocket;
-import java.net.URL;
-import java.nio.file.FileVisitResult;
+import java.net.URLEncoder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardCopyOption;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.net.JarURLConnection;
 import java.nio.charset.StandardCharsets;
 
 public class BackendManager {
     private static final String RESOURCE_ROOT = "backend";
-    private static final String EXTRACT_MARKER = ".extracted";
+    /** Printed by start_backend.py once the server accepts connections. */
+    private static final String READY_LINE = "CELLPOSE_BACKEND_READY";
+    private static final long READY_TIMEOUT_MS = 60_000;
 
+    private static final String PREF_MODEL_TYPE = "cellpose.lastModelType";
+    private static final String PREF_MODEL_NAME = "cellpose.lastModelName";
+    private static final String PREF_USE_GPU = "cellpose.lastUseGpu";
+
+    private final BackendClient client;
     private Process process;
     private String backendUrl;
     private Path backendDir;
 
+    /** {@code client} is the shared pooled client, used here for the warmup request. */
+    public BackendManager(BackendClient client) {
+        this.client = client;
+    }
+
     public boolean isBundledBackendAvailable() {
         try {
             return getClass().getClassLoader().getResource(RESOURCE_ROOT) != null;
@@ -39,6 +46,45 @@ public class BackendManager {
     }
 
     public synchronized String start() throws IOException {
+        return start(null, null, false);
+    }
+
+    /**
+     * Starts the bundled backend on a background thread, warming the model
+     * used last (see {@link #rememberModel}), or the built-in SAM model. A later {@link #start} call
+     * waits for this one instead of launching a second process.
+     */
+    public void prestart() {
+        if (!isBundledBackendAvailable()) return;
+        // Without a previous run, warm the panel's default selection
+        String modelType = Prefs.get(PREF_MODEL_TYPE, "CellposeSAM");
+        String modelName = Prefs.get(PREF_MODEL_NAME, "cpsam");
+        boolean useGpu = Prefs.get(PREF_USE_GPU, false);
+        Thread t = new Thread(() -> {
+            try {
+                start(modelType, modelName, useGpu);
+            } catch (IOException e) {
+                Log.warn("[Cellpose Backend] Background start failed: " + e.getMessage());
+            }
+        }, "cellpose-backend-prestart");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** Records the model of a segmentation run so the next session's {@link #prestart} warms it. */
+    public static void rememberModel(String modelType, String modelName, boolean useGpu) {
+        if (modelType == null || modelName == null) return;
+        Prefs.set(PREF_MODEL_TYPE, modelType);
+        Prefs.set(PREF_MODEL_NAME, modelName);
+        Prefs.set(PREF_USE_GPU, useGpu);
+    }
+
+    /**
+     * Starts the bundled backend and, if a model is given, asks it to load that
+     * model into its worker pool in the background so the first segmentation
+     * does not pay the model load cost.
+     */
+    public synchronized String start(String warmModelType, String warmModelName, boolean warmUseGpu) throws IOException {
         if (process != null && process.isAlive()) {
             return backendUrl;
         }
@@ -68,8 +114,18 @@ public class BackendManager {
         pb.environment().put("PYTHONUNBUFFERED", "1");
         process = pb.start();
 
-        startLogReader(process);
-        waitForBackendReady(backendUrl, 30_000);
+        CountDownLatch ready = new CountDownLatch(1);
+        startLogReader(process, ready);
+        try {
+            waitForBackendReady(process, ready, READY_TIMEOUT_MS);
+        } catch (IOException e) {
+            stop();
+            throw e;
+        }
+
+        if (warmModelType != null && warmModelName != null) {
+            requestWarmup(backendUrl, warmModelType, warmModelName, warmUseGpu);
+        }
 
         return backendUrl;
     }
@@ -93,12 +149,15 @@ public class BackendManager {
         }
     }
 
-    private void startLogReader(Process process) {
+    private void startLogReader(Process process, CountDownLatch ready) {
         Thread t = new Thread(() -> {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    IJ.log("[Cellpose Backend] " + line);
+                    if (line.startsWith(READY_LINE)) {
+                        ready.countDown();
+                    }
+                    Log.log(levelOf(line), "[Cellpose Backend] " + line);
                 }
             } catch (IOException ignored) {
             }
@@ -107,30 +166,50 @@ public class BackendManager {
         t.start();
     }
 
-    private void waitForBackendReady(String url, long timeoutMs) throws IOException {
-        long start = System.currentTimeMillis();
-        IOException lastError = null;
-        while (System.currentTimeMillis() - start < timeoutMs) {
-            try {
-                HttpURLConnection conn = (HttpURLConnection) new URL(url + "/getModels").openConnection();
-                conn.setConnectTimeout(1_500);
-                conn.setReadTimeout(1_500);
-                conn.setRequestMethod("GET");
-                int code = conn.getResponseCode();
-                if (code >= 200 && code < 300) {
-                    return;
+    /**
+     * Routine backend output (INFO records and uvicorn's per-request access
+     * lines) is only logged at debug level; warnings, errors and tracebacks
+     * are always shown.
+     */
+    private static Log.Level levelOf(String line) {
+        return line.startsWith("INFO") || line.contains("| INFO |") ? Log.Level.DEBUG : Log.Level.INFO;
+    }
+
+    /** Waits for the backend's ready line, failing early if the process exits first. */
+    private void waitForBackendReady(Process process, CountDownLatch ready, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            while (!ready.await(250, TimeUnit.MILLISECONDS)) {
+                if (!process.isAlive()) {
+                    throw new IOException("Backend exited with code " + process.exitValue() + " before it was ready.");
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Backend did not become ready in time.");
                 }
-            } catch (IOException e) {
-                lastError = e;
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the backend.", e);
+        }
+    }
+
+    private void requestWarmup(String url, String modelType, String modelName, boolean useGpu) {
+        Thread t = new Thread(() -> {
             try {
-                Thread.sleep(500);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+                String query = "?model_type=" + URLEncoder.encode(modelType, "UTF-8") +
+                        "&model_name=" + URLEncoder.encode(modelName, "UTF-8") +
+                        "&use_gpu=" + useGpu;
+                // Loading a model can take minutes, so this goes with the long segmentation timeout
+                client.post(BackendClient.endpoint(url, "/warmup") + query, null, in -> null);
+                Log.info("[Cellpose Backend] Warmed up " + modelType + "/" + modelName);
+            } catch (BackendException e) {
+                Log.warn("[Cellpose Backend] Warmup of " + modelType + "/" + modelName + " failed with status " + e.getStatusCode());
+            } catch (IOException e) {
+                Log.warn("[Cellpose Backend] Warmup failed: " + e.getMessage());
             }
-        }
-        throw new IOException("Backend did not become ready in time.", lastError);
+        }, "cellpose-backend-warmup");
+        t.setDaemon(true);
+        t.start();
     }
 
     private int findFreePort() throws IOException {
@@ -141,20 +220,15 @@ public class BackendManager {
 
     private Path ensureBackendExtracted() throws IOException {
         Path targetDir = Paths.get(System.getProperty("user.home"), ".cellpose", "backend");
-        Path marker = targetDir.resolve(EXTRACT_MARKER);
-
-        if (Files.exists(marker)) {
-            return targetDir;
+        // Only files that changed since the last extraction are rewritten, and only their fix-ups re-run
+        Set<String> changed = new BackendExtractor(RESOURCE_ROOT, targetDir).sync();
+        if (!changed.isEmpty()) {
+            fixVenvPaths(targetDir, changed);
         }
-
-        Files.createDirectories(targetDir);
-        extractResourceDirectory(RESOURCE_ROOT, targetDir);
-        fixVenvPaths(targetDir);
-        Files.write(marker, "ok".getBytes(StandardCharsets.UTF_8));
         return targetDir;
     }
 
-    private void fixVenvPaths(Path backendDir) {
+    private void fixVenvPaths(Path backendDir, Set<String> changed) {
         // Fix pyvenv.cfg files to point to the local py_standalone instead of build paths
         boolean isWindows = System.getProperty("os.name").toLowerCase().contains("win");
         String pyHome;
@@ -164,7 +238,13 @@ public class BackendManager {
             pyHome = backendDir.resolve("py_standalone").resolve("python").toString();
         }
 
+        // A new standalone interpreter must replace the venv copies of it, even ones that still look like binaries
+        boolean interpreterChanged = touches(changed, "py_standalone/");
         for (String venvName : new String[]{"venv_v3", "venv_v4"}) {
+            // Fix-ups rewrite extracted files, so a venv none of whose files were rewritten is already fixed
+            if (!touches(changed, venvName + "/") && !interpreterChanged) {
+                continue;
+            }
             Path cfgPath = backendDir.resolve(venvName).resolve("pyvenv.cfg");
             if (Files.exists(cfgPath)) {
                 try {
@@ -178,28 +258,28 @@ public class BackendManager {
                         }
                     }
                     Files.write(cfgPath, newLines, StandardCharsets.UTF_8);
-                    IJ.log("Fixed pyvenv.cfg for " + venvName);
+                    Log.debug("Fixed pyvenv.cfg for " + venvName);
                 } catch (IOException e) {
-                    IJ.log("Warning: Could not fix pyvenv.cfg for " + venvName + ": " + e.getMessage());
+                    Log.warn("Warning: Could not fix pyvenv.cfg for " + venvName + ": " + e.getMessage());
                 }
             }
 
             // On Unix, also fix shebang in bin/python3 script
             if (!isWindows) {
-                fixUnixPythonScript(backendDir, venvName, pyHome);
+                fixUnixPythonScript(backendDir, venvName, pyHome, interpreterChanged);
             }
         }
     }
 
-    private void fixUnixPythonScript(Path backendDir, String venvName, String pyHome) {
+    private void fixUnixPythonScript(Path backendDir, String venvName, String pyHome, boolean interpreterChanged) {
         Path binDir = backendDir.resolve(venvName).resolve("bin");
         Path pyStandalone = backendDir.resolve("py_standalone").resolve("python").resolve("bin").resolve("python3");
         Path venvPython3 = binDir.resolve("python3");
         Path venvPython = binDir.resolve("python");
 
         // Ensure venv python binaries are real binaries (symlinks are lost in JAR)
-        ensurePythonBinary(venvPython3, pyStandalone, venvName + "/bin/python3");
-        ensurePythonBinary(venvPython, venvPython3, venvName + "/bin/python");
+        ensurePythonBinary(venvPython3, pyStandalone, venvName + "/bin/python3", interpreterChanged);
+        ensurePythonBinary(venvPython, venvPython3, venvName + "/bin/python", interpreterChanged);
 
         // Fix sh shims like uvicorn/pip that exec a hardcoded python path
         String[] shims = {"uvicorn", "pip", "pip3"};
@@ -212,28 +292,28 @@ public class BackendManager {
                         lines.set(1, "'''exec' \"" + venvPython.toString() + "\" \"$0\" \"$@\"");
                         Files.write(shimPath, lines, StandardCharsets.UTF_8);
                         shimPath.toFile().setExecutable(true, false);
-                        IJ.log("Fixed shim in " + venvName + "/bin/" + shim);
+                        Log.debug("Fixed shim in " + venvName + "/bin/" + shim);
                     }
                 } catch (IOException e) {
-                    IJ.log("Warning: Could not fix shim for " + venvName + "/bin/" + shim + ": " + e.getMessage());
+                    Log.warn("Warning: Could not fix shim for " + venvName + "/bin/" + shim + ": " + e.getMessage());
                 }
             }
         }
     }
 
-    private void ensurePythonBinary(Path target, Path source, String label) {
+    private void ensurePythonBinary(Path target, Path source, String label, boolean force) {
         try {
             if (!Files.exists(source)) {
                 return;
             }
-            if (!Files.exists(target) || looksLikeText(target)) {
+            if (force || !Files.exists(target) || looksLikeText(target)) {
                 Files.createDirectories(target.getParent());
                 Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
                 target.toFile().setExecutable(true, false);
-                IJ.log("Rebuilt python binary: " + label);
+                Log.debug("Rebuilt python binary: " + label);
             }
         } catch (IOException e) {
-            IJ.log("Warning: Could not rebuild python binary " + label + ": " + e.getMessage());
+            Log.warn("Warning: Could not rebuild python binary " + label + ": " + e.getMessage());
         }
     }
 
@@ -253,66 +333,11 @@ public class BackendManager {
         return false;
     }
 
-    private void extractResourceDirectory(String resourceRoot, Path targetDir) throws IOException {
-        URL resourceUrl = getClass().getClassLoader().getResource(resourceRoot);
-        if (resourceUrl == null) {
-            throw new IOException("Backend resources not found: " + resourceRoot);
+    private static boolean touches(Set<String> changed, String prefix) {
+        for (String path : changed) {
+            if (path.startsWith(prefix)) return true;
         }
-
-        if ("jar".equalsIgnoreCase(resourceUrl.getProtocol())) {
-            JarURLConnection jarConnection = (JarURLConnection) resourceUrl.openConnection();
-            try (JarFile jarFile = jarConnection.getJarFile()) {
-                Enumeration<JarEntry> entries = jarFile.entries();
-                while (entries.hasMoreElements()) {
-                    JarEntry entry = entries.nextElement();
-                    String name = entry.getName();
-                    if (!name.startsWith(resourceRoot + "/")) {
-                        continue;
-                    }
-                    String relative = name.substring(resourceRoot.length() + 1);
-                    if (relative.isEmpty()) {
-                        continue;
-                    }
-                    Path destPath = targetDir.resolve(relative);
-                    if (entry.isDirectory()) {
-                        Files.createDirectories(destPath);
-                    } else {
-                        Files.createDirectories(destPath.getParent());
-                        Files.copy(jarFile.getInputStream(entry), destPath, StandardCopyOption.REPLACE_EXISTING);
-                    }
-                }
-            }
-        } else if ("file".equalsIgnoreCase(resourceUrl.getProtocol())) {
-            try {
-                Path sourcePath = Paths.get(resourceUrl.toURI());
-                copyDirectory(sourcePath, targetDir);
-            } catch (Exception e) {
-                throw new IOException("Failed to resolve backend resource path.", e);
-            }
-        } else {
-            throw new IOException("Unsupported resource protocol: " + resourceUrl.getProtocol());
-        }
-    }
-
-    private void copyDirectory(Path sourceDir, Path targetDir) throws IOException {
-        Files.walkFileTree(sourceDir, new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                Path relative = sourceDir.relativize(dir);
-                Path target = targetDir.resolve(relative.toString());
-                Files.createDirectories(target);
-                return FileVisitResult.CONTINUE;
-            }
-
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                Path relative = sourceDir.relativize(file);
-                Path target = targetDir.resolve(relative.toString());
-                Files.createDirectories(target.getParent());
-                Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
-                return FileVisitResult.CONTINUE;
-            }
-        });
+        return false;
     }
 
     private Path findPythonExecutable(Path baseDir) {
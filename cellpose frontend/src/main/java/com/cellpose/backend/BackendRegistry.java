@@ -0,0 +1,107 @@
+package com.cellpose.backend;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide owner of the bundled backend and the HTTP client. Every
+ * Cellpose window and headless run takes a {@link Lease}, so all of them
+ * share one backend process (and its loaded models) and one connection pool.
+ *
+ * When the last lease is released, the backend keeps running for
+ * {@link #IDLE_TIMEOUT_MS} so that reopening the plugin finds it warm; it is
+ * stopped then, or when the JVM exits.
+ */
+public final class BackendRegistry {
+    public static final long IDLE_TIMEOUT_MS = 5 * 60_000;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cellpose-backend-idle");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static BackendManager manager;
+    private static BackendClient client;
+    private static int users;
+    private static ScheduledFuture<?> pendingShutdown;
+    private static boolean shutdownHookInstalled;
+
+    private BackendRegistry() {
+    }
+
+    /** One user's hold on the shared backend. Closing it more than once has no effect. */
+    public static final class Lease implements AutoCloseable {
+        private final BackendManager manager;
+        private final BackendClient client;
+        private boolean released;
+
+        private Lease(BackendManager manager, BackendClient client) {
+            this.manager = manager;
+            this.client = client;
+        }
+
+        public BackendManager getManager() {
+            return manager;
+        }
+
+        public BackendClient getClient() {
+            return client;
+        }
+
+        @Override
+        public void close() {
+            synchronized (BackendRegistry.class) {
+                if (released) return;
+                released = true;
+                release();
+            }
+        }
+    }
+
+    public static synchronized Lease acquire() {
+        if (pendingShutdown != null) {
+            pendingShutdown.cancel(false);
+            pendingShutdown = null;
+        }
+        if (manager == null) {
+            client = new BackendClient();
+            manager = new BackendManager(client);
+        }
+        if (!shutdownHookInstalled) {
+            shutdownHookInstalled = true;
+            Runtime.getRuntime().addShutdownHook(new Thread(BackendRegistry::shutdown, "cellpose-backend-shutdown"));
+        }
+        users++;
+        return new Lease(manager, client);
+    }
+
+    /** Number of leases currently held. */
+    public static synchronized int getUsers() {
+        return users;
+    }
+
+    private static void release() {
+        users--;
+        if (users == 0) {
+            pendingShutdown = SCHEDULER.schedule(BackendRegistry::shutdownIfIdle, IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static synchronized void shutdownIfIdle() {
+        pendingShutdown = null;
+        if (users == 0) {
+            shutdown();
+        }
+    }
+
+    private static synchronized void shutdown() {
+        if (manager == null) return;
+        manager.stop();
+        client.close();
+        manager = null;
+        client = null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.cellpose.backend;
+
+import com.cellpose.model.Cell;
+import com.cellpose.model.CellStore;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes the compact binary /segment response ({@code format=binary}).
+ *
+ * Layout (little-endian): magic "CPRB", version byte, 3 padding bytes, u32 cell
+ * count, then for every cell a varint vertex count followed by zigzag-varint
+ * x/y deltas, the first vertex being a delta from (0, 0). Outline steps are
+ * almost always -1..1, so most coordinates take a single byte.
+ */
+public final class BinaryRoiDecoder {
+    public static final String MEDIA_TYPE = "application/x-cellpose-rois";
+
+    private static final byte[] MAGIC = {'C', 'P', 'R', 'B'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int MIN_CELLS_PER_CHUNK = 256;
+
+    private BinaryRoiDecoder() {
+    }
+
+    public static boolean isBinary(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[offset + i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    public static List<Cell> decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public static List<Cell> decode(byte[] data, int offset, int length) {
+        return decodeStore(data, offset, length).asCells();
+    }
+
+    public static CellStore decodeStore(byte[] data, int offset, int length) {
+        if (!isBinary(data, offset, length)) {
+            throw new IllegalArgumentException("Not a binary ROI response");
+        }
+        int version = data[offset + 4] & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary ROI version " + version);
+        }
+        int cellCount = (data[offset + 8] & 0xFF)
+                | (data[offset + 9] & 0xFF) << 8
+                | (data[offset + 10] & 0xFF) << 16
+                | (data[offset + 11] & 0xFF) << 24;
+
+        // Sequential pass: locate each cell by skipping over its varints without decoding them
+        int end = offset + length;
+        int[] cellStarts = new int[cellCount + 1];
+        int pos = offset + HEADER_SIZE;
+        for (int c = 0; c < cellCount; c++) {
+            cellStarts[c] = pos;
+            long nPoints = 0;
+            int shift = 0;
+            byte b;
+            do {
+                if (pos >= end) throw new IllegalArgumentException("Truncated binary ROI response");
+                b = data[pos++];
+                nPoints |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            for (long v = 2 * nPoints; v > 0; pos++) {
+                if (pos >= end) throw new IllegalArgumentException("Truncated binary ROI response");
+                if (data[pos] >= 0) v--;
+            }
+        }
+        cellStarts[cellCount] = pos;
+
+        int chunks = 1;
+        if (cellCount >= 2 * MIN_CELLS_PER_CHUNK) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            chunks = Math.max(1, Math.min(cores * 4, cellCount / MIN_CELLS_PER_CHUNK));
+        }
+
+        if (chunks == 1) {
+            return new CellReader(data).read(cellStarts, 0, cellCount);
+        }
+        final int nChunks = chunks;
+        List<CellStore> parts = IntStream.range(0, nChunks)
+                .parallel()
+                .mapToObj(c -> new CellReader(data).read(cellStarts,
+                        (int) ((long) c * cellCount / nChunks),
+                        (int) ((long) (c + 1) * cellCount / nChunks)))
+                .collect(Collectors.toList());
+        return CellStore.concat(parts);
+    }
+
+    private static final class CellReader {
+        private final byte[] data;
+        private float[] xs = new float[256];
+        private float[] ys = new float[256];
+        private int pos;
+
+        CellReader(byte[] data) {
+            this.data = data;
+        }
+
+        CellStore read(int[] cellStarts, int from, int to) {
+            CellStore.Builder cells = new CellStore.Builder();
+            for (int c = from; c < to; c++) {
+                pos = cellStarts[c];
+                int nPoints = (int) readVarint();
+                if (nPoints == 0) continue;
+                if (nPoints > xs.length) {
+                    xs = Arrays.copyOf(xs, Math.max(nPoints, xs.length * 2));
+                    ys = Arrays.copyOf(ys, xs.length);
+                }
+                int x = 0, y = 0;
+                for (int i = 0; i < nPoints; i++) {
+                    x += unzigzag(readVarint());
+                    y += unzigzag(readVarint());
+                    xs[i] = x;
+                    ys[i] = y;
+                }
+                cells.add(xs, ys, nPoints);
+            }
+            return cells.build();
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        private static int unzigzag(long v) {
+            return (int) ((v >>> 1) ^ -(v & 1));
+        }
+    }
+}
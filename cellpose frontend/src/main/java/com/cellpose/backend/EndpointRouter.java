@@ -0,0 +1,304 @@
+package com.cellpose.backend;
+
+import com.cellpose.diagnostics.Log;
+import com.cellpose.model.SegmentationResult;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.entity.mime.ContentBody;
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.core5.http.HttpStatus;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads /segment requests over several backends. Each request goes to the
+ * healthy endpoint with the fewest requests outstanding from this client.
+ *
+ * A request that has not answered after twice the recent average latency
+ * (at least {@link #MIN_HEDGE_DELAY_MS}) is sent again to an idle second
+ * endpoint; whichever answers first wins and the other request is aborted.
+ * Nothing is hedged before the first latency has been measured.
+ *
+ * A request that meets an I/O error, a 502, 503 or 504, or a busy 429 moves
+ * on to the least loaded healthy endpoint it has not tried. Other errors,
+ * such as the 500 of a worker failing on the image, are the request's own
+ * and are thrown as they are. After {@link #EJECT_AFTER_FAILURES} I/O or
+ * gateway failures in a row an endpoint is ejected. Background
+ * {@code /getModels} probes count towards the same run of failures, and an
+ * ejected endpoint is reinstated once a probe succeeds. Only when every
+ * endpoint has been tried and at least one was busy does the request wait
+ * for the Retry-After hint and go round again, up to
+ * {@link BackendClient#DEFAULT_MAX_BUSY_RETRIES} times.
+ */
+public class EndpointRouter implements AutoCloseable {
+    public static final long HEALTH_CHECK_INTERVAL_MS = 10_000;
+    /** Hedge no earlier than this, whatever the recent latencies. */
+    public static final long MIN_HEDGE_DELAY_MS = 5_000;
+    /** Consecutive I/O or gateway failures after which an endpoint is taken out of rotation. */
+    public static final int EJECT_AFTER_FAILURES = 3;
+    // Wait between rounds when a busy backend sends no Retry-After
+    private static final int DEFAULT_BUSY_WAIT_SECONDS = 1;
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private static final class Endpoint {
+        final String url;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile boolean healthy = true;
+
+        Endpoint(String url) {
+            this.url = url;
+        }
+    }
+
+    private final BackendClient client;
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final ExecutorService executor;
+    private final ScheduledExecutorService healthChecker;
+    private final AtomicInteger nextTieBreak = new AtomicInteger();
+    private volatile double averageLatencyMs = -1;
+
+    public EndpointRouter(BackendClient client, List<String> urls) {
+        this.client = client;
+        for (String url : urls) {
+            endpoints.add(new Endpoint(url));
+        }
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "cellpose-route-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "cellpose-health-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, 0, HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public List<String> getUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) {
+            urls.add(endpoint.url);
+        }
+        return urls;
+    }
+
+    /** The healthy endpoint with the fewest outstanding requests, for calls the router does not track. */
+    public String pick() {
+        Endpoint endpoint = choose(null);
+        return endpoint != null ? endpoint.url : endpoints.get(0).url;
+    }
+
+    public SegmentationResult segment(SegmentationParams params, ContentBody image) throws IOException {
+        String query = "?" + params.toQueryString();
+        for (int round = 0; ; round++) {
+            List<Endpoint> tried = new ArrayList<>();
+            IOException lastError = null;
+            int busyWaitSeconds = -1;
+            // Every endpoint gets at most one attempt per round; healthy ones first, ejected ones as a last resort
+            while (tried.size() < endpoints.size()) {
+                Endpoint primary = choose(tried);
+                if (primary == null) primary = firstUntried(tried);
+                tried.add(primary);
+                try {
+                    return hedged(primary, tried, query, image);
+                } catch (BackendException e) {
+                    if (!failsOver(e)) throw e;
+                    if (e.getStatusCode() == HttpStatus.SC_TOO_MANY_REQUESTS) {
+                        int hint = e.getRetryAfterSeconds() >= 0 ? e.getRetryAfterSeconds() : DEFAULT_BUSY_WAIT_SECONDS;
+                        busyWaitSeconds = busyWaitSeconds < 0 ? hint : Math.min(busyWaitSeconds, hint);
+                    }
+                    lastError = e;
+                } catch (IOException e) {
+                    lastError = e;
+                }
+            }
+            if (busyWaitSeconds < 0 || round >= BackendClient.DEFAULT_MAX_BUSY_RETRIES) {
+                throw lastError;
+            }
+            // Nowhere to go: wait as long as the soonest free backend asked, then try them all again
+            Log.debug("[Cellpose] All backends busy, retrying in " + busyWaitSeconds + " s");
+            try {
+                TimeUnit.SECONDS.sleep(Math.min(busyWaitSeconds, BackendClient.MAX_BUSY_WAIT_SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Segmentation interrupted", e);
+            }
+        }
+    }
+
+    /** Whether an error is the endpoint's rather than the request's, so another endpoint may do better. */
+    private static boolean failsOver(BackendException e) {
+        int status = e.getStatusCode();
+        return status == HttpStatus.SC_TOO_MANY_REQUESTS || isGatewayFailure(status);
+    }
+
+    private static boolean isGatewayFailure(int status) {
+        return status == HttpStatus.SC_BAD_GATEWAY || status == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || status == HttpStatus.SC_GATEWAY_TIMEOUT;
+    }
+
+    /** Runs the request on {@code primary}, duplicating it onto a second endpoint if it is slow. */
+    private SegmentationResult hedged(Endpoint primary, List<Endpoint> tried, String query, ContentBody image) throws IOException {
+        CompletionService<SegmentationResult> completion = new ExecutorCompletionService<>(executor);
+        List<HttpPost> posts = new ArrayList<>(2);
+        List<Future<SegmentationResult>> futures = new ArrayList<>(2);
+        futures.add(completion.submit(() -> attempt(primary, posts, query, image)));
+        int running = 1;
+        boolean hedgeSent = false;
+        IOException firstError = null;
+        try {
+            while (running > 0) {
+                long hedgeDelay = hedgeDelayMs();
+                Future<SegmentationResult> done = hedgeSent || hedgeDelay < 0
+                        ? completion.take()
+                        : completion.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    // Slow: race a copy on another endpoint, but only one with nothing else to do
+                    hedgeSent = true;
+                    Endpoint hedge = choose(tried);
+                    if (hedge != null && hedge.outstanding.get() == 0) {
+                        tried.add(hedge);
+                        futures.add(completion.submit(() -> attempt(hedge, posts, query, image)));
+                        running++;
+                    }
+                    continue;
+                }
+                running--;
+                try {
+                    return done.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof BackendException && !failsOver((BackendException) cause)) {
+                        throw (BackendException) cause;
+                    }
+                    if (firstError == null) {
+                        firstError = cause instanceof IOException ? (IOException) cause
+                                : new IOException("Segmentation request failed", cause);
+                    }
+                }
+            }
+            throw firstError;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Segmentation interrupted", e);
+        } finally {
+            // Abort whichever request lost the race
+            synchronized (posts) {
+                for (HttpPost post : posts) {
+                    post.cancel();
+                }
+            }
+            for (Future<SegmentationResult> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private SegmentationResult attempt(Endpoint endpoint, List<HttpPost> posts, String query, ContentBody image) throws IOException {
+        HttpPost post = new HttpPost(BackendClient.endpoint(endpoint.url, "/segment") + query);
+        post.setEntity(MultipartEntityBuilder.create().addPart("image", image).build());
+        synchronized (posts) {
+            posts.add(post);
+        }
+        endpoint.outstanding.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            // Busy answers come straight back here, so the request can go to another endpoint
+            SegmentationResult result = client.post(post, RoiResponseDecoder::decodeResult, false);
+            endpoint.consecutiveFailures.set(0);
+            double latencyMs = (System.nanoTime() - start) / 1e6;
+            double average = averageLatencyMs;
+            averageLatencyMs = average < 0 ? latencyMs : 0.8 * average + 0.2 * latencyMs;
+            return result;
+        } catch (BackendException e) {
+            if (isGatewayFailure(e.getStatusCode())) {
+                recordFailure(endpoint, e);
+            } else if (e.getStatusCode() != HttpStatus.SC_TOO_MANY_REQUESTS) {
+                // The backend answered, so it is up, whatever it thought of this request
+                endpoint.consecutiveFailures.set(0);
+            }
+            throw e;
+        } catch (IOException e) {
+            if (!post.isCancelled()) recordFailure(endpoint, e);
+            throw e;
+        } finally {
+            endpoint.outstanding.decrementAndGet();
+        }
+    }
+
+    /** -1 until a first request has completed. */
+    private long hedgeDelayMs() {
+        double average = averageLatencyMs;
+        return average < 0 ? -1 : Math.max(MIN_HEDGE_DELAY_MS, (long) (2 * average));
+    }
+
+    private Endpoint choose(List<Endpoint> exclude) {
+        Endpoint best = null;
+        int size = endpoints.size();
+        int offset = Math.floorMod(nextTieBreak.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            Endpoint candidate = endpoints.get((offset + i) % size);
+            if (!candidate.healthy || (exclude != null && exclude.contains(candidate))) continue;
+            if (best == null || candidate.outstanding.get() < best.outstanding.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private Endpoint firstUntried(List<Endpoint> tried) {
+        for (Endpoint endpoint : endpoints) {
+            if (!tried.contains(endpoint)) return endpoint;
+        }
+        return endpoints.get(0);
+    }
+
+    private void recordFailure(Endpoint endpoint, IOException cause) {
+        if (endpoint.consecutiveFailures.incrementAndGet() >= EJECT_AFTER_FAILURES && endpoint.healthy) {
+            endpoint.healthy = false;
+            Log.warn("[Cellpose] Backend " + endpoint.url + " ejected: " + cause.getMessage());
+        }
+    }
+
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            try {
+                client.getString(BackendClient.endpoint(endpoint.url, "/getModels"));
+            } catch (BackendException e) {
+                // As for requests, only gateway answers count against an endpoint that answers at all
+                if (isGatewayFailure(e.getStatusCode())) recordFailure(endpoint, e);
+                continue;
+            } catch (IOException e) {
+                recordFailure(endpoint, e);
+                continue;
+            } catch (RuntimeException e) {
+                recordFailure(endpoint, new IOException(e.getMessage(), e));
+                continue;
+            }
+            if (!endpoint.healthy) {
+                endpoint.consecutiveFailures.set(0);
+                endpoint.healthy = true;
+                Log.info("[Cellpose] Backend " + endpoint.url + " is back");
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        healthChecker.shutdownNow();
+        executor.shutdownNow();
+    }
+}
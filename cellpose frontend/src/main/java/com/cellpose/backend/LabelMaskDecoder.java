@@ -0,0 +1,82 @@
+package com.cellpose.backend;
+
+import com.cellpose.model.LabelMask;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decodes the label-mask /segment response ({@code format=mask}).
+ *
+ * Layout (little-endian): magic "CPLM", version byte, bytes per label (2 or 4),
+ * 2 padding bytes, u32 width, u32 height, then the zlib-compressed row-major
+ * label array.
+ */
+public final class LabelMaskDecoder {
+    public static final String MEDIA_TYPE = "application/x-cellpose-labels";
+
+    private static final byte[] MAGIC = {'C', 'P', 'L', 'M'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    private LabelMaskDecoder() {
+    }
+
+    public static boolean isLabelMask(byte[] data, int offset, int length) {
+        if (length < HEADER_SIZE) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[offset + i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    public static LabelMask decode(byte[] data, int offset, int length) {
+        if (!isLabelMask(data, offset, length)) {
+            throw new IllegalArgumentException("Not a label mask response");
+        }
+        ByteBuffer header = ByteBuffer.wrap(data, offset, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.position(offset + 4);
+        int version = header.get() & 0xFF;
+        int bytesPerLabel = header.get() & 0xFF;
+        header.position(offset + 8);
+        int width = header.getInt();
+        int height = header.getInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported label mask version " + version);
+        }
+        if (bytesPerLabel != 2 && bytesPerLabel != 4) {
+            throw new IllegalArgumentException("Unsupported label size " + bytesPerLabel);
+        }
+
+        byte[] raw = new byte[Math.multiplyExact(Math.multiplyExact(width, height), bytesPerLabel)];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, offset + HEADER_SIZE, length - HEADER_SIZE);
+            int filled = 0;
+            while (filled < raw.length) {
+                int n = inflater.inflate(raw, filled, raw.length - filled);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) break;
+                filled += n;
+            }
+            if (filled != raw.length) {
+                throw new IllegalArgumentException("Truncated label mask: " + filled + " of " + raw.length + " bytes");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt label mask data", e);
+        } finally {
+            inflater.end();
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+        if (bytesPerLabel == 2) {
+            short[] labels = new short[width * height];
+            buffer.asShortBuffer().get(labels);
+            return new LabelMask(width, height, labels);
+        }
+        int[] labels = new int[width * height];
+        buffer.asIntBuffer().get(labels);
+        return new LabelMask(width, height, labels);
+    }
+}
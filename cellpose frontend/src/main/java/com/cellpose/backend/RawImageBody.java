@@ -0,0 +1,180 @@
+package com.cellpose.backend;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.apache.hc.client5.http.entity.mime.AbstractContentBody;
+import org.apache.hc.core5.http.ContentType;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Multipart body that streams one Z/T plane of an ImagePlus (all channels)
+ * straight from its pixel arrays, so any open image can be segmented without
+ * a file on disk and without PNG/TIFF encoding. A sub-rectangle of the plane
+ * can be sent on its own (used for tiles) without copying the pixels first.
+ *
+ * Layout (little-endian): magic "CPIX", version byte, bytes per sample
+ * (1 = uint8, 2 = uint16, 4 = float32), u16 channel count, u32 width,
+ * u32 height, then the channel planes one after another. RGB images are sent
+ * as three uint8 channels in R, G, B order.
+ */
+public class RawImageBody extends AbstractContentBody {
+    public static final ContentType CONTENT_TYPE = ContentType.create("application/x-cellpose-raw");
+
+    private static final int HEADER_SIZE = 16;
+    private static final int VERSION = 1;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Object[] planes;
+    private final int stride;
+    private final int originX;
+    private final int originY;
+    private final int width;
+    private final int height;
+    private final int channels;
+    private final int bytesPerSample;
+    private final boolean rgb;
+    private final String filename;
+
+    private RawImageBody(Object[] planes, int stride, Rectangle region, int channels, int bytesPerSample, boolean rgb, String filename) {
+        super(CONTENT_TYPE);
+        this.planes = planes;
+        this.stride = stride;
+        this.originX = region.x;
+        this.originY = region.y;
+        this.width = region.width;
+        this.height = region.height;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.rgb = rgb;
+        this.filename = filename;
+    }
+
+    /** The plane currently shown in the image window. */
+    public static RawImageBody ofCurrentPlane(ImagePlus imp) {
+        return of(imp, imp.getZ(), imp.getT());
+    }
+
+    /** All channels of the given 1-based slice and frame. */
+    public static RawImageBody of(ImagePlus imp, int z, int t) {
+        return of(imp, z, t, new Rectangle(0, 0, imp.getWidth(), imp.getHeight()));
+    }
+
+    /** All channels of the given 1-based slice and frame, cropped to {@code region}. */
+    public static RawImageBody of(ImagePlus imp, int z, int t, Rectangle region) {
+        Rectangle bounds = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        if (region.isEmpty() || !bounds.contains(region)) {
+            throw new IllegalArgumentException("Region " + region + " is outside the " + bounds.width + "x" + bounds.height + " image");
+        }
+        ImageStack stack = imp.getStack();
+        String filename = imp.getShortTitle() + ".raw";
+
+        if (imp.getBitDepth() == 24) {
+            Object pixels = planePixels(stack, imp.getStackIndex(1, z, t));
+            return new RawImageBody(new Object[]{pixels}, imp.getWidth(), region, 3, 1, true, filename);
+        }
+
+        int nChannels = Math.max(1, imp.getNChannels());
+        Object[] planes = new Object[nChannels];
+        for (int c = 0; c < nChannels; c++) {
+            planes[c] = planePixels(stack, imp.getStackIndex(c + 1, z, t));
+        }
+        int bytesPerSample = imp.getBitDepth() / 8;
+        return new RawImageBody(planes, imp.getWidth(), region, nChannels, bytesPerSample, false, filename);
+    }
+
+    /** Virtual stacks read the plane from disk on every call; those reads are serialized. */
+    private static Object planePixels(ImageStack stack, int index) {
+        if (!stack.isVirtual()) {
+            return stack.getPixels(index);
+        }
+        synchronized (stack) {
+            return stack.getPixels(index);
+        }
+    }
+
+    @Override
+    public String getFilename() {
+        return filename;
+    }
+
+    @Override
+    public long getContentLength() {
+        return HEADER_SIZE + (long) width * height * channels * bytesPerSample;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[]{'C', 'P', 'I', 'X'});
+        buffer.put((byte) VERSION);
+        buffer.put((byte) bytesPerSample);
+        buffer.putShort((short) channels);
+        buffer.putInt(width);
+        buffer.putInt(height);
+
+        if (rgb) {
+            int[] pixels = (int[]) planes[0];
+            for (int c = 0; c < 3; c++) {
+                int shift = 16 - 8 * c;
+                for (int y = 0; y < height; y++) {
+                    int row = (originY + y) * stride + originX;
+                    for (int i = row; i < row + width; i++) {
+                        if (!buffer.hasRemaining()) flush(buffer, out);
+                        buffer.put((byte) (pixels[i] >> shift));
+                    }
+                }
+            }
+        } else {
+            for (Object plane : planes) {
+                if (!(plane instanceof byte[] || plane instanceof short[] || plane instanceof float[])) {
+                    throw new IOException("Unsupported pixel type: " + (plane == null ? "null" : plane.getClass().getSimpleName()));
+                }
+                for (int y = 0; y < height; y++) {
+                    writeRow(plane, (originY + y) * stride + originX, width, buffer, out);
+                }
+            }
+        }
+        flush(buffer, out);
+    }
+
+    private static void writeRow(Object plane, int start, int n, ByteBuffer buffer, OutputStream out) throws IOException {
+        int end = start + n;
+        if (plane instanceof byte[]) {
+            byte[] pixels = (byte[]) plane;
+            for (int i = start; i < end; ) {
+                if (!buffer.hasRemaining()) flush(buffer, out);
+                int len = Math.min(buffer.remaining(), end - i);
+                buffer.put(pixels, i, len);
+                i += len;
+            }
+        } else if (plane instanceof short[]) {
+            short[] pixels = (short[]) plane;
+            for (int i = start; i < end; ) {
+                if (buffer.remaining() < 2) flush(buffer, out);
+                int len = Math.min(buffer.remaining() / 2, end - i);
+                buffer.asShortBuffer().put(pixels, i, len);
+                buffer.position(buffer.position() + len * 2);
+                i += len;
+            }
+        } else {
+            float[] pixels = (float[]) plane;
+            for (int i = start; i < end; ) {
+                if (buffer.remaining() < 4) flush(buffer, out);
+                int len = Math.min(buffer.remaining() / 4, end - i);
+                buffer.asFloatBuffer().put(pixels, i, len);
+                buffer.position(buffer.position() + len * 4);
+                i += len;
+            }
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, OutputStream out) throws IOException {
+        out.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+}
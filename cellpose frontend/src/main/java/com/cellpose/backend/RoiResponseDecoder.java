@@ -0,0 +1,228 @@
+package com.cellpose.backend;
+
+import com.cellpose.analysis.ContourTracer;
+import com.cellpose.model.Cell;
+import com.cellpose.model.CellStore;
+import com.cellpose.model.LabelMask;
+import com.cellpose.model.SegmentationResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes the plain-text /segment response (one "x1,y1,x2,y2,..." line per cell)
+ * into a {@link CellStore}; ROIs are only built when asked for.
+ *
+ * Numbers are scanned straight out of the response bytes into primitive
+ * buffers, so no per-line or per-coordinate Strings are created. Large
+ * responses are split on line boundaries and decoded on the common fork-join
+ * pool; cell ids are assigned afterwards in response order.
+ *
+ * Binary responses (see {@link BinaryRoiDecoder}) and label masks (see
+ * {@link LabelMaskDecoder}) are recognised by their magic bytes and delegated,
+ * so callers can request another format and still talk to backends that only
+ * produce text.
+ */
+public final class RoiResponseDecoder {
+    /** Responses smaller than this are decoded on the calling thread. */
+    private static final int PARALLEL_THRESHOLD_BYTES = 256 * 1024;
+    private static final int MIN_LINES_PER_CHUNK = 256;
+
+    private RoiResponseDecoder() {
+    }
+
+    public static List<Cell> decode(InputStream in) throws IOException {
+        return decode(readFully(in));
+    }
+
+    /** Decodes any response format, keeping the label mask when there is one. */
+    public static SegmentationResult decodeResult(InputStream in) throws IOException {
+        return decodeResult(readFully(in));
+    }
+
+    public static SegmentationResult decodeResult(byte[] data) {
+        if (LabelMaskDecoder.isLabelMask(data, 0, data.length)) {
+            LabelMask mask = LabelMaskDecoder.decode(data, 0, data.length);
+            return new SegmentationResult(ContourTracer.trace(mask), mask);
+        }
+        return new SegmentationResult(decodeStore(data, 0, data.length), null);
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    public static List<Cell> decode(byte[] data) {
+        return decode(data, 0, data.length);
+    }
+
+    public static List<Cell> decode(byte[] data, int offset, int length) {
+        return decodeStore(data, offset, length).asCells();
+    }
+
+    public static CellStore decodeStore(byte[] data, int offset, int length) {
+        if (BinaryRoiDecoder.isBinary(data, offset, length)) {
+            return BinaryRoiDecoder.decodeStore(data, offset, length);
+        }
+
+        int[] lineStarts = indexLines(data, offset, offset + length);
+        int lineCount = lineStarts.length - 1;
+
+        int chunks = 1;
+        if (length >= PARALLEL_THRESHOLD_BYTES) {
+            int cores = Runtime.getRuntime().availableProcessors();
+            chunks = Math.max(1, Math.min(cores * 4, lineCount / MIN_LINES_PER_CHUNK));
+        }
+
+        if (chunks == 1) {
+            return new LineParser(data).parse(lineStarts, 0, lineCount);
+        }
+        final int nChunks = chunks;
+        // Each chunk fills its own store; concat numbers the cells in response order
+        List<CellStore> parts = IntStream.range(0, nChunks)
+                .parallel()
+                .mapToObj(c -> new LineParser(data).parse(lineStarts,
+                        (int) ((long) c * lineCount / nChunks),
+                        (int) ((long) (c + 1) * lineCount / nChunks)))
+                .collect(Collectors.toList());
+        return CellStore.concat(parts);
+    }
+
+    /**
+     * Returns the start offset of every line plus a sentinel at {@code end},
+     * so line i spans [starts[i], starts[i + 1]).
+     */
+    private static int[] indexLines(byte[] data, int start, int end) {
+        int[] starts = new int[1024];
+        int count = 0;
+        int lineStart = start;
+        for (int i = start; i < end; i++) {
+            if (data[i] == '\n') {
+                if (count + 2 > starts.length) starts = Arrays.copyOf(starts, starts.length * 2);
+                starts[count++] = lineStart;
+                lineStart = i + 1;
+            }
+        }
+        if (count + 2 > starts.length) starts = Arrays.copyOf(starts, count + 2);
+        if (lineStart < end) {
+            starts[count++] = lineStart;
+        }
+        starts[count] = end;
+        return Arrays.copyOf(starts, count + 1);
+    }
+
+    /** Per-chunk parser state; the coordinate buffers are reused across lines. */
+    private static final class LineParser {
+        private final byte[] data;
+        private float[] xs = new float[256];
+        private float[] ys = new float[256];
+        private int pos;
+
+        LineParser(byte[] data) {
+            this.data = data;
+        }
+
+        CellStore parse(int[] lineStarts, int fromLine, int toLine) {
+            CellStore.Builder cells = new CellStore.Builder();
+            for (int line = fromLine; line < toLine; line++) {
+                parseLine(lineStarts[line], lineStarts[line + 1], cells);
+            }
+            return cells.build();
+        }
+
+        private void parseLine(int start, int end, CellStore.Builder cells) {
+            pos = start;
+            int nPoints = 0;
+            boolean haveX = false;
+            float x = 0;
+
+            while (pos < end) {
+                byte b = data[pos];
+                if (b == ',' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                    pos++;
+                    continue;
+                }
+                float value = parseNumber(end);
+                if (!haveX) {
+                    x = value;
+                    haveX = true;
+                } else {
+                    if (nPoints == xs.length) {
+                        xs = Arrays.copyOf(xs, nPoints * 2);
+                        ys = Arrays.copyOf(ys, nPoints * 2);
+                    }
+                    xs[nPoints] = x;
+                    ys[nPoints] = value;
+                    nPoints++;
+                    haveX = false;
+                }
+            }
+
+            if (nPoints > 0) {
+                cells.add(xs, ys, nPoints);
+            }
+        }
+
+        private float parseNumber(int end) {
+            int start = pos;
+            boolean negative = false;
+            if (data[pos] == '-') {
+                negative = true;
+                pos++;
+            } else if (data[pos] == '+') {
+                pos++;
+            }
+
+            long mantissa = 0;
+            int digits = 0;
+            int scale = 0;
+            while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+                mantissa = mantissa * 10 + (data[pos] - '0');
+                pos++;
+                digits++;
+            }
+            if (pos < end && data[pos] == '.') {
+                pos++;
+                while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+                    if (digits < 18) {
+                        mantissa = mantissa * 10 + (data[pos] - '0');
+                        scale--;
+                    }
+                    pos++;
+                    digits++;
+                }
+            }
+            if (digits == 0) {
+                throw new IllegalArgumentException("Malformed ROI response at byte " + start);
+            }
+            if (pos < end && (data[pos] == 'e' || data[pos] == 'E')) {
+                pos++;
+                boolean negativeExp = false;
+                if (pos < end && (data[pos] == '-' || data[pos] == '+')) {
+                    negativeExp = data[pos] == '-';
+                    pos++;
+                }
+                int exp = 0;
+                while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+                    exp = exp * 10 + (data[pos] - '0');
+                    pos++;
+                }
+                scale += negativeExp ? -exp : exp;
+            }
+
+            double value = scale == 0 ? mantissa : mantissa * Math.pow(10, scale);
+            return (float) (negative ? -value : value);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.cellpose.backend;
+
+import com.cellpose.model.SegmentationResult;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.apache.hc.client5.http.entity.mime.ContentBody;
+import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
+import org.apache.hc.core5.http.HttpEntity;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+
+/**
+ * One segmentation run through the backend's asynchronous {@code /jobs} API:
+ * the image is submitted, progress events are followed over server-sent
+ * events, and the result is fetched once the job has succeeded.
+ *
+ * {@link #cancel()} may be called from any thread. It asks the backend to
+ * interrupt the worker, and {@link #run} then throws a
+ * {@link CancellationException}. Backends without {@code /jobs} are served
+ * by a plain blocking {@code /segment} request, without progress.
+ */
+public class SegmentationJob {
+    /** Called from the thread running the job. Counts are -1 when unknown. */
+    public interface ProgressListener {
+        void progress(String state, String stage, int done, int total);
+    }
+
+    private final BackendClient client;
+    private final String baseUrl;
+    private volatile String jobId;
+    private volatile boolean cancelled;
+
+    public SegmentationJob(BackendClient client, String baseUrl) {
+        this.client = client;
+        // A job, its events and its result must all stay on the backend it was submitted to
+        this.baseUrl = client.pick(baseUrl);
+    }
+
+    public SegmentationResult run(SegmentationParams params, ContentBody image, ProgressListener listener) throws IOException {
+        String submitUrl = BackendClient.endpoint(baseUrl, "/jobs") + "?" + params.toQueryString();
+        HttpEntity entity = MultipartEntityBuilder.create()
+                .addPart("image", image)
+                .build();
+        try {
+            jobId = client.post(submitUrl, entity, in -> {
+                JsonObject status = JsonParser.parseString(
+                        new String(BackendClient.readAll(in), StandardCharsets.UTF_8)).getAsJsonObject();
+                return status.get("job_id").getAsString();
+            });
+        } catch (BackendException e) {
+            if (e.getStatusCode() != 404 && e.getStatusCode() != 405) throw e;
+            // Older backend: one blocking request, which cannot report progress or be cancelled
+            return client.segment(baseUrl, params, image);
+        }
+        if (cancelled) {
+            cancel();
+        }
+
+        String[] outcome = new String[2];
+        client.events(jobUrl("/events"), data -> {
+            JsonObject event = JsonParser.parseString(data).getAsJsonObject();
+            String state = string(event, "state");
+            if ("succeeded".equals(state) || "failed".equals(state) || "cancelled".equals(state)) {
+                outcome[0] = state;
+                outcome[1] = string(event, "message");
+                return false;
+            }
+            if (listener != null) {
+                listener.progress(state, string(event, "stage"), number(event, "done"), number(event, "total"));
+            }
+            return true;
+        });
+
+        if ("succeeded".equals(outcome[0])) {
+            return client.get(jobUrl("/result"), RoiResponseDecoder::decodeResult);
+        }
+        if ("cancelled".equals(outcome[0])) {
+            throw new CancellationException("Segmentation cancelled");
+        }
+        if ("failed".equals(outcome[0])) {
+            throw new BackendException(500, outcome[1] != null ? outcome[1] : "Segmentation failed");
+        }
+        throw new IOException("Backend closed the progress stream of job " + jobId);
+    }
+
+    /** Stops the job on the backend; a job not yet submitted is cancelled as soon as it is. */
+    public void cancel() throws IOException {
+        cancelled = true;
+        if (jobId != null) {
+            client.delete(jobUrl(""));
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    private String jobUrl(String suffix) {
+        return BackendClient.endpoint(baseUrl, "/jobs/" + jobId + suffix);
+    }
+
+    private static String string(JsonObject event, String key) {
+        JsonElement value = event.get(key);
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    private static int number(JsonObject event, String key) {
+        JsonElement value = event.get(key);
+        return value == null || value.isJsonNull() ? -1 : value.getAsInt();
+    }
+}
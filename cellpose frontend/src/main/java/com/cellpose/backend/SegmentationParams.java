@@ -0,0 +1,108 @@
+package com.cellpose.backend;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * Query parameters of a /segment request. Defaults match the backend's and
+ * the Additional Settings panel's.
+ */
+public class SegmentationParams {
+    private String modelType = "CellposeSAM";
+    private String modelName;
+    private String channels = "0";
+    private double diameter = 30;
+    private boolean useGpu;
+    private int batchSize = 64;
+    private boolean resample;
+    private boolean normalize = true;
+    private double flowThreshold = 0.4;
+    private double cellprobThreshold = 0.0;
+    private double percentileLow = 1.0;
+    private double percentileHigh = 99.0;
+    private int tileNorm = 0;
+    private String format = "binary";
+
+    public SegmentationParams copy() {
+        SegmentationParams p = new SegmentationParams();
+        p.modelType = modelType;
+        p.modelName = modelName;
+        p.channels = channels;
+        p.diameter = diameter;
+        p.useGpu = useGpu;
+        p.batchSize = batchSize;
+        p.resample = resample;
+        p.normalize = normalize;
+        p.flowThreshold = flowThreshold;
+        p.cellprobThreshold = cellprobThreshold;
+        p.percentileLow = percentileLow;
+        p.percentileHigh = percentileHigh;
+        p.tileNorm = tileNorm;
+        p.format = format;
+        return p;
+    }
+
+    public String toQueryString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("model_type=").append(encode(modelType))
+                .append("&diameter=").append(diameter)
+                .append("&channels=").append(channels)
+                .append("&use_gpu=").append(useGpu)
+                .append("&batch_size=").append(batchSize)
+                .append("&resample=").append(resample)
+                .append("&normalize=").append(normalize)
+                .append("&flow_threshold=").append(flowThreshold)
+                .append("&cellprob_threshold=").append(cellprobThreshold)
+                .append("&format=").append(encode(format));
+        if (modelName != null && !modelName.trim().isEmpty()) {
+            sb.append("&model_name=").append(encode(modelName));
+        }
+        // Normalization sub-options only apply when normalize is enabled
+        if (normalize) {
+            sb.append("&percentile_low=").append(percentileLow)
+                    .append("&percentile_high=").append(percentileHigh)
+                    .append("&tile_norm=").append(tileNorm);
+        }
+        return sb.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value == null ? "" : value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+
+    // Getters
+    public String getModelType() { return modelType; }
+    public String getModelName() { return modelName; }
+    public String getChannels() { return channels; }
+    public double getDiameter() { return diameter; }
+    public boolean isUseGpu() { return useGpu; }
+    public int getBatchSize() { return batchSize; }
+    public boolean isResample() { return resample; }
+    public boolean isNormalize() { return normalize; }
+    public double getFlowThreshold() { return flowThreshold; }
+    public double getCellprobThreshold() { return cellprobThreshold; }
+    public double getPercentileLow() { return percentileLow; }
+    public double getPercentileHigh() { return percentileHigh; }
+    public int getTileNorm() { return tileNorm; }
+    public String getFormat() { return format; }
+
+    // Setters
+    public void setModelType(String modelType) { this.modelType = modelType; }
+    public void setModelName(String modelName) { this.modelName = modelName; }
+    public void setChannels(String channels) { this.channels = channels; }
+    public void setDiameter(double diameter) { this.diameter = diameter; }
+    public void setUseGpu(boolean useGpu) { this.useGpu = useGpu; }
+    public void setBatchSize(int batchSize) { this.batchSize = batchSize; }
+    public void setResample(boolean resample) { this.resample = resample; }
+    public void setNormalize(boolean normalize) { this.normalize = normalize; }
+    public void setFlowThreshold(double flowThreshold) { this.flowThreshold = flowThreshold; }
+    public void setCellprobThreshold(double cellprobThreshold) { this.cellprobThreshold = cellprobThreshold; }
+    public void setPercentileLow(double percentileLow) { this.percentileLow = percentileLow; }
+    public void setPercentileHigh(double percentileHigh) { this.percentileHigh = percentileHigh; }
+    public void setTileNorm(int tileNorm) { this.tileNorm = tileNorm; }
+    public void setFormat(String format) { this.format = format; }
+}
@@ -0,0 +1,143 @@
+package com.cellpose.backend;
+
+import com.cellpose.model.CellStore;
+import com.cellpose.model.SegmentationResult;
+import ij.ImagePlus;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segments every Z/T plane of a stack, hyperstack or time-lapse with several
+ * plane requests in flight, so plane N+1 is uploading while plane N is being
+ * inferred and plane N-1 is being decoded.
+ *
+ * Planes are visited frame by frame, slice by slice, and reported in that
+ * order. Each cell's ROI is positioned on its plane so a combined overlay
+ * shows only the current plane's outlines.
+ *
+ * Plane pixels are read when a plane's request is sent, so at most
+ * {@code depth} planes of pixels and results are held at once. With
+ * {@link #stream} nothing is accumulated, which keeps memory flat on
+ * virtual stacks of any length.
+ */
+public class StackSegmenter {
+    /** Upload, inference and decode of three consecutive planes overlap. */
+    public static final int DEFAULT_PIPELINE_DEPTH = 3;
+
+    /** Called from the calling thread, in plane order, as each plane completes. */
+    public interface PlaneListener {
+        void planeCompleted(int z, int t, SegmentationResult result, int completed, int total) throws IOException;
+    }
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final BackendClient client;
+    private final String baseUrl;
+    private final int depth;
+
+    public StackSegmenter(BackendClient client, String baseUrl, int depth) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.depth = Math.max(1, Math.min(depth, BackendClient.DEFAULT_MAX_PER_ROUTE));
+    }
+
+    /**
+     * Segments all planes of {@code imp} and returns every cell, with ids
+     * running across the whole stack. Planes larger than one tile of
+     * {@code plan} are themselves segmented in tiles; pass null to always
+     * send whole planes.
+     */
+    public CellStore segment(ImagePlus imp, SegmentationParams params, TilePlan plan,
+                             PlaneListener listener) throws IOException {
+        SegmentationParams outlineParams = params.copy();
+        outlineParams.setFormat("binary");
+        List<CellStore> planes = new ArrayList<>();
+        run(imp, outlineParams, plan, (z, t, result, completed, total) -> {
+            planes.add(result.getStore());
+            if (listener != null) {
+                listener.planeCompleted(z, t, result, completed, total);
+            }
+        });
+        return CellStore.concat(planes);
+    }
+
+    /**
+     * Segments all planes of {@code imp}, handing each plane's result to
+     * {@code sink} and keeping nothing. Cell ids restart at 1 on every plane,
+     * and the requested format is kept, so label masks are available to the
+     * sink for untiled planes.
+     *
+     * @return the number of cells found across all planes
+     */
+    public long stream(ImagePlus imp, SegmentationParams params, TilePlan plan, PlaneListener sink) throws IOException {
+        long[] count = {0};
+        run(imp, params, plan, (z, t, result, completed, total) -> {
+            count[0] += result.getCells().size();
+            sink.planeCompleted(z, t, result, completed, total);
+        });
+        return count[0];
+    }
+
+    private void run(ImagePlus imp, SegmentationParams params, TilePlan plan, PlaneListener listener) throws IOException {
+        int nSlices = Math.max(1, imp.getNSlices());
+        int nFrames = Math.max(1, imp.getNFrames());
+        int total = nSlices * nFrames;
+        TiledSegmenter tiled = plan != null && plan.isTiled() ? new TiledSegmenter(client, baseUrl, 1) : null;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(depth, total), r -> {
+            Thread thread = new Thread(r, "cellpose-plane-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Deque<Future<SegmentationResult>> window = new ArrayDeque<>();
+            int submitted = 0;
+            for (int completed = 0; completed < total; completed++) {
+                // Keep the window full; the oldest plane is always at the head
+                while (submitted < total && window.size() < depth) {
+                    int z = submitted % nSlices + 1;
+                    int t = submitted / nSlices + 1;
+                    window.add(executor.submit(() -> tiled != null
+                            ? new SegmentationResult(tiled.segment(imp, z, t, params, plan, null), null)
+                            : client.segment(baseUrl, params, RawImageBody.of(imp, z, t))));
+                    submitted++;
+                }
+
+                int z = completed % nSlices + 1;
+                int t = completed / nSlices + 1;
+                SegmentationResult planeResult = await(window.poll());
+                // Hyperstack ROIs take (channel, slice, frame) with channel 0 = all channels; plain stacks take the stack index
+                boolean hyperstack = imp.isHyperStack() || imp.getNChannels() > 1;
+                SegmentationResult result = new SegmentationResult(
+                        planeResult.getStore().onPlane(z, t, hyperstack, nSlices), planeResult.getLabelMask());
+                listener.planeCompleted(z, t, result, completed + 1, total);
+            }
+        } finally {
+            // Cancels the planes still in flight when one has failed
+            executor.shutdownNow();
+        }
+    }
+
+    private static SegmentationResult await(Future<SegmentationResult> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Stack segmentation interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException("Plane segmentation failed", cause);
+        }
+    }
+}
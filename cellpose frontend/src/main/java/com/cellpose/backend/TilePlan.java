@@ -0,0 +1,100 @@
+package com.cellpose.backend;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Grid of overlapping tiles covering an image, used to segment images that
+ * are too large for one /segment request.
+ *
+ * The tile side is chosen so one tile's backend working set fits the memory
+ * budget. The overlap is twice the cell diameter, so any cell up to that size
+ * lies wholly inside at least one tile and can be kept from there when seams
+ * are stitched.
+ */
+public final class TilePlan {
+    /** Rough backend working set per pixel at the model's scale: input, flows, probabilities, masks, activations. */
+    public static final int BACKEND_BYTES_PER_PIXEL = 64;
+    public static final int DEFAULT_MEMORY_BUDGET_MB = 2048;
+
+    // Cellpose rescales images so cells are ~30 px across; auto diameter (0) is planned with that too
+    private static final double NOMINAL_DIAMETER = 30.0;
+    private static final int MIN_TILE_SIZE = 256;
+    private static final int MAX_TILE_SIZE = 8192;
+
+    private final int imageWidth;
+    private final int imageHeight;
+    private final int tileSize;
+    private final int overlap;
+    private final List<Rectangle> tiles;
+
+    private TilePlan(int imageWidth, int imageHeight, int tileSize, int overlap, List<Rectangle> tiles) {
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.tiles = Collections.unmodifiableList(tiles);
+    }
+
+    /**
+     * Plans tiles for an image segmented at {@code diameter} (0 = auto) within
+     * {@code memoryBudgetBytes} of backend memory per in-flight tile.
+     */
+    public static TilePlan forImage(int width, int height, double diameter, long memoryBudgetBytes) {
+        double cellSize = diameter > 0 ? diameter : NOMINAL_DIAMETER;
+
+        // Cells smaller than nominal are upsampled by the backend, which grows its working set quadratically
+        double scale = Math.max(1.0, NOMINAL_DIAMETER / cellSize);
+        double pixelBudget = memoryBudgetBytes / (BACKEND_BYTES_PER_PIXEL * scale * scale);
+        int tileSize = (int) Math.max(MIN_TILE_SIZE, Math.min(MAX_TILE_SIZE, Math.sqrt(pixelBudget)));
+
+        int overlap = (int) Math.ceil(2 * cellSize) + 2;
+        tileSize = Math.max(tileSize, 4 * overlap);
+        return of(width, height, tileSize, overlap);
+    }
+
+    /** Plans tiles of at most {@code tileSize} pixels per side, neighbours sharing {@code overlap} pixels. */
+    public static TilePlan of(int width, int height, int tileSize, int overlap) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Empty image: " + width + "x" + height);
+        }
+        if (overlap < 0 || overlap >= tileSize) {
+            throw new IllegalArgumentException("Overlap " + overlap + " must be in [0, " + tileSize + ")");
+        }
+        int[] xs = tileStarts(width, tileSize, overlap);
+        int[] ys = tileStarts(height, tileSize, overlap);
+        int tileWidth = Math.min(tileSize, width);
+        int tileHeight = Math.min(tileSize, height);
+
+        List<Rectangle> tiles = new ArrayList<>(xs.length * ys.length);
+        for (int y : ys) {
+            for (int x : xs) {
+                tiles.add(new Rectangle(x, y, tileWidth, tileHeight));
+            }
+        }
+        return new TilePlan(width, height, tileSize, overlap, tiles);
+    }
+
+    /** Evenly strided starts along one axis; the last tile is pulled back to end flush with the image. */
+    private static int[] tileStarts(int length, int tileSize, int overlap) {
+        if (length <= tileSize) {
+            return new int[]{0};
+        }
+        int stride = tileSize - overlap;
+        int count = (int) Math.ceil((double) (length - overlap) / stride);
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = Math.min(i * stride, length - tileSize);
+        }
+        return starts;
+    }
+
+    public boolean isTiled() { return tiles.size() > 1; }
+    public int getImageWidth() { return imageWidth; }
+    public int getImageHeight() { return imageHeight; }
+    public int getTileSize() { return tileSize; }
+    public int getOverlap() { return overlap; }
+    public List<Rectangle> getTiles() { return tiles; }
+}
@@ -0,0 +1,96 @@
+package com.cellpose.backend;
+
+import com.cellpose.analysis.TileStitcher;
+import com.cellpose.model.CellStore;
+import ij.ImagePlus;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segments a plane tile by tile following a {@link TilePlan}, with at most
+ * {@code maxInFlight} tile requests outstanding, then stitches the tiles back
+ * into one {@link CellStore} in image coordinates.
+ *
+ * Tile pixels are streamed from the image when a request is sent, so only the
+ * in-flight tiles cost upload memory. Tiles always use the binary outline
+ * format; a label mask is per tile and is not stitched.
+ */
+public class TiledSegmenter {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 2;
+
+    /** Called from worker threads as tiles complete. */
+    public interface ProgressListener {
+        void tileCompleted(int completed, int total);
+    }
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final BackendClient client;
+    private final String baseUrl;
+    private final int maxInFlight;
+
+    public TiledSegmenter(BackendClient client, String baseUrl, int maxInFlight) {
+        this.client = client;
+        this.baseUrl = baseUrl;
+        this.maxInFlight = Math.max(1, Math.min(maxInFlight, BackendClient.DEFAULT_MAX_PER_ROUTE));
+    }
+
+    /** Segments all channels of the given 1-based slice and frame. */
+    public CellStore segment(ImagePlus imp, int z, int t, SegmentationParams params, TilePlan plan,
+                              ProgressListener listener) throws IOException {
+        List<Rectangle> tiles = plan.getTiles();
+        SegmentationParams tileParams = params.copy();
+        tileParams.setFormat("binary");
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxInFlight, tiles.size()), r -> {
+            Thread thread = new Thread(r, "cellpose-tile-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            CompletionService<Integer> completion = new ExecutorCompletionService<>(executor);
+            List<CellStore> cellsPerTile = new ArrayList<>(Collections.nCopies(tiles.size(), (CellStore) null));
+            for (int i = 0; i < tiles.size(); i++) {
+                final int index = i;
+                completion.submit(() -> {
+                    RawImageBody body = RawImageBody.of(imp, z, t, tiles.get(index));
+                    cellsPerTile.set(index, client.segment(baseUrl, tileParams, body).getStore());
+                    return index;
+                });
+            }
+
+            for (int done = 1; done <= tiles.size(); done++) {
+                Future<Integer> finished = completion.take();
+                try {
+                    finished.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IOException("Tile segmentation failed", cause);
+                }
+                if (listener != null) {
+                    listener.tileCompleted(done, tiles.size());
+                }
+            }
+            return TileStitcher.stitch(tiles, cellsPerTile, plan.getImageWidth(), plan.getImageHeight());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Tiled segmentation interrupted", e);
+        } finally {
+            // Cancels the remaining tiles when one has failed
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.cellpose.batch;
+
+import com.cellpose.backend.SegmentationParams;
+import com.cellpose.backend.TilePlan;
+import ij.Macro;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Settings of a batch run, read from an ImageJ macro options string such as
+ * {@code input=[/data/in] output=[/data/out] model_type=CellposeSAM concurrency=4}.
+ * Segmentation keys and defaults are the same as the /segment query.
+ */
+public class BatchConfig {
+    public static final String USAGE = "input=<folder> output=<folder> [url=http://localhost:8000] [start_backend=false]\n"
+            + "  [model_type=CellposeSAM] [model_name=cpsam] [channels=0] [diameter=30] [use_gpu=false]\n"
+            + "  [batch_size=64] [resample=false] [normalize=true] [flow_threshold=0.4] [cellprob_threshold=0.0]\n"
+            + "  [percentile_low=1.0] [percentile_high=99.0] [tile_norm=0]\n"
+            + "  [concurrency=2] [save=both|rois|overlay] [tile_memory=2048] [extensions=.tif,.tiff,.png,.jpg]";
+
+    private File inputDir;
+    private File outputDir;
+    private String backendUrl = "http://localhost:8000";
+    private boolean startBackend;
+    private SegmentationParams params = new SegmentationParams();
+    private int concurrency = 2;
+    private boolean saveRois = true;
+    private boolean saveOverlay = true;
+    private long tileMemoryBytes = TilePlan.DEFAULT_MEMORY_BUDGET_MB * 1024L * 1024L;
+    private List<String> extensions = Arrays.asList(".tif", ".tiff", ".png", ".jpg");
+
+    public static BatchConfig fromOptions(String options) {
+        if (options == null) options = "";
+        BatchConfig config = new BatchConfig();
+        String input = Macro.getValue(options, "input", null);
+        String output = Macro.getValue(options, "output", null);
+        if (input == null || output == null) {
+            throw new IllegalArgumentException("input and output folders are required. Usage:\n" + USAGE);
+        }
+        config.inputDir = new File(input);
+        config.outputDir = new File(output);
+        config.backendUrl = Macro.getValue(options, "url", config.backendUrl);
+        config.startBackend = Boolean.parseBoolean(Macro.getValue(options, "start_backend", "false"));
+
+        SegmentationParams p = config.params;
+        p.setModelType(Macro.getValue(options, "model_type", p.getModelType()));
+        p.setModelName(Macro.getValue(options, "model_name", p.getModelName()));
+        p.setChannels(Macro.getValue(options, "channels", p.getChannels()));
+        p.setDiameter(Double.parseDouble(Macro.getValue(options, "diameter", String.valueOf(p.getDiameter()))));
+        p.setUseGpu(Boolean.parseBoolean(Macro.getValue(options, "use_gpu", String.valueOf(p.isUseGpu()))));
+        p.setBatchSize(Integer.parseInt(Macro.getValue(options, "batch_size", String.valueOf(p.getBatchSize()))));
+        p.setResample(Boolean.parseBoolean(Macro.getValue(options, "resample", String.valueOf(p.isResample()))));
+        p.setNormalize(Boolean.parseBoolean(Macro.getValue(options, "normalize", String.valueOf(p.isNormalize()))));
+        p.setFlowThreshold(Double.parseDouble(Macro.getValue(options, "flow_threshold", String.valueOf(p.getFlowThreshold()))));
+        p.setCellprobThreshold(Double.parseDouble(Macro.getValue(options, "cellprob_threshold", String.valueOf(p.getCellprobThreshold()))));
+        p.setPercentileLow(Double.parseDouble(Macro.getValue(options, "percentile_low", String.valueOf(p.getPercentileLow()))));
+        p.setPercentileHigh(Double.parseDouble(Macro.getValue(options, "percentile_high", String.valueOf(p.getPercentileHigh()))));
+        p.setTileNorm(Integer.parseInt(Macro.getValue(options, "tile_norm", String.valueOf(p.getTileNorm()))));
+        p.setFormat("binary");
+
+        config.concurrency = Math.max(1, Integer.parseInt(Macro.getValue(options, "concurrency", String.valueOf(config.concurrency))));
+        String save = Macro.getValue(options, "save", "both").toLowerCase(Locale.ROOT);
+        config.saveRois = !save.equals("overlay");
+        config.saveOverlay = !save.equals("rois");
+        long tileMemoryMb = Long.parseLong(Macro.getValue(options, "tile_memory", String.valueOf(TilePlan.DEFAULT_MEMORY_BUDGET_MB)));
+        config.tileMemoryBytes = tileMemoryMb * 1024L * 1024L;
+        String extensions = Macro.getValue(options, "extensions", null);
+        if (extensions != null) {
+            config.extensions = Arrays.asList(extensions.toLowerCase(Locale.ROOT).split("\\s*,\\s*"));
+        }
+        return config;
+    }
+
+    /** Turns {@code key=value} / {@code --key=value} command-line arguments into a macro options string. */
+    public static String optionsFromArgs(String[] args) {
+        StringBuilder sb = new StringBuilder();
+        for (String arg : args) {
+            String a = arg.startsWith("--") ? arg.substring(2) : arg;
+            int eq = a.indexOf('=');
+            if (eq < 0) {
+                sb.append(a).append("=true ");
+            } else {
+                sb.append(a, 0, eq).append("=[").append(a.substring(eq + 1)).append("] ");
+            }
+        }
+        return sb.toString();
+    }
+
+    public boolean accepts(File file) {
+        String name = file.getName().toLowerCase(Locale.ROOT);
+        for (String extension : extensions) {
+            if (name.endsWith(extension)) return true;
+        }
+        return false;
+    }
+
+    // Getters
+    public File getInputDir() { return inputDir; }
+    public File getOutputDir() { return outputDir; }
+    public String getBackendUrl() { return backendUrl; }
+    public boolean isStartBackend() { return startBackend; }
+    public SegmentationParams getParams() { return params; }
+    public int getConcurrency() { return concurrency; }
+    public boolean isSaveRois() { return saveRois; }
+    public boolean isSaveOverlay() { return saveOverlay; }
+    public long getTileMemoryBytes() { return tileMemoryBytes; }
+    public List<String> getExtensions() { return extensions; }
+
+    // Setters
+    public void setBackendUrl(String backendUrl) { this.backendUrl = backendUrl; }
+}
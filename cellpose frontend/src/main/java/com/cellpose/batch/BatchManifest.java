@@ -0,0 +1,78 @@
+package com.cellpose.batch;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Append-only record of a batch run in the output folder, one tab-separated
+ * line per finished image: status, file name, cell count, milliseconds and
+ * the parameter string the image was segmented with. Each line is flushed as
+ * it is written, so an interrupted run loses at most the images in flight.
+ *
+ * On resume an image is skipped only if it is recorded as done with the same
+ * parameters; failed images and images done with other settings run again.
+ */
+public class BatchManifest implements AutoCloseable {
+    public static final String FILE_NAME = "cellpose-batch-manifest.tsv";
+
+    private static final String DONE = "done";
+    private static final String FAILED = "failed";
+
+    private final String paramsKey;
+    private final Set<String> done = new HashSet<>();
+    private final Writer writer;
+
+    public BatchManifest(File outputDir, String paramsKey) throws IOException {
+        this.paramsKey = paramsKey;
+        File file = new File(outputDir, FILE_NAME);
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    // A torn last line from a killed run has fewer fields and is ignored
+                    if (fields.length == 5 && DONE.equals(fields[0]) && paramsKey.equals(fields[4])) {
+                        done.add(fields[1]);
+                    }
+                }
+            }
+        }
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public boolean isDone(String fileName) {
+        return done.contains(fileName);
+    }
+
+    public int getDoneCount() {
+        return done.size();
+    }
+
+    public synchronized void recordDone(String fileName, int cells, long millis) throws IOException {
+        append(DONE, fileName, String.valueOf(cells), millis);
+    }
+
+    public synchronized void recordFailed(String fileName, String message, long millis) throws IOException {
+        append(FAILED, fileName, message == null ? "" : message.replaceAll("[\\t\\r\\n]+", " "), millis);
+    }
+
+    private void append(String status, String fileName, String detail, long millis) throws IOException {
+        writer.write(status + "\t" + fileName + "\t" + detail + "\t" + millis + "\t" + paramsKey + "\n");
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,149 @@
+package com.cellpose.batch;
+
+import com.cellpose.backend.BackendClient;
+import com.cellpose.backend.RawImageBody;
+import com.cellpose.backend.StackSegmenter;
+import com.cellpose.backend.TilePlan;
+import com.cellpose.backend.TiledSegmenter;
+import com.cellpose.diagnostics.Log;
+import com.cellpose.io.RoiZipWriter;
+import com.cellpose.model.CellStore;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Overlay;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segments every image in a folder without any UI. Images are processed by a
+ * fixed pool of {@code concurrency} workers, each opening its image only when
+ * it starts, so memory is bounded by the pool size rather than the folder
+ * size. Results are written per image and recorded in a {@link BatchManifest},
+ * so a rerun skips what is already done.
+ */
+public class BatchSegmenter {
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+    private final BatchConfig config;
+    private final BackendClient client;
+
+    public BatchSegmenter(BatchConfig config, BackendClient client) {
+        this.config = config;
+        this.client = client;
+    }
+
+    /** Returns the number of images that failed in this run. */
+    public int run() throws IOException, InterruptedException {
+        File[] listed = config.getInputDir().listFiles(file -> file.isFile() && config.accepts(file));
+        if (listed == null) {
+            throw new IOException("Cannot read input folder " + config.getInputDir());
+        }
+        Arrays.sort(listed);
+        File outputDir = config.getOutputDir();
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Cannot create output folder " + outputDir);
+        }
+
+        AtomicInteger failed = new AtomicInteger();
+        try (BatchManifest manifest = new BatchManifest(outputDir, config.getParams().toQueryString())) {
+            List<File> pending = new ArrayList<>();
+            for (File file : listed) {
+                if (!manifest.isDone(file.getName())) pending.add(file);
+            }
+            log(listed.length + " images, " + (listed.length - pending.size()) + " already done, "
+                    + pending.size() + " to segment with " + config.getConcurrency() + " workers");
+
+            ExecutorService executor = Executors.newFixedThreadPool(config.getConcurrency(), r -> {
+                Thread thread = new Thread(r, "cellpose-batch-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            AtomicInteger finished = new AtomicInteger();
+            for (File file : pending) {
+                executor.execute(() -> {
+                    long start = System.currentTimeMillis();
+                    try {
+                        int cells = segment(file);
+                        manifest.recordDone(file.getName(), cells, System.currentTimeMillis() - start);
+                        log(finished.incrementAndGet() + "/" + pending.size() + " " + file.getName() + ": " + cells + " cells");
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        log(finished.incrementAndGet() + "/" + pending.size() + " " + file.getName() + " FAILED: " + e.getMessage());
+                        try {
+                            manifest.recordFailed(file.getName(), e.getMessage(), System.currentTimeMillis() - start);
+                        } catch (IOException ignored) {
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // keep waiting; progress is logged per image
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                throw e;
+            }
+        }
+        log("Finished: " + failed.get() + " failed");
+        return failed.get();
+    }
+
+    private int segment(File file) throws IOException {
+        ImagePlus imp = IJ.openImage(file.getPath());
+        if (imp == null) {
+            throw new IOException("Cannot open image");
+        }
+        try {
+            TilePlan plan = TilePlan.forImage(imp.getWidth(), imp.getHeight(),
+                    config.getParams().getDiameter(), config.getTileMemoryBytes());
+            CellStore cells;
+            if (imp.getNSlices() * imp.getNFrames() > 1) {
+                // Images already run in parallel, so planes within one image go one at a time
+                cells = new StackSegmenter(client, config.getBackendUrl(), 1).segment(imp, config.getParams(), plan, null);
+            } else if (plan.isTiled()) {
+                cells = new TiledSegmenter(client, config.getBackendUrl(), 1).segment(imp, 1, 1, config.getParams(), plan, null);
+            } else {
+                cells = client.segment(config.getBackendUrl(), config.getParams(), RawImageBody.of(imp, 1, 1)).getStore();
+            }
+
+            String baseName = stripExtension(file.getName());
+            if (config.isSaveRois()) {
+                RoiZipWriter.write(new File(config.getOutputDir(), baseName + "_rois.zip"), cells.asCells());
+            }
+            if (config.isSaveOverlay()) {
+                Overlay overlay = new Overlay();
+                for (int i = 0; i < cells.size(); i++) {
+                    overlay.add(cells.getRoi(i));
+                }
+                imp.setOverlay(overlay);
+                File out = new File(config.getOutputDir(), baseName + "_overlay.tif");
+                if (!new FileSaver(imp).saveAsTiff(out.getPath())) {
+                    throw new IOException("Cannot write " + out);
+                }
+            }
+            return cells.size();
+        } finally {
+            imp.close();
+        }
+    }
+
+    private static String stripExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static void log(String message) {
+        Log.info("[Cellpose Batch] " + message);
+    }
+}
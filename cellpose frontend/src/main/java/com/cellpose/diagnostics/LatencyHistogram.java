@@ -0,0 +1,80 @@
+package com.cellpose.diagnostics;
+
+import java.util.Arrays;
+
+/**
+ * Latency histogram with log-linear buckets: each power of two of
+ * microseconds is split into 32 equal buckets, so any percentile is
+ * reported within about 3% of the true value while the histogram stays a
+ * fixed array of counts, however many samples it holds. Thread-safe.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // One group for the values below SUB_BUCKETS, then one per shift up to Long.MAX_VALUE
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sumMicros;
+    private long minMicros = Long.MAX_VALUE;
+    private long maxMicros;
+
+    public synchronized void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[bucket(value)]++;
+        count++;
+        sumMicros += value;
+        minMicros = Math.min(minMicros, value);
+        maxMicros = Math.max(maxMicros, value);
+    }
+
+    public synchronized long getCount() { return count; }
+    public synchronized long getMinMicros() { return count > 0 ? minMicros : 0; }
+    public synchronized long getMaxMicros() { return maxMicros; }
+    public synchronized double getMeanMicros() { return count > 0 ? (double) sumMicros / count : 0; }
+
+    /**
+     * The value below which {@code quantile} (0..1) of the samples fall,
+     * taken as the midpoint of its bucket and clamped to the recorded range.
+     */
+    public synchronized long getPercentileMicros(double quantile) {
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[b];
+            if (seen >= rank) {
+                long upper = b + 1 < BUCKETS ? lowerBound(b + 1) - 1 : Long.MAX_VALUE;
+                long midpoint = lowerBound(b) + (upper - lowerBound(b)) / 2;
+                return Math.max(minMicros, Math.min(maxMicros, midpoint));
+            }
+        }
+        return maxMicros;
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sumMicros = 0;
+        minMicros = Long.MAX_VALUE;
+        maxMicros = 0;
+    }
+
+    /**
+     * Values below {@code SUB_BUCKETS} get a bucket each. Larger values are
+     * shifted right until they fit in {@code SUB_BUCKETS..2 * SUB_BUCKETS - 1};
+     * the shift picks the group of buckets and the remaining bits the bucket.
+     */
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+}
@@ -0,0 +1,58 @@
+package com.cellpose.diagnostics;
+
+import ij.IJ;
+import ij.Prefs;
+
+import java.util.function.Supplier;
+
+/**
+ * Level-gated front for {@code IJ.log}. Every line written to the Log window
+ * costs an EDT update, so routine per-request and per-plane messages go out
+ * at {@link Level#DEBUG} and are dropped unless the level is raised. The
+ * level is kept in the ImageJ preferences.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final String PREF_LEVEL = "cellpose.logLevel";
+
+    private static volatile Level level = parse(Prefs.get(PREF_LEVEL, Level.INFO.name()));
+
+    private Log() {
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+        Prefs.set(PREF_LEVEL, newLevel.name());
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    public static void error(String message) { log(Level.ERROR, message); }
+    public static void warn(String message) { log(Level.WARN, message); }
+    public static void info(String message) { log(Level.INFO, message); }
+    public static void debug(String message) { log(Level.DEBUG, message); }
+
+    /** Debug message built only when it will be written. */
+    public static void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) IJ.log(message.get());
+    }
+
+    public static void log(Level messageLevel, String message) {
+        if (isEnabled(messageLevel)) IJ.log(message);
+    }
+
+    private static Level parse(String name) {
+        try {
+            return Level.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+}
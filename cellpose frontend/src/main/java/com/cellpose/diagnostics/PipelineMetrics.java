@@ -0,0 +1,127 @@
+package com.cellpose.diagnostics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide latency histograms per pipeline stage, filled by the client
+ * around each step of a segmentation and from the backend's
+ * {@code Server-Timing} response header. Stages are listed in pipeline order.
+ */
+public final class PipelineMetrics {
+    /** Writing the request body, i.e. uploading the image. */
+    public static final String UPLOAD = "upload";
+    /** End of the upload until the response headers arrive: backend time plus network latency. */
+    public static final String WAIT = "wait";
+    /** Downloading and decoding the response body into cells. */
+    public static final String RESPONSE = "response";
+    /** Building the spatial index of a new result. */
+    public static final String INDEX = "index";
+    /** Rebuilding the image overlay, including the ROIs it creates. */
+    public static final String OVERLAY = "overlay";
+    /** Refilling the cell table. */
+    public static final String TABLE = "table";
+    /** A whole segmentation run as the user sees it, from click to result. */
+    public static final String RUN = "run";
+    /** Prefix of the stages reported by the backend (queue, model, decode, inference, encode, total). */
+    public static final String SERVER_PREFIX = "server ";
+
+    private static final List<String> ORDER = Arrays.asList(
+            UPLOAD, SERVER_PREFIX + "queue", SERVER_PREFIX + "model", SERVER_PREFIX + "decode",
+            SERVER_PREFIX + "inference", SERVER_PREFIX + "encode", SERVER_PREFIX + "total",
+            WAIT, RESPONSE, INDEX, OVERLAY, TABLE, RUN);
+
+    private static final Map<String, LatencyHistogram> STAGES = new ConcurrentHashMap<>();
+
+    private PipelineMetrics() {
+    }
+
+    /** Summary of one stage at the time of {@link #snapshot()}; times in milliseconds. */
+    public static final class StageSummary {
+        public final String stage;
+        public final long count;
+        public final double mean;
+        public final double p50;
+        public final double p95;
+        public final double p99;
+        public final double max;
+
+        StageSummary(String stage, LatencyHistogram histogram) {
+            this.stage = stage;
+            this.count = histogram.getCount();
+            this.mean = histogram.getMeanMicros() / 1000.0;
+            this.p50 = histogram.getPercentileMicros(0.50) / 1000.0;
+            this.p95 = histogram.getPercentileMicros(0.95) / 1000.0;
+            this.p99 = histogram.getPercentileMicros(0.99) / 1000.0;
+            this.max = histogram.getMaxMicros() / 1000.0;
+        }
+    }
+
+    public static void record(String stage, long nanos) {
+        STAGES.computeIfAbsent(stage, key -> new LatencyHistogram()).record(nanos / 1000);
+    }
+
+    /** Records the time since {@code startNanos}, a {@link System#nanoTime()} reading. */
+    public static void recordSince(String stage, long startNanos) {
+        record(stage, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the entries of a {@code Server-Timing} header, such as
+     * {@code inference;dur=812.5, encode;dur=31}, as {@link #SERVER_PREFIX}
+     * stages. Entries without a duration are ignored.
+     */
+    public static void recordServerTiming(String header) {
+        if (header == null) return;
+        for (String entry : header.split(",")) {
+            String[] parts = entry.trim().split(";");
+            if (parts[0].isEmpty()) continue;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("dur=")) {
+                    try {
+                        double millis = Double.parseDouble(param.substring(4));
+                        record(SERVER_PREFIX + parts[0], (long) (millis * 1_000_000));
+                    } catch (NumberFormatException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /** Every stage recorded so far, known stages in pipeline order, others after them by name. */
+    public static List<StageSummary> snapshot() {
+        List<String> names = new ArrayList<>(STAGES.keySet());
+        Collections.sort(names, (a, b) -> {
+            int ia = ORDER.indexOf(a), ib = ORDER.indexOf(b);
+            if (ia >= 0 && ib >= 0) return Integer.compare(ia, ib);
+            if (ia >= 0 || ib >= 0) return ia >= 0 ? -1 : 1;
+            return a.compareTo(b);
+        });
+        List<StageSummary> summaries = new ArrayList<>(names.size());
+        for (String name : names) {
+            summaries.add(new StageSummary(name, STAGES.get(name)));
+        }
+        return summaries;
+    }
+
+    public static void reset() {
+        STAGES.clear();
+    }
+
+    /** Writes {@link #snapshot()} as CSV with a header row; times in milliseconds. */
+    public static void writeCsv(Writer out) throws IOException {
+        out.write("stage,count,mean_ms,p50_ms,p95_ms,p99_ms,max_ms\n");
+        for (StageSummary s : snapshot()) {
+            out.write(String.format(Locale.ROOT, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                    s.stage, s.count, s.mean, s.p50, s.p95, s.p99, s.max));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.cellpose.io;
+
+import com.cellpose.analysis.LabelRasterizer;
+import com.cellpose.model.SegmentationResult;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes a label image as TIFF: the backend's label mask when the result has
+ * one, otherwise the outlines filled with their cell id by
+ * {@link LabelRasterizer} (later cells win where outlines overlap). 16-bit
+ * when the labels fit, 32-bit float otherwise.
+ */
+public class LabelTiffWriter implements ResultWriter {
+    private final File directory;
+
+    public LabelTiffWriter(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public File write(String baseName, SegmentationResult result, int width, int height) throws IOException {
+        File file = new File(directory, baseName + "_labels.tif");
+        ImagePlus labels = result.hasLabelMask()
+                ? result.getLabelMask().toImagePlus(baseName + "_labels")
+                : LabelRasterizer.rasterize(result.getStore(), width, height).toImagePlus(baseName + "_labels");
+        if (!new FileSaver(labels).saveAsTiff(file.getPath())) {
+            throw new IOException("Could not write " + file);
+        }
+        return file;
+    }
+}
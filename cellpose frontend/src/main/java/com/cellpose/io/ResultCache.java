@@ -0,0 +1,250 @@
+package com.cellpose.io;
+
+import com.cellpose.backend.BinaryRoiDecoder;
+import com.cellpose.backend.LabelMaskDecoder;
+import com.cellpose.model.CellStore;
+import com.cellpose.model.LabelMask;
+import com.cellpose.model.SegmentationResult;
+import org.apache.hc.client5.http.entity.mime.ContentBody;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * On-disk cache of decoded segmentation results under {@code ~/.cellpose/cache},
+ * keyed by a SHA-256 of the uploaded pixels and every request parameter, so an
+ * identical re-run never reaches the backend.
+ *
+ * Entries reuse the wire formats: magic "CPRC", version byte, 3 padding bytes,
+ * u32 length + binary outlines ("CPRB"), u32 length + label mask ("CPLM", 0 when
+ * absent). Reading an entry touches its modification time, and the least
+ * recently used entries are deleted once the cache exceeds its size limit.
+ */
+public class ResultCache {
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private static final byte[] MAGIC = {'C', 'P', 'R', 'C'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final String SUFFIX = ".cpr";
+
+    private final Path directory;
+    private final long maxBytes;
+
+    public ResultCache() {
+        this(Paths.get(System.getProperty("user.home"), ".cellpose", "cache"), DEFAULT_MAX_BYTES);
+    }
+
+    public ResultCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Hashes the exact bytes that would be uploaded plus the given parameter strings. */
+    public static String key(ContentBody image, String... parameters) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (OutputStream out = new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }, digest)) {
+            image.writeTo(out);
+        }
+        for (String parameter : parameters) {
+            digest.update((byte) 0);
+            digest.update(parameter.getBytes(StandardCharsets.UTF_8));
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /** The cached result, or null when there is none (or the entry is unreadable). */
+    public SegmentationResult get(String key) {
+        Path file = directory.resolve(key + SUFFIX);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(file);
+            SegmentationResult result = decode(data);
+            file.toFile().setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (IOException | RuntimeException e) {
+            // Corrupt or from an incompatible version: drop it and segment again
+            file.toFile().delete();
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, SegmentationResult result) throws IOException {
+        Files.createDirectories(directory);
+        byte[] data = encode(result);
+        Path tmp = Files.createTempFile(directory, key, ".tmp");
+        try {
+            Files.write(tmp, data);
+            Files.move(tmp, directory.resolve(key + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        evict();
+    }
+
+    private void evict() {
+        File[] entries = directory.toFile().listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (entries == null) return;
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        if (total <= maxBytes) return;
+
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (total <= maxBytes) break;
+            long size = entry.length();
+            if (entry.delete()) {
+                total -= size;
+            }
+        }
+    }
+
+    static byte[] encode(SegmentationResult result) throws IOException {
+        byte[] outlines = encodeOutlines(result.getStore());
+        byte[] mask = result.hasLabelMask() ? encodeLabelMask(result.getLabelMask()) : new byte[0];
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 + outlines.length + mask.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC).put((byte) VERSION).put(new byte[3]);
+        buffer.putInt(outlines.length).put(outlines);
+        buffer.putInt(mask.length).put(mask);
+        return buffer.array();
+    }
+
+    static SegmentationResult decode(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte b : MAGIC) {
+            if (buffer.get() != b) throw new IllegalArgumentException("Not a cache entry");
+        }
+        int version = buffer.get() & 0xFF;
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported cache entry version " + version);
+        }
+        buffer.position(HEADER_SIZE);
+        int outlinesLength = buffer.getInt();
+        CellStore cells = BinaryRoiDecoder.decodeStore(data, buffer.position(), outlinesLength);
+        buffer.position(buffer.position() + outlinesLength);
+        int maskLength = buffer.getInt();
+        LabelMask mask = maskLength > 0 ? LabelMaskDecoder.decode(data, buffer.position(), maskLength) : null;
+        return new SegmentationResult(cells, mask);
+    }
+
+    /** Same layout as the backend's binary outlines; vertices are pixel centres, so rounding is exact. */
+    private static byte[] encodeOutlines(CellStore cells) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(cells.size() * 64 + 12);
+        out.write('C');
+        out.write('P');
+        out.write('R');
+        out.write('B');
+        out.write(1);
+        out.write(0);
+        out.write(0);
+        out.write(0);
+        writeInt(out, cells.size());
+        float[] xs = new float[64];
+        float[] ys = new float[64];
+        for (int c = 0; c < cells.size(); c++) {
+            int n = cells.getVertexCount(c);
+            if (n > xs.length) {
+                xs = new float[Math.max(n, 2 * xs.length)];
+                ys = new float[xs.length];
+            }
+            cells.getVertices(c, xs, ys);
+            writeVarint(out, n);
+            int px = 0, py = 0;
+            for (int i = 0; i < n; i++) {
+                int x = Math.round(xs[i]);
+                int y = Math.round(ys[i]);
+                writeVarint(out, zigzag(x - px));
+                writeVarint(out, zigzag(y - py));
+                px = x;
+                py = y;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeLabelMask(LabelMask mask) throws IOException {
+        int bytesPerLabel = mask.is16Bit() ? 2 : 4;
+        int n = mask.getWidth() * mask.getHeight();
+        ByteBuffer raw = ByteBuffer.allocate(n * bytesPerLabel).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < n; i++) {
+            if (bytesPerLabel == 2) raw.putShort((short) mask.getLabel(i));
+            else raw.putInt(mask.getLabel(i));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('C');
+        out.write('P');
+        out.write('L');
+        out.write('M');
+        out.write(1);
+        out.write(bytesPerLabel);
+        out.write(0);
+        out.write(0);
+        writeInt(out, mask.getWidth());
+        writeInt(out, mask.getHeight());
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DeflaterOutputStream zlib = new DeflaterOutputStream(out, deflater)) {
+            zlib.write(raw.array());
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
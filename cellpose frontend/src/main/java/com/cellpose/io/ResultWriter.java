@@ -0,0 +1,18 @@
+package com.cellpose.io;
+
+import com.cellpose.model.SegmentationResult;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes one segmented image or plane to disk, so results can be written as
+ * they arrive instead of being collected in memory.
+ */
+public interface ResultWriter {
+    /**
+     * Writes {@code result} for a {@code width} x {@code height} plane under
+     * {@code baseName} (without extension) and returns the file written.
+     */
+    File write(String baseName, SegmentationResult result, int width, int height) throws IOException;
+}
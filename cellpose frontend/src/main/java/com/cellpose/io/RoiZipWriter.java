@@ -0,0 +1,48 @@
+package com.cellpose.io;
+
+import com.cellpose.model.Cell;
+import com.cellpose.model.SegmentationResult;
+import ij.io.RoiEncoder;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes cell outlines as an ImageJ ROI set ({@code .zip}), the format the
+ * ROI Manager opens and saves.
+ */
+public class RoiZipWriter implements ResultWriter {
+    private final File directory;
+
+    public RoiZipWriter(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public File write(String baseName, SegmentationResult result, int width, int height) throws IOException {
+        File file = new File(directory, baseName + ".zip");
+        write(file, result.getCells());
+        return file;
+    }
+
+    public static void write(File file, List<Cell> cells) throws IOException {
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            DataOutputStream out = new DataOutputStream(zip);
+            RoiEncoder encoder = new RoiEncoder(out);
+            for (int i = 0; i < cells.size(); i++) {
+                Cell cell = cells.get(i);
+                String name = cell.getRoi().getName() != null ? cell.getRoi().getName() : "Cell_" + (i + 1);
+                zip.putNextEntry(new ZipEntry(name + ".roi"));
+                encoder.write(cell.getRoi());
+                out.flush();
+                zip.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.cellpose.model;
+
+import ij.measure.ResultsTable;
+
+/**
+ * Per-cell morphometry and per-channel intensity statistics for a
+ * {@link CellStore}, one primitive array per measurement. Areas are pixel
+ * counts and intensities are raw pixel values; no spatial or density
+ * calibration is applied.
+ */
+public final class CellMeasurements {
+    private final CellStore cells;
+    private final int channels;
+    private final int[] pixelCounts;
+    private final float[] perimeters;
+    // Indexed [channel][cell]
+    private final double[][] sums;
+    private final float[][] mins;
+    private final float[][] maxs;
+
+    public CellMeasurements(CellStore cells, int channels, int[] pixelCounts, float[] perimeters,
+                            double[][] sums, float[][] mins, float[][] maxs) {
+        this.cells = cells;
+        this.channels = channels;
+        this.pixelCounts = pixelCounts;
+        this.perimeters = perimeters;
+        this.sums = sums;
+        this.mins = mins;
+        this.maxs = maxs;
+    }
+
+    public CellStore getCells() { return cells; }
+    public int size() { return cells.size(); }
+    public int getChannelCount() { return channels; }
+    public int getArea(int i) { return pixelCounts[i]; }
+    public double getPerimeter(int i) { return perimeters[i]; }
+
+    /** 4π·area/perimeter², capped at 1 like ImageJ's "Circ.". */
+    public double getCircularity(int i) {
+        double perimeter = perimeters[i];
+        return perimeter > 0 ? Math.min(1, 4 * Math.PI * pixelCounts[i] / (perimeter * perimeter)) : 0;
+    }
+
+    public double getMean(int channel, int i) {
+        return pixelCounts[i] > 0 ? sums[channel][i] / pixelCounts[i] : Double.NaN;
+    }
+
+    public double getMin(int channel, int i) { return pixelCounts[i] > 0 ? mins[channel][i] : Double.NaN; }
+    public double getMax(int channel, int i) { return pixelCounts[i] > 0 ? maxs[channel][i] : Double.NaN; }
+    public double getIntegratedDensity(int channel, int i) { return sums[channel][i]; }
+
+    /** Mean of {@code channel} for every cell, e.g. for {@link CellStore#withIntensities}. */
+    public float[] getMeans(int channel) {
+        float[] means = new float[size()];
+        for (int i = 0; i < means.length; i++) {
+            means[i] = (float) getMean(channel, i);
+        }
+        return means;
+    }
+
+    /**
+     * One row per cell with ImageJ's column names; with several channels the
+     * intensity columns get a {@code _C1}, {@code _C2}, ... suffix.
+     */
+    public ResultsTable toResultsTable() {
+        ResultsTable table = new ResultsTable(size());
+        boolean placed = size() > 0 && cells.getSlice(0) > 0;
+        for (int i = 0; i < size(); i++) {
+            table.setValue("Cell", i, cells.getId(i));
+            if (placed) {
+                table.setValue("Slice", i, cells.getSlice(i));
+                table.setValue("Frame", i, cells.getFrame(i));
+            }
+            table.setValue("X", i, cells.getX(i));
+            table.setValue("Y", i, cells.getY(i));
+            table.setValue("Area", i, pixelCounts[i]);
+            table.setValue("Perim.", i, perimeters[i]);
+            table.setValue("Circ.", i, getCircularity(i));
+            table.setValue("BX", i, cells.getMinX(i));
+            table.setValue("BY", i, cells.getMinY(i));
+            table.setValue("Width", i, cells.getMaxX(i) - cells.getMinX(i));
+            table.setValue("Height", i, cells.getMaxY(i) - cells.getMinY(i));
+            for (int c = 0; c < channels; c++) {
+                String suffix = channels > 1 ? "_C" + (c + 1) : "";
+                table.setValue("Mean" + suffix, i, getMean(c, i));
+                table.setValue("Min" + suffix, i, getMin(c, i));
+                table.setValue("Max" + suffix, i, getMax(c, i));
+                table.setValue("IntDen" + suffix, i, sums[c][i]);
+            }
+        }
+        return table;
+    }
+}
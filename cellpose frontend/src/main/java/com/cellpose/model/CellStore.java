@@ -0,0 +1,414 @@
+package com.cellpose.model;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable set of segmented cells stored column by column in flat
+ * primitive arrays: ids, centroids, radii, areas, intensities, bounding
+ * boxes and outlines. Nothing is shared mutably, so a store can be handed
+ * to the UI thread as a snapshot without copying.
+ *
+ * Outlines are kept in the same zigzag-varint delta encoding as the binary
+ * /segment response (see {@code BinaryRoiDecoder}), which takes about two
+ * bytes per vertex for pixel outlines. Outlines with non-integer vertices
+ * are stored as raw floats instead, so nothing is rounded. ROIs are only
+ * built on request by {@link #getRoi}, typically for the cells on screen.
+ */
+public final class CellStore {
+    public static final CellStore EMPTY = new Builder().build();
+
+    private final int size;
+    private final int[] ids;
+    private final double[] xs;
+    private final double[] ys;
+    private final float[] radii;
+    private final float[] areas;
+    private final float[] intensities;
+    // Bounding boxes: x, y, width, height per cell
+    private final int[] boxes;
+    // Vertex count per cell, or its complement (negative) for raw-float outlines
+    private final int[] vertexCounts;
+    private final int[] vertexOffsets;
+    private final byte[] vertexData;
+    // 1-based plane of each cell, or null when the cells are not placed on a plane
+    private final int[] slices;
+    private final int[] frames;
+    private final boolean hyperstack;
+    private final int nSlices;
+
+    private CellStore(int size, int[] ids, double[] xs, double[] ys, float[] radii, float[] areas, float[] intensities,
+                      int[] boxes, int[] vertexCounts, int[] vertexOffsets, byte[] vertexData,
+                      int[] slices, int[] frames, boolean hyperstack, int nSlices) {
+        this.size = size;
+        this.ids = ids;
+        this.xs = xs;
+        this.ys = ys;
+        this.radii = radii;
+        this.areas = areas;
+        this.intensities = intensities;
+        this.boxes = boxes;
+        this.vertexCounts = vertexCounts;
+        this.vertexOffsets = vertexOffsets;
+        this.vertexData = vertexData;
+        this.slices = slices;
+        this.frames = frames;
+        this.hyperstack = hyperstack;
+        this.nSlices = nSlices;
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+    public int getId(int i) { return ids[i]; }
+    public double getX(int i) { return xs[i]; }
+    public double getY(int i) { return ys[i]; }
+    public double getRadius(int i) { return radii[i]; }
+    public double getArea(int i) { return areas[i]; }
+    public double getIntensity(int i) { return intensities[i]; }
+    public int getSlice(int i) { return slices != null ? slices[i] : 0; }
+    public int getFrame(int i) { return frames != null ? frames[i] : 0; }
+
+    public int getMinX(int i) { return boxes[4 * i]; }
+    public int getMinY(int i) { return boxes[4 * i + 1]; }
+    public int getMaxX(int i) { return boxes[4 * i] + boxes[4 * i + 2]; }
+    public int getMaxY(int i) { return boxes[4 * i + 1] + boxes[4 * i + 3]; }
+
+    public Rectangle getBounds(int i) {
+        return new Rectangle(boxes[4 * i], boxes[4 * i + 1], boxes[4 * i + 2], boxes[4 * i + 3]);
+    }
+
+    public int getVertexCount(int i) {
+        int count = vertexCounts[i];
+        return count < 0 ? ~count : count;
+    }
+
+    /** Decodes the outline of cell {@code i} into {@code x} and {@code y}, which must hold {@link #getVertexCount} values. */
+    public int getVertices(int i, float[] x, float[] y) {
+        int count = vertexCounts[i];
+        int pos = vertexOffsets[i];
+        if (count < 0) {
+            count = ~count;
+            for (int v = 0; v < count; v++, pos += 8) {
+                x[v] = Float.intBitsToFloat(readInt(vertexData, pos));
+                y[v] = Float.intBitsToFloat(readInt(vertexData, pos + 4));
+            }
+            return count;
+        }
+        int px = 0, py = 0;
+        for (int v = 0; v < count; v++) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = vertexData[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            px += unzigzag(value);
+            value = 0;
+            shift = 0;
+            do {
+                b = vertexData[pos++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            py += unzigzag(value);
+            x[v] = px;
+            y[v] = py;
+        }
+        return count;
+    }
+
+    /** Even-odd test of an image point against the outline, without building a ROI. */
+    public boolean contains(int i, double x, double y) {
+        if (x < getMinX(i) || x > getMaxX(i) || y < getMinY(i) || y > getMaxY(i)) return false;
+        int n = getVertexCount(i);
+        float[] px = new float[n];
+        float[] py = new float[n];
+        getVertices(i, px, py);
+        boolean inside = false;
+        for (int a = 0, b = n - 1; a < n; b = a++) {
+            if ((py[a] > y) != (py[b] > y) && x < (px[b] - px[a]) * (y - py[a]) / (py[b] - py[a]) + px[a]) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    /** A new polygon ROI for cell {@code i}, named, styled and placed on its plane like the decoders used to. */
+    public PolygonRoi getRoi(int i) {
+        int n = getVertexCount(i);
+        float[] px = new float[n];
+        float[] py = new float[n];
+        getVertices(i, px, py);
+        PolygonRoi roi = new PolygonRoi(px, py, n, Roi.POLYGON);
+        roi.setStrokeColor(Color.YELLOW);
+        roi.setStrokeWidth(2);
+        roi.setName("Cell_" + ids[i]);
+        if (slices != null) {
+            if (hyperstack) {
+                roi.setPosition(0, slices[i], frames[i]);
+            } else {
+                roi.setPosition((frames[i] - 1) * nSlices + slices[i]);
+            }
+        }
+        return roi;
+    }
+
+    /**
+     * The same cells placed on one plane, sharing this store's arrays.
+     * Hyperstack ROIs take (channel, slice, frame) with channel 0 = all
+     * channels; plain stacks take the stack index, computed from {@code nSlices}.
+     */
+    public CellStore onPlane(int slice, int frame, boolean hyperstack, int nSlices) {
+        int[] s = new int[size];
+        int[] f = new int[size];
+        Arrays.fill(s, slice);
+        Arrays.fill(f, frame);
+        return new CellStore(size, ids, xs, ys, radii, areas, intensities, boxes, vertexCounts, vertexOffsets, vertexData,
+                s, f, hyperstack, nSlices);
+    }
+
+    /** The same cells with new intensities, one per cell, sharing every other array. */
+    public CellStore withIntensities(float[] values) {
+        if (values.length != size) {
+            throw new IllegalArgumentException("Expected " + size + " intensities, got " + values.length);
+        }
+        return new CellStore(size, ids, xs, ys, radii, areas, values, boxes, vertexCounts, vertexOffsets, vertexData,
+                slices, frames, hyperstack, nSlices);
+    }
+
+    /**
+     * Read-only {@link Cell} view for code that works on lists. Every
+     * {@code get} builds a new Cell with a new ROI, so iterate once rather
+     * than calling {@code get} repeatedly for the same cell.
+     */
+    public List<Cell> asCells() {
+        return new CellList();
+    }
+
+    private final class CellList extends AbstractList<Cell> implements RandomAccess {
+        @Override
+        public Cell get(int i) {
+            if (i < 0 || i >= size) throw new IndexOutOfBoundsException("Cell " + i + " of " + size);
+            // A stable colour per id, in the light range the random per-cell colours used
+            Color color = Color.getHSBColor((ids[i] * 0.618034f) % 1f, 0.45f, 1f);
+            Cell cell = new Cell(ids[i], xs[i], ys[i], radii[i], color, intensities[i]);
+            cell.setRoi(getRoi(i));
+            return cell;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /** Builds a store from materialized cells, numbering them in list order. */
+    public static CellStore of(List<Cell> cells) {
+        Builder builder = new Builder();
+        for (Cell cell : cells) {
+            Roi roi = cell.getRoi();
+            ij.process.FloatPolygon polygon = roi.getFloatPolygon();
+            builder.add(polygon.xpoints, polygon.ypoints, polygon.npoints);
+        }
+        return builder.build();
+    }
+
+    /** Joins stores in order, renumbering the cells from 1. Plane placement is kept. */
+    public static CellStore concat(List<CellStore> parts) {
+        int total = 0;
+        long bytes = 0;
+        boolean placed = false;
+        for (CellStore part : parts) {
+            total += part.size;
+            bytes += part.vertexOffsets[part.size];
+            placed |= part.slices != null;
+        }
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many outline vertices for one store");
+        }
+        int[] ids = new int[total];
+        double[] xs = new double[total], ys = new double[total];
+        float[] radii = new float[total];
+        float[] areas = new float[total], intensities = new float[total];
+        int[] boxes = new int[4 * total], vertexCounts = new int[total], vertexOffsets = new int[total + 1];
+        byte[] vertexData = new byte[(int) bytes];
+        int[] slices = placed ? new int[total] : null;
+        int[] frames = placed ? new int[total] : null;
+        boolean hyperstack = false;
+        int nSlices = 1;
+
+        int at = 0;
+        int byteAt = 0;
+        for (CellStore part : parts) {
+            int n = part.size;
+            for (int i = 0; i < n; i++) ids[at + i] = at + i + 1;
+            System.arraycopy(part.xs, 0, xs, at, n);
+            System.arraycopy(part.ys, 0, ys, at, n);
+            System.arraycopy(part.radii, 0, radii, at, n);
+            System.arraycopy(part.areas, 0, areas, at, n);
+            System.arraycopy(part.intensities, 0, intensities, at, n);
+            System.arraycopy(part.boxes, 0, boxes, 4 * at, 4 * n);
+            System.arraycopy(part.vertexCounts, 0, vertexCounts, at, n);
+            for (int i = 0; i < n; i++) vertexOffsets[at + i] = part.vertexOffsets[i] + byteAt;
+            System.arraycopy(part.vertexData, 0, vertexData, byteAt, part.vertexOffsets[n]);
+            if (part.slices != null) {
+                System.arraycopy(part.slices, 0, slices, at, n);
+                System.arraycopy(part.frames, 0, frames, at, n);
+                hyperstack = part.hyperstack;
+                nSlices = part.nSlices;
+            }
+            at += n;
+            byteAt += part.vertexOffsets[n];
+        }
+        vertexOffsets[total] = byteAt;
+        return new CellStore(total, ids, xs, ys, radii, areas, intensities, boxes, vertexCounts, vertexOffsets,
+                vertexData, slices, frames, hyperstack, nSlices);
+    }
+
+    /**
+     * Accumulates outlines into growable primitive arrays. Cells are numbered
+     * from 1 in the order they are added. Not thread-safe; parallel decoders
+     * use one builder per chunk and {@link #concat} the results.
+     */
+    public static final class Builder {
+        private int size;
+        private double[] xs = new double[64], ys = new double[64];
+        private float[] radii = new float[64], areas = new float[64];
+        private int[] boxes = new int[256];
+        private int[] vertexCounts = new int[64];
+        private int[] vertexOffsets = new int[65];
+        private byte[] vertexData = new byte[1024];
+        private int bytes;
+
+        public int size() {
+            return size;
+        }
+
+        /** Adds the outline made of the first {@code n} points of {@code x} and {@code y}; the arrays are not kept. */
+        public Builder add(float[] x, float[] y, int n) {
+            if (size == xs.length) grow();
+            double sumX = 0, sumY = 0;
+            float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+            float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+            boolean integral = true;
+            for (int i = 0; i < n; i++) {
+                sumX += x[i];
+                sumY += y[i];
+                minX = Math.min(minX, x[i]);
+                minY = Math.min(minY, y[i]);
+                maxX = Math.max(maxX, x[i]);
+                maxY = Math.max(maxY, y[i]);
+                integral &= x[i] == (int) x[i] && y[i] == (int) y[i];
+            }
+            double centerX = n > 0 ? sumX / n : 0;
+            double centerY = n > 0 ? sumY / n : 0;
+
+            // Radius: average distance from the centroid; area: shoelace formula
+            double sumDist = 0, twiceArea = 0;
+            for (int i = 0, j = n - 1; i < n; j = i++) {
+                double dx = x[i] - centerX;
+                double dy = y[i] - centerY;
+                sumDist += Math.sqrt(dx * dx + dy * dy);
+                twiceArea += (double) x[j] * y[i] - (double) x[i] * y[j];
+            }
+
+            xs[size] = centerX;
+            ys[size] = centerY;
+            radii[size] = n > 0 ? (float) (sumDist / n) : 0;
+            areas[size] = (float) (Math.abs(twiceArea) / 2);
+            int bx = n > 0 ? (int) Math.floor(minX) : 0;
+            int by = n > 0 ? (int) Math.floor(minY) : 0;
+            boxes[4 * size] = bx;
+            boxes[4 * size + 1] = by;
+            boxes[4 * size + 2] = n > 0 ? (int) Math.ceil(maxX) - bx : 0;
+            boxes[4 * size + 3] = n > 0 ? (int) Math.ceil(maxY) - by : 0;
+
+            vertexOffsets[size] = bytes;
+            if (integral) {
+                vertexCounts[size] = n;
+                int px = 0, py = 0;
+                for (int i = 0; i < n; i++) {
+                    ensureBytes(20);
+                    int vx = (int) x[i];
+                    int vy = (int) y[i];
+                    writeVarint(zigzag(vx - px));
+                    writeVarint(zigzag(vy - py));
+                    px = vx;
+                    py = vy;
+                }
+            } else {
+                vertexCounts[size] = ~n;
+                ensureBytes(8 * n);
+                for (int i = 0; i < n; i++) {
+                    writeInt(Float.floatToIntBits(x[i]));
+                    writeInt(Float.floatToIntBits(y[i]));
+                }
+            }
+            size++;
+            vertexOffsets[size] = bytes;
+            return this;
+        }
+
+        public CellStore build() {
+            int[] ids = new int[size];
+            for (int i = 0; i < size; i++) ids[i] = i + 1;
+            return new CellStore(size, ids, Arrays.copyOf(xs, size), Arrays.copyOf(ys, size), Arrays.copyOf(radii, size),
+                    Arrays.copyOf(areas, size), new float[size], Arrays.copyOf(boxes, 4 * size),
+                    Arrays.copyOf(vertexCounts, size), Arrays.copyOf(vertexOffsets, size + 1),
+                    Arrays.copyOf(vertexData, bytes), null, null, false, 1);
+        }
+
+        private void grow() {
+            int capacity = xs.length * 2;
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            radii = Arrays.copyOf(radii, capacity);
+            areas = Arrays.copyOf(areas, capacity);
+            boxes = Arrays.copyOf(boxes, 4 * capacity);
+            vertexCounts = Arrays.copyOf(vertexCounts, capacity);
+            vertexOffsets = Arrays.copyOf(vertexOffsets, capacity + 1);
+        }
+
+        private void ensureBytes(int more) {
+            if (bytes + more > vertexData.length) {
+                vertexData = Arrays.copyOf(vertexData, Math.max(bytes + more, vertexData.length * 2));
+            }
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                vertexData[bytes++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            vertexData[bytes++] = (byte) value;
+        }
+
+        private void writeInt(int value) {
+            vertexData[bytes++] = (byte) value;
+            vertexData[bytes++] = (byte) (value >>> 8);
+            vertexData[bytes++] = (byte) (value >>> 16);
+            vertexData[bytes++] = (byte) (value >>> 24);
+        }
+
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | (data[pos + 3] & 0xFF) << 24;
+    }
+
+    private static int unzigzag(long v) {
+        return (int) ((v >>> 1) ^ -(v & 1));
+    }
+}
@@ -0,0 +1,92 @@
+package com.cellpose.model;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Label image where each pixel holds the id of the cell covering it (0 = background).
+ * Backed by a 16-bit array when all labels fit, otherwise by a 32-bit array.
+ */
+public class LabelMask {
+    private final int width;
+    private final int height;
+    private final short[] labels16;
+    private final int[] labels32;
+    private int maxLabel = -1;
+
+    public LabelMask(int width, int height, short[] labels) {
+        this.width = width;
+        this.height = height;
+        this.labels16 = labels;
+        this.labels32 = null;
+    }
+
+    public LabelMask(int width, int height, int[] labels) {
+        this.width = width;
+        this.height = height;
+        this.labels16 = null;
+        this.labels32 = labels;
+    }
+
+    // Getters
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    public boolean is16Bit() { return labels16 != null; }
+
+    public int getLabel(int index) {
+        return labels16 != null ? labels16[index] & 0xFFFF : labels32[index];
+    }
+
+    public int getLabel(int x, int y) {
+        return getLabel(y * width + x);
+    }
+
+    public synchronized int getMaxLabel() {
+        if (maxLabel < 0) {
+            int max = 0;
+            int n = width * height;
+            for (int i = 0; i < n; i++) {
+                int label = getLabel(i);
+                if (label > max) max = label;
+            }
+            maxLabel = max;
+        }
+        return maxLabel;
+    }
+
+    /**
+     * Wraps the labels as an ImageJ image. 16-bit labels share this mask's
+     * array; 32-bit labels are copied into a float image.
+     */
+    public ImagePlus toImagePlus(String title) {
+        return new ImagePlus(title, toProcessor());
+    }
+
+    /** The labels as a processor, sharing or copying the array as {@link #toImagePlus} does. */
+    public ImageProcessor toProcessor() {
+        ImageProcessor ip;
+        if (labels16 != null) {
+            ip = new ShortProcessor(width, height, labels16, null);
+        } else {
+            float[] pixels = new float[labels32.length];
+            for (int i = 0; i < pixels.length; i++) {
+                pixels[i] = labels32[i];
+            }
+            ip = new FloatProcessor(width, height, pixels);
+        }
+        ip.resetMinAndMax();
+        return ip;
+    }
+
+    /** 8-bit mask with 255 wherever a cell is and 0 elsewhere. */
+    public ByteProcessor toBinaryProcessor() {
+        byte[] pixels = new byte[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            if (getLabel(i) != 0) pixels[i] = (byte) 255;
+        }
+        return new ByteProcessor(width, height, pixels);
+    }
+}
@@ -0,0 +1,27 @@
+package com.cellpose.model;
+
+import java.util.List;
+
+/**
+ * Decoded /segment response: the cells, plus the label mask when the backend
+ * was asked for one ({@code format=mask}).
+ */
+public class SegmentationResult {
+    private final CellStore store;
+    private final LabelMask labelMask;
+
+    public SegmentationResult(CellStore store, LabelMask labelMask) {
+        this.store = store;
+        this.labelMask = labelMask;
+    }
+
+    public SegmentationResult(List<Cell> cells, LabelMask labelMask) {
+        this(CellStore.of(cells), labelMask);
+    }
+
+    public CellStore getStore() { return store; }
+    /** Cell view of {@link #getStore()}; each access builds the cell and its ROI anew. */
+    public List<Cell> getCells() { return store.asCells(); }
+    public LabelMask getLabelMask() { return labelMask; }
+    public boolean hasLabelMask() { return labelMask != null; }
+}
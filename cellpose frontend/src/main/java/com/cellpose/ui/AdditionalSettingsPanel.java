@@ -1,5 +1,7 @@
 package com.cellpose.ui;
 
+import com.cellpose.backend.TilePlan;
+
 import javax.swing.*;
 import java.awt.*;
 
@@ -9,6 +11,10 @@ public class AdditionalSettingsPanel extends JPanel {
     private JCheckBox normalizeCheckBox;
     private JSpinner flowThresholdSpinner;
     private JSpinner cellprobThresholdSpinner;
+    private JCheckBox labelMaskCheckBox;
+    private JSpinner tileMemorySpinner;
+    private JSpinner parallelTilesSpinner;
+    private JCheckBox resultCacheCheckBox;
     
     // Normalization sub-options
     private JSpinner percentileLowSpinner;
@@ -44,6 +50,27 @@ public class AdditionalSettingsPanel extends JPanel {
         cellprobThresholdSpinner = new JSpinner(new SpinnerNumberModel(0.0, -10.0, 10.0, 0.1));
         add(createLabeledSpinner("Cellprob Threshold:", cellprobThresholdSpinner));
         
+        // Label mask (backend returns the mask, outlines are traced locally)
+        labelMaskCheckBox = new JCheckBox();
+        labelMaskCheckBox.setSelected(false);
+        labelMaskCheckBox.setToolTipText("Return the label mask and trace outlines in the plugin");
+        add(createLabeledCheckBox("Label Mask:", labelMaskCheckBox));
+
+        // Large images are split into tiles sized to fit this much backend memory
+        tileMemorySpinner = new JSpinner(new SpinnerNumberModel(TilePlan.DEFAULT_MEMORY_BUDGET_MB, 256, 65536, 256));
+        tileMemorySpinner.setToolTipText("Backend memory per tile (MB); larger images are segmented in tiles");
+        add(createLabeledSpinner("Tile Memory (MB):", tileMemorySpinner));
+
+        parallelTilesSpinner = new JSpinner(new SpinnerNumberModel(2, 1, 8, 1));
+        parallelTilesSpinner.setToolTipText("Tiles sent to the backend at the same time");
+        add(createLabeledSpinner("Parallel Tiles:", parallelTilesSpinner));
+
+        // Identical image + settings are answered from ~/.cellpose/cache without the backend
+        resultCacheCheckBox = new JCheckBox();
+        resultCacheCheckBox.setSelected(true);
+        resultCacheCheckBox.setToolTipText("Reuse results of identical image and settings");
+        add(createLabeledCheckBox("Result Cache:", resultCacheCheckBox));
+
         // Normalize
         normalizeCheckBox = new JCheckBox();
         normalizeCheckBox.setSelected(true);
@@ -117,6 +144,22 @@ public class AdditionalSettingsPanel extends JPanel {
         return (Double) cellprobThresholdSpinner.getValue();
     }
 
+    public boolean isLabelMask() {
+        return labelMaskCheckBox.isSelected();
+    }
+
+    public long getTileMemoryBytes() {
+        return (Integer) tileMemorySpinner.getValue() * 1024L * 1024L;
+    }
+
+    public int getParallelTiles() {
+        return (Integer) parallelTilesSpinner.getValue();
+    }
+
+    public boolean isResultCache() {
+        return resultCacheCheckBox.isSelected();
+    }
+
     public double getPercentileLow() {
         return (Double) percentileLowSpinner.getValue();
     }
@@ -5,18 +5,16 @@ import ij.gui.ImageCanvas;
 import ij.gui.Overlay;
 import ij.gui.Roi;
 import ij.gui.OvalRoi;
-import com.cellpose.model.Cell;
+import com.cellpose.model.CellStore;
 import com.cellpose.model.ImageData;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.util.ArrayList;
-import java.util.List;
 
 public class CanvasPanel extends JPanel {
     private ImagePlus imagePlus;
-    private List<Cell> cells;
+    private CellStore cells = CellStore.EMPTY;
     private ImageData imageData;
     
     private JLabel filePathLabel;
@@ -29,9 +27,8 @@ public class CanvasPanel extends JPanel {
     private Point dragStart;
     private Point panOffset = new Point(0, 0);
     
-    public CanvasPanel(ImagePlus imp, List<Cell> cells, ImageData imageData) {
+    public CanvasPanel(ImagePlus imp, ImageData imageData) {
         this.imagePlus = imp;
-        this.cells = new ArrayList<>();
         this.imageData = imageData;
         
         setLayout(new BorderLayout());
@@ -145,9 +142,8 @@ public class CanvasPanel extends JPanel {
         }
     }
     
-    public void updateCells(List<Cell> newCells) {
-        cells.clear();
-        cells.addAll(newCells);
+    public void updateCells(CellStore newCells) {
+        cells = newCells;
         updateLabels();
         repaint();
     }
@@ -160,7 +156,7 @@ public class CanvasPanel extends JPanel {
     }
     
     private void clearCells() {
-        cells.clear();
+        cells = CellStore.EMPTY;
         if (imagePlus != null) {
             imagePlus.setOverlay(null);
         }
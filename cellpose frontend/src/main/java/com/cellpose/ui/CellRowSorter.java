@@ -0,0 +1,274 @@
+package com.cellpose.ui;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Sorts and filters a {@link CellTableModel} on its primitive columns.
+ * Unlike {@code TableRowSorter} it never boxes a value, and while no sort
+ * key or filter is set, appended rows are mapped in constant time each.
+ *
+ * Filters are comma-separated comparisons on column names, for example
+ * {@code area > 200, radius <= 8}; a row is shown when all of them hold.
+ */
+public class CellRowSorter extends RowSorter<CellTableModel> {
+    private final CellTableModel model;
+    private List<SortKey> sortKeys = Collections.emptyList();
+    private Condition[] filter = new Condition[0];
+    private int viewCount;
+    private int[] viewToModel = new int[0];
+    // Null while the view is the model in order, which is the common case
+    private int[] modelToView;
+
+    private static final class Condition {
+        final int column;
+        final String operator;
+        final double value;
+
+        Condition(int column, String operator, double value) {
+            this.column = column;
+            this.operator = operator;
+            this.value = value;
+        }
+
+        boolean test(double v) {
+            switch (operator) {
+                case "<": return v < value;
+                case "<=": return v <= value;
+                case ">": return v > value;
+                case ">=": return v >= value;
+                case "!=": return v != value;
+                default: return v == value;
+            }
+        }
+    }
+
+    public CellRowSorter(CellTableModel model) {
+        this.model = model;
+        rebuild();
+    }
+
+    @Override
+    public CellTableModel getModel() {
+        return model;
+    }
+
+    /** Sets the filter expression; a blank one shows every row. */
+    public void setFilter(String expression) {
+        filter = parse(expression);
+        int[] previous = currentViewToModel();
+        rebuild();
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public void toggleSortOrder(int column) {
+        SortOrder order = SortOrder.ASCENDING;
+        if (!sortKeys.isEmpty() && sortKeys.get(0).getColumn() == column) {
+            SortOrder current = sortKeys.get(0).getSortOrder();
+            order = current == SortOrder.ASCENDING ? SortOrder.DESCENDING
+                    : current == SortOrder.DESCENDING ? SortOrder.UNSORTED : SortOrder.ASCENDING;
+        }
+        setSortKeys(order == SortOrder.UNSORTED ? null : Collections.singletonList(new SortKey(column, order)));
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        List<SortKey> copy = new ArrayList<>();
+        if (keys != null) {
+            for (SortKey key : keys) {
+                if (key.getSortOrder() != SortOrder.UNSORTED) copy.add(key);
+            }
+        }
+        sortKeys = Collections.unmodifiableList(copy);
+        fireSortOrderChanged();
+        int[] previous = currentViewToModel();
+        rebuild();
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        return sortKeys;
+    }
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        if (index < 0 || index >= viewCount) throw new IndexOutOfBoundsException("Invalid view index " + index);
+        return viewToModel[index];
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        if (index < 0 || index >= model.getRowCount()) throw new IndexOutOfBoundsException("Invalid model index " + index);
+        if (modelToView == null) return index < viewCount ? index : -1;
+        return modelToView[index];
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return viewCount;
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return model.getRowCount();
+    }
+
+    @Override
+    public void modelStructureChanged() {
+        sortKeys = Collections.emptyList();
+        rebuild();
+    }
+
+    @Override
+    public void allRowsChanged() {
+        rebuild();
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+        if (isIdentity() && firstRow == viewCount) {
+            // Plain append: extend the identity mapping without touching earlier rows
+            ensureCapacity(endRow + 1);
+            for (int row = firstRow; row <= endRow; row++) {
+                viewToModel[viewCount++] = row;
+            }
+            return;
+        }
+        int[] previous = currentViewToModel();
+        rebuild();
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+        int[] previous = currentViewToModel();
+        rebuild();
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+        int[] previous = currentViewToModel();
+        rebuild();
+        fireRowSorterChanged(previous);
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+        rowsUpdated(firstRow, endRow);
+    }
+
+    private boolean isIdentity() {
+        return sortKeys.isEmpty() && filter.length == 0;
+    }
+
+    private int[] currentViewToModel() {
+        return Arrays.copyOf(viewToModel, viewCount);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > viewToModel.length) {
+            viewToModel = Arrays.copyOf(viewToModel, Math.max(capacity, viewToModel.length + (viewToModel.length >> 1) + 16));
+        }
+    }
+
+    private void rebuild() {
+        int rows = model.getRowCount();
+        ensureCapacity(rows);
+        viewCount = 0;
+        for (int row = 0; row < rows; row++) {
+            if (accepts(row)) viewToModel[viewCount++] = row;
+        }
+        if (!sortKeys.isEmpty()) {
+            mergeSort(viewToModel, viewCount);
+        }
+        if (isIdentity()) {
+            modelToView = null;
+        } else {
+            modelToView = new int[rows];
+            Arrays.fill(modelToView, -1);
+            for (int view = 0; view < viewCount; view++) {
+                modelToView[viewToModel[view]] = view;
+            }
+        }
+    }
+
+    private boolean accepts(int row) {
+        for (Condition condition : filter) {
+            if (!condition.test(model.getNumber(row, condition.column))) return false;
+        }
+        return true;
+    }
+
+    private int compare(int a, int b) {
+        for (SortKey key : sortKeys) {
+            int result = Double.compare(model.getNumber(a, key.getColumn()), model.getNumber(b, key.getColumn()));
+            if (result != 0) return key.getSortOrder() == SortOrder.DESCENDING ? -result : result;
+        }
+        return Integer.compare(a, b);
+    }
+
+    /** Stable bottom-up merge sort of the first {@code n} row indices. */
+    private void mergeSort(int[] rows, int n) {
+        int[] source = rows;
+        int[] target = new int[n];
+        for (int width = 1; width < n; width *= 2) {
+            for (int lo = 0; lo < n; lo += 2 * width) {
+                int mid = Math.min(lo + width, n);
+                int hi = Math.min(lo + 2 * width, n);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi) {
+                    target[k++] = compare(source[i], source[j]) <= 0 ? source[i++] : source[j++];
+                }
+                while (i < mid) target[k++] = source[i++];
+                while (j < hi) target[k++] = source[j++];
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        if (source != rows) {
+            System.arraycopy(source, 0, rows, 0, n);
+        }
+    }
+
+    private static Condition[] parse(String expression) {
+        List<Condition> conditions = new ArrayList<>();
+        if (expression == null) return new Condition[0];
+        for (String clause : expression.split(",")) {
+            String text = clause.trim();
+            if (text.isEmpty()) continue;
+            int at = -1;
+            for (int i = 0; i < text.length(); i++) {
+                if ("<>=!".indexOf(text.charAt(i)) >= 0) {
+                    at = i;
+                    break;
+                }
+            }
+            if (at <= 0) throw new IllegalArgumentException("Expected a comparison such as \"area > 100\": " + text);
+            int end = at + 1;
+            if (end < text.length() && text.charAt(end) == '=') end++;
+            String operator = text.substring(at, end);
+            if (operator.equals("!")) throw new IllegalArgumentException("Unknown operator in: " + text);
+            if (operator.equals("==")) operator = "=";
+            String name = text.substring(0, at).trim();
+            int column = CellTableModel.columnForName(name);
+            if (column < 0) throw new IllegalArgumentException("Unknown column: " + name);
+            double value;
+            try {
+                value = Double.parseDouble(text.substring(end).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Not a number: " + text.substring(end).trim());
+            }
+            conditions.add(new Condition(column, operator.toLowerCase(Locale.ROOT), value));
+        }
+        return conditions.toArray(new Condition[0]);
+    }
+}
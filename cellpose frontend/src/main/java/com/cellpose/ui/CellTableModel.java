@@ -0,0 +1,117 @@
+package com.cellpose.ui;
+
+import com.cellpose.model.CellStore;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.Arrays;
+
+/**
+ * Table model for the cell list, backed by one primitive array per column.
+ *
+ * Nothing is formatted up front: JTable only asks for the rows it paints,
+ * and {@link CellRowSorter} sorts and filters through {@link #getNumber}
+ * without boxing. Appending a result costs time proportional to its own
+ * cells, not to the cells already in the table.
+ */
+public class CellTableModel extends AbstractTableModel {
+    public static final int ID = 0;
+    public static final int X = 1;
+    public static final int Y = 2;
+    public static final int RADIUS = 3;
+    public static final int AREA = 4;
+    public static final int INTENSITY = 5;
+
+    private static final String[] COLUMN_NAMES = {"ID", "X", "Y", "Radius", "Area", "Intensity"};
+
+    private int rowCount;
+    private int[] ids = new int[0];
+    // Indexed by column; the ID column lives in ids
+    private final double[][] values = new double[COLUMN_NAMES.length][0];
+
+    /** Replaces the contents with {@code cells}. */
+    public void setCells(CellStore cells) {
+        rowCount = 0;
+        ensureCapacity(cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            put(rowCount++, cells, i);
+        }
+        fireTableDataChanged();
+    }
+
+    /**
+     * Adds {@code cells} after the rows already present, numbered on from
+     * them the way {@link CellStore#concat} will number the finished result.
+     */
+    public void append(CellStore cells) {
+        if (cells.isEmpty()) return;
+        int first = rowCount;
+        ensureCapacity(rowCount + cells.size());
+        for (int i = 0; i < cells.size(); i++) {
+            put(rowCount, cells, i);
+            ids[rowCount] = rowCount + 1;
+            rowCount++;
+        }
+        fireTableRowsInserted(first, rowCount - 1);
+    }
+
+    public void clear() {
+        rowCount = 0;
+        fireTableDataChanged();
+    }
+
+    /** The value at {@code row} as a primitive, for sorting and filtering. */
+    public double getNumber(int row, int column) {
+        return column == ID ? ids[row] : values[column][row];
+    }
+
+    /** Column index for a name such as "radius", case-insensitive, or -1. */
+    public static int columnForName(String name) {
+        for (int i = 0; i < COLUMN_NAMES.length; i++) {
+            if (COLUMN_NAMES[i].equalsIgnoreCase(name)) return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_NAMES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_NAMES[column];
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+        return column == ID ? Integer.class : Double.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return column == ID ? (Object) ids[row] : (Object) values[column][row];
+    }
+
+    private void put(int row, CellStore cells, int i) {
+        ids[row] = cells.getId(i);
+        values[X][row] = cells.getX(i);
+        values[Y][row] = cells.getY(i);
+        values[RADIUS][row] = cells.getRadius(i);
+        values[AREA][row] = cells.getArea(i);
+        values[INTENSITY][row] = cells.getIntensity(i);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= ids.length) return;
+        int grown = Math.max(capacity, ids.length + (ids.length >> 1) + 16);
+        ids = Arrays.copyOf(ids, grown);
+        for (int c = 1; c < values.length; c++) {
+            values[c] = Arrays.copyOf(values[c], grown);
+        }
+    }
+}
@@ -1,44 +1,87 @@
 package com.cellpose.ui;
 
-import ij.ImagePlus;
 import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.measure.ResultsTable;
+import com.cellpose.analysis.CellIndex;
+import com.cellpose.analysis.CellMeasurer;
+import com.cellpose.analysis.LabelRasterizer;
+import com.cellpose.backend.BackendClient;
 import com.cellpose.backend.BackendManager;
+import com.cellpose.backend.BackendRegistry;
+import com.cellpose.diagnostics.PipelineMetrics;
 import javax.swing.*;
 import java.awt.*;
-import java.util.stream.Collectors;
-import com.cellpose.model.Cell;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import com.cellpose.model.CellMeasurements;
+import com.cellpose.model.CellStore;
 import com.cellpose.model.ImageData;
+import com.cellpose.model.LabelMask;
+import com.cellpose.model.SegmentationResult;
 import java.util.ArrayList;
 import java.util.List;
 
 public class CellposeFrame extends JFrame {
+    /** Above this many cells, a zoomed-in view only puts the ROIs it can show into the overlay. */
+    private static final int CULLING_THRESHOLD = 5_000;
+    /** Selections larger than this are only partly highlighted on the image. */
+    private static final int MAX_HIGHLIGHTS = 10_000;
+    private static final int VIEWPORT_POLL_MS = 100;
+
     private ImagePlus imagePlus;
-    private List<Cell> cells;
+    // Immutable snapshot of the latest result; replaced, never modified
+    private CellStore cells = CellStore.EMPTY;
+    // Label mask the backend sent with the latest result, or null
+    private LabelMask labelMask;
+    private CellIndex cellIndex = CellIndex.build(CellStore.EMPTY);
+    private Overlay cellOverlay;
+    private Rectangle overlayView;
+    private final List<Roi> highlightRois = new ArrayList<>();
+    private boolean syncingSelection;
+    private Timer viewportTimer;
+    private RoiListener regionListener;
     private ImageData imageData;
+    private BackendRegistry.Lease backendLease;
     private BackendManager backendManager;
+    private BackendClient backendClient;
     
     private SegmentationPanel segmentationPanel;
     private DisplayPanel displayPanel;
     private ViewsPanel viewsPanel;
+    private DiagnosticsPanel diagnosticsPanel;
     private CanvasPanel canvasPanel;
-    private DefaultListModel<String> cellListModel;
-    private JList<String> cellList;
+    private CellTableModel cellTableModel;
+    private CellRowSorter cellSorter;
+    private JTable cellTable;
     
     public CellposeFrame(ImagePlus imp) {
         super("Cellpose - Cell Segmentation Tool");
         this.imagePlus = imp;
-        this.cells = new ArrayList<>();
         this.imageData = new ImageData(imp.getWidth(), imp.getHeight(), imp.getTitle());
-        this.backendManager = new BackendManager();
+        // Shared with every other Cellpose window, so only the first one launches a backend
+        this.backendLease = BackendRegistry.acquire();
+        this.backendManager = backendLease.getManager();
+        this.backendClient = backendLease.getClient();
+        // Launch the backend while the window is still being built; the panel's start() joins it
+        this.backendManager.prestart();
         
         initializeUI();
         setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
         setSize(1200, 800);
         setLocationRelativeTo(null);
+        installCanvasSelection();
         addWindowListener(new java.awt.event.WindowAdapter() {
             @Override
             public void windowClosed(java.awt.event.WindowEvent e) {
-                backendManager.stop();
+                viewportTimer.stop();
+                diagnosticsPanel.dispose();
+                Roi.removeRoiListener(regionListener);
+                backendLease.close();
             }
         });
     }
@@ -69,7 +112,7 @@ public class CellposeFrame extends JFrame {
         add(sidebarScroll, BorderLayout.WEST);
         
         // Center canvas area
-        canvasPanel = new CanvasPanel(imagePlus, cells, imageData);
+        canvasPanel = new CanvasPanel(imagePlus, imageData);
         add(canvasPanel, BorderLayout.CENTER);
 
         // Right panel: cell list
@@ -116,7 +159,8 @@ public class CellposeFrame extends JFrame {
         sidebar.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
         
         // Segmentation section
-        segmentationPanel = new SegmentationPanel(imagePlus, cells, this::updateCells, backendManager);
+        segmentationPanel = new SegmentationPanel(imagePlus, this::updateCells, backendManager, backendClient);
+        segmentationPanel.setCellAppendCallback(this::appendCells);
         sidebar.add(segmentationPanel);
         sidebar.add(Box.createVerticalStrut(20));
         
@@ -128,28 +172,42 @@ public class CellposeFrame extends JFrame {
         // Views section
         viewsPanel = new ViewsPanel();
         sidebar.add(viewsPanel);
+        sidebar.add(Box.createVerticalStrut(20));
+
+        // Diagnostics section (collapsed until opened)
+        diagnosticsPanel = new DiagnosticsPanel();
+        sidebar.add(diagnosticsPanel);
         sidebar.add(Box.createVerticalGlue());
         
         return sidebar;
     }
     
-    private void updateCells(List<Cell> newCells) {
-        IJ.log("updateCells called with " + newCells.size() + " cells");
-        this.cells.clear();
-        this.cells.addAll(newCells);
-        IJ.log("Cells list now has " + this.cells.size() + " cells");
+    private void updateCells(SegmentationResult result) {
+        this.cells = result.getStore();
+        this.labelMask = result.getLabelMask();
         canvasPanel.updateCells(cells);
-        IJ.log("Cells list now has " + this.cells.size() + " cells");
+        long start = System.nanoTime();
+        cellIndex = CellIndex.build(cells);
+        PipelineMetrics.recordSince(PipelineMetrics.INDEX, start);
+        highlightRois.clear();
+        cellOverlay = null;
+        refreshOverlay();
 
-        // Update the right-side cell list
-        if (cellListModel != null) {
-            cellListModel.clear();
-            for (Cell c : newCells) {
-                String item = String.format("%d: (%.1f, %.1f) r=%.1f", c.getId(), c.getX(), c.getY(), c.getRadius());
-                cellListModel.addElement(item);
-                IJ.log("Added to cellListModel: " + item + ", ROI=" + (c.getRoi() != null));
-            }
-            IJ.log("CellListModel now has " + cellListModel.size() + " items");
+        // Update the right-side cell table; rows are only formatted when painted
+        if (cellTableModel != null) {
+            start = System.nanoTime();
+            cellTableModel.setCells(cells);
+            PipelineMetrics.recordSince(PipelineMetrics.TABLE, start);
+        }
+    }
+
+    /**
+     * Lists cells from a run still in progress, e.g. one plane of a stack.
+     * They join the snapshot (and become selectable) when the run completes.
+     */
+    private void appendCells(CellStore moreCells) {
+        if (cellTableModel != null) {
+            cellTableModel.append(moreCells);
         }
     }
 
@@ -162,30 +220,159 @@ public class CellposeFrame extends JFrame {
         title.setForeground(new Color(79, 195, 247));
         panel.add(title, BorderLayout.NORTH);
 
-        cellListModel = new DefaultListModel<>();
-        cellList = new JList<>(cellListModel);
-        cellList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        cellList.setVisibleRowCount(10);
-        
-        // Add selection listener to highlight selected cell
-        cellList.addListSelectionListener(e -> {
-            if (!e.getValueIsAdjusting()) {
-                int selectedIndex = cellList.getSelectedIndex();
-                IJ.log("Cell selected - Index: " + selectedIndex + ", CellposeFrame.this.cells size: " + CellposeFrame.this.cells.size());
-                if (selectedIndex >= 0 && selectedIndex < CellposeFrame.this.cells.size()) {
-                    highlightSelectedCell(selectedIndex);
-                } else {
-                    IJ.log("Invalid index: " + selectedIndex + ", cells size: " + CellposeFrame.this.cells.size());
-                }
+        cellTableModel = new CellTableModel();
+        cellSorter = new CellRowSorter(cellTableModel);
+        cellTable = new JTable(cellTableModel);
+        cellTable.setRowSorter(cellSorter);
+        cellTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        cellTable.setFillsViewportHeight(true);
+        cellTable.setDefaultRenderer(Double.class, new javax.swing.table.DefaultTableCellRenderer() {
+            @Override
+            protected void setValue(Object value) {
+                setHorizontalAlignment(SwingConstants.RIGHT);
+                double number = value instanceof Double ? (Double) value : Double.NaN;
+                setText(Double.isNaN(number) ? "" : String.format("%.1f", number));
+            }
+        });
+
+        // Add selection listener to highlight selected cells
+        cellTable.getSelectionModel().addListSelectionListener(e -> {
+            if (!e.getValueIsAdjusting() && !syncingSelection) {
+                highlightCells(selectedCells());
+            }
+        });
+
+        JTextField filterField = new JTextField();
+        filterField.setToolTipText("Show only matching cells, e.g. \"area > 200, radius <= 8\"");
+        filterField.addActionListener(e -> {
+            try {
+                cellSorter.setFilter(filterField.getText());
+                filterField.setForeground(UIManager.getColor("TextField.foreground"));
+            } catch (IllegalArgumentException ex) {
+                filterField.setForeground(Color.RED);
+                filterField.setToolTipText(ex.getMessage());
             }
         });
+        JPanel filterPanel = new JPanel(new BorderLayout(5, 0));
+        filterPanel.setBorder(BorderFactory.createEmptyBorder(0, 0, 5, 0));
+        filterPanel.add(new JLabel("Filter:"), BorderLayout.WEST);
+        filterPanel.add(filterField, BorderLayout.CENTER);
+
+        JPanel tablePanel = new JPanel(new BorderLayout());
+        tablePanel.add(filterPanel, BorderLayout.NORTH);
+        tablePanel.add(new JScrollPane(cellTable), BorderLayout.CENTER);
+        panel.add(tablePanel, BorderLayout.CENTER);
 
-        JScrollPane listScroll = new JScrollPane(cellList);
-        panel.add(listScroll, BorderLayout.CENTER);
+        JButton measureButton = new JButton("Measure");
+        measureButton.setToolTipText("Measure area, perimeter and intensities of every cell on the current plane");
+        measureButton.addActionListener(e -> measureCells(measureButton));
+        JButton labelsButton = new JButton("Labels");
+        labelsButton.setToolTipText("Create a label image with each cell filled with its ID");
+        labelsButton.addActionListener(e -> rasterizeCells(labelsButton, false));
+        JButton maskButton = new JButton("Mask");
+        maskButton.setToolTipText("Create a binary mask of all cells");
+        maskButton.addActionListener(e -> rasterizeCells(maskButton, true));
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 5));
+        buttonPanel.add(labelsButton);
+        buttonPanel.add(maskButton);
+        buttonPanel.add(measureButton);
+        panel.add(buttonPanel, BorderLayout.SOUTH);
 
         return panel;
     }
     
+    /**
+     * Measures the current snapshot on the displayed plane off the EDT, shows
+     * the results table and puts the first channel's means into the cell table.
+     */
+    private void measureCells(JButton measureButton) {
+        CellStore snapshot = cells;
+        if (snapshot.isEmpty()) {
+            IJ.showStatus("No cells to measure");
+            return;
+        }
+        int z = imagePlus.getSlice();
+        int t = imagePlus.getFrame();
+        measureButton.setEnabled(false);
+        Thread thread = new Thread(() -> {
+            try {
+                long start = System.nanoTime();
+                CellMeasurements measurements = CellMeasurer.measure(snapshot, imagePlus, z, t);
+                ResultsTable table = measurements.toResultsTable();
+                long elapsed = (System.nanoTime() - start) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    table.show("Cellpose Measurements");
+                    IJ.showStatus("Measured " + snapshot.size() + " cells in " + elapsed + " ms");
+                    // Skip the update if a newer result replaced the snapshot meanwhile
+                    if (cells == snapshot) {
+                        cells = snapshot.withIntensities(measurements.getMeans(0));
+                        cellTableModel.setCells(cells);
+                    }
+                    measureButton.setEnabled(true);
+                });
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    IJ.error("Measurement Error", "An error occurred while measuring cells:\n" + ex.getMessage());
+                    measureButton.setEnabled(true);
+                });
+            }
+        }, "cellpose-measure");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Fills the current snapshot into a label image or binary mask off the
+     * EDT, one plane per slice and frame when the cells came from a stack.
+     * When the backend sent a label mask whose labels are the cell ids, that
+     * mask is copied instead.
+     */
+    private void rasterizeCells(JButton button, boolean binary) {
+        CellStore snapshot = cells;
+        LabelMask mask = labelMask;
+        if (snapshot.isEmpty()) {
+            IJ.showStatus("No cells to rasterize");
+            return;
+        }
+        String title = imagePlus.getShortTitle() + (binary ? "_mask" : "_labels");
+        button.setEnabled(false);
+        Thread thread = new Thread(() -> {
+            try {
+                ImagePlus image;
+                if (matchesCells(mask, snapshot)) {
+                    image = new ImagePlus(title, binary ? mask.toBinaryProcessor() : mask.toProcessor().duplicate());
+                } else {
+                    image = binary
+                            ? LabelRasterizer.toBinaryMask(snapshot, imagePlus, title)
+                            : LabelRasterizer.toLabelImage(snapshot, imagePlus, title);
+                }
+                SwingUtilities.invokeLater(() -> {
+                    image.show();
+                    button.setEnabled(true);
+                });
+            } catch (Exception ex) {
+                ex.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    IJ.error("Rasterization Error", "Could not create the image:\n" + ex.getMessage());
+                    button.setEnabled(true);
+                });
+            }
+        }, "cellpose-rasterize");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Whether {@code mask} covers this image and labels each of the cells by
+     * its id. Traced cells are numbered in label order, so that holds when the
+     * labels run from 1 to the cell count without gaps.
+     */
+    private boolean matchesCells(LabelMask mask, CellStore snapshot) {
+        return mask != null && mask.getWidth() == imagePlus.getWidth() && mask.getHeight() == imagePlus.getHeight()
+                && mask.getMaxLabel() == snapshot.size();
+    }
+
     private void applyDarkTheme() {
         Color bgColor = new Color(30, 30, 30);
         Color fgColor = new Color(255, 255, 255);
@@ -229,58 +416,155 @@ public class CellposeFrame extends JFrame {
         return imagePlus;
     }
     
-    public List<Cell> getCells() {
+    public CellStore getCells() {
         return cells;
     }
     
-    private void highlightSelectedCell(int index) {
-        IJ.log("highlightSelectedCell called with index: " + index);
-        
-        if (index < 0 || index >= cells.size()) {
-            IJ.log("Index out of bounds: " + index + " (cells size: " + cells.size() + ")");
-            return;
+    /**
+     * Click-to-select on the image: a click picks the cell under the cursor,
+     * shift- or ctrl-click adds or removes it, and finishing a rectangle, oval,
+     * polygon or freehand selection picks every cell whose centre lies inside.
+     */
+    private void installCanvasSelection() {
+        ImageCanvas canvas = imagePlus.getCanvas();
+        if (canvas != null) {
+            canvas.addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    int hit = cellIndex.find(canvas.offScreenXD(e.getX()), canvas.offScreenYD(e.getY()),
+                            imagePlus.getSlice(), imagePlus.getFrame());
+                    boolean toggle = e.isShiftDown() || e.isControlDown() || e.isMetaDown();
+                    if (hit < 0) {
+                        if (!toggle) selectCells(new int[0]);
+                    } else if (!toggle) {
+                        selectCells(new int[]{hit});
+                    } else {
+                        int row = cellTable.convertRowIndexToView(hit);
+                        if (row < 0) return;
+                        if (cellTable.isRowSelected(row)) {
+                            cellTable.removeRowSelectionInterval(row, row);
+                        } else {
+                            cellTable.addRowSelectionInterval(row, row);
+                        }
+                    }
+                }
+            });
         }
-        
-        Cell selectedCell = cells.get(index);
-        IJ.log("Selected cell ID: " + selectedCell.getId() + ", Has ROI: " + (selectedCell.getRoi() != null));
-        
-        if (selectedCell.getRoi() == null) {
-            IJ.log("Cell " + selectedCell.getId() + " has no ROI!");
+        regionListener = (imp, id) -> {
+            if (imp != imagePlus || id != RoiListener.COMPLETED) return;
+            Roi region = imp.getRoi();
+            if (region != null && region.isArea() && cellIndex.size() > 0) {
+                int[] inside = cellIndex.within(region, imp.getSlice(), imp.getFrame());
+                SwingUtilities.invokeLater(() -> selectCells(inside));
+            }
+        };
+        Roi.addRoiListener(regionListener);
+
+        // ImageJ has no viewport listener; poll the source rectangle to follow zooming and panning
+        viewportTimer = new Timer(VIEWPORT_POLL_MS, e -> {
+            if (cells.size() > CULLING_THRESHOLD && cellOverlay != null && imagePlus.getOverlay() == cellOverlay
+                    && !visibleArea().equals(overlayView)) {
+                refreshOverlay();
+            }
+        });
+        viewportTimer.start();
+    }
+
+    /** Selects the given cells (by position in the cell list) in the table and highlights them on the image. */
+    private void selectCells(int[] indices) {
+        syncingSelection = true;
+        int firstRow = -1;
+        try {
+            ListSelectionModel model = cellTable.getSelectionModel();
+            model.setValueIsAdjusting(true);
+            model.clearSelection();
+            for (int i : indices) {
+                int row = cellTable.convertRowIndexToView(i);
+                if (row < 0) continue;
+                model.addSelectionInterval(row, row);
+                if (firstRow < 0 || row < firstRow) firstRow = row;
+            }
+            model.setValueIsAdjusting(false);
+            if (firstRow >= 0) {
+                cellTable.scrollRectToVisible(cellTable.getCellRect(firstRow, 0, true));
+            }
+        } finally {
+            syncingSelection = false;
+        }
+        highlightCells(indices);
+    }
+
+    /** Selected table rows as positions in the cell list. */
+    private int[] selectedCells() {
+        int[] rows = cellTable.getSelectedRows();
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = cellTable.convertRowIndexToModel(rows[i]);
+        }
+        return rows;
+    }
+
+    /** Replaces the highlighted cells; highlight ROIs stay at the end of the overlay so they come off cheaply. */
+    private void highlightCells(int[] indices) {
+        Overlay overlay = imagePlus.getOverlay();
+        if (overlay != null && overlay == cellOverlay) {
+            for (int i = 0; i < highlightRois.size(); i++) {
+                overlay.remove(overlay.size() - 1);
+            }
+        }
+        highlightRois.clear();
+        for (int i = 0; i < indices.length && highlightRois.size() < MAX_HIGHLIGHTS; i++) {
+            if (indices[i] >= cells.size()) continue;
+            Roi highlight = cells.getRoi(indices[i]);
+            highlight.setStrokeColor(Color.WHITE);
+            highlight.setStrokeWidth(3);
+            highlight.setName("Highlight_" + cells.getId(indices[i]));
+            highlightRois.add(highlight);
+        }
+        if (overlay == null || overlay != cellOverlay) {
+            refreshOverlay();
             return;
         }
-        
-        // Get existing overlay or create new one
-        ij.gui.Overlay overlay = imagePlus.getOverlay();
-        if (overlay == null) {
-            IJ.log("No existing overlay, creating new one");
-            overlay = new ij.gui.Overlay();
-        } else {
-            IJ.log("Existing overlay has " + overlay.size() + " ROIs");
+        for (Roi highlight : highlightRois) {
+            overlay.add(highlight);
         }
-        
-        // Clone the selected cell's ROI and set it to white with thicker stroke
-        ij.gui.Roi highlightRoi = (ij.gui.Roi) selectedCell.getRoi().clone();
-        highlightRoi.setStrokeColor(Color.WHITE);
-        highlightRoi.setStrokeWidth(3);
-        highlightRoi.setName("Highlight_" + selectedCell.getId());
-        IJ.log("Created highlight ROI for cell " + selectedCell.getId());
-        
-        // Remove any previous highlight ROIs
-        int removedCount = 0;
-        for (int i = overlay.size() - 1; i >= 0; i--) {
-            ij.gui.Roi roi = overlay.get(i);
-            if (roi.getName() != null && roi.getName().startsWith("Highlight_")) {
-                overlay.remove(i);
-                removedCount++;
+        imagePlus.updateAndDraw();
+    }
+
+    /**
+     * Puts the cell outlines and highlights into the image overlay. With many
+     * cells and a zoomed-in view, only the outlines that reach into the
+     * visible area (plus a margin, so panning does not expose gaps) are added.
+     */
+    private void refreshOverlay() {
+        if (cells.isEmpty()) return;
+        long start = System.nanoTime();
+        Rectangle view = visibleArea();
+        Overlay overlay = new Overlay();
+        boolean wholeImage = view.width >= imagePlus.getWidth() && view.height >= imagePlus.getHeight();
+        // ROIs are built from the store here and dropped with the overlay, so only on-screen cells cost memory
+        if (cells.size() <= CULLING_THRESHOLD || wholeImage) {
+            for (int i = 0; i < cells.size(); i++) {
+                overlay.add(cells.getRoi(i));
+            }
+        } else {
+            Rectangle margin = new Rectangle(view);
+            margin.grow(view.width / 2, view.height / 2);
+            for (int i : cellIndex.query(margin)) {
+                overlay.add(cells.getRoi(i));
             }
         }
-        IJ.log("Removed " + removedCount + " previous highlight(s)");
-        
-        // Add the new highlight on top
-        overlay.add(highlightRoi);
-        IJ.log("Added highlight, overlay now has " + overlay.size() + " ROIs");
+        for (Roi highlight : highlightRois) {
+            overlay.add(highlight);
+        }
+        cellOverlay = overlay;
+        overlayView = view;
         imagePlus.setOverlay(overlay);
-        imagePlus.updateAndDraw();
-        IJ.log("Updated image display");
+        PipelineMetrics.recordSince(PipelineMetrics.OVERLAY, start);
+    }
+
+    private Rectangle visibleArea() {
+        ImageCanvas canvas = imagePlus.getCanvas();
+        if (canvas == null) return new Rectangle(0, 0, imagePlus.getWidth(), imagePlus.getHeight());
+        return new Rectangle(canvas.getSrcRect());
     }
 }
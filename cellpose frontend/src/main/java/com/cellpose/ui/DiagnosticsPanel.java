@@ -0,0 +1,170 @@
+package com.cellpose.ui;
+
+import com.cellpose.diagnostics.Log;
+import com.cellpose.diagnostics.PipelineMetrics;
+import com.cellpose.diagnostics.PipelineMetrics.StageSummary;
+import ij.IJ;
+import ij.io.SaveDialog;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collapsible view of the per-stage latency histograms in
+ * {@link PipelineMetrics}, with CSV export and the log level. The table is
+ * refreshed once a second, and only while the panel is open.
+ */
+public class DiagnosticsPanel extends JPanel {
+    private static final int REFRESH_MS = 1000;
+    private static final String[] COLUMNS = {"Stage", "n", "p50", "p95", "p99", "max"};
+
+    private final JButton toggleButton;
+    private final JPanel contentPanel;
+    private final StageTableModel tableModel = new StageTableModel();
+    private final Timer refreshTimer;
+
+    public DiagnosticsPanel() {
+        setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
+        setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+
+        toggleButton = new JButton("Diagnostics ▼");
+        toggleButton.setAlignmentX(Component.LEFT_ALIGNMENT);
+        toggleButton.setMaximumSize(new Dimension(Integer.MAX_VALUE, 30));
+        toggleButton.addActionListener(e -> toggle());
+        add(toggleButton);
+
+        contentPanel = new JPanel();
+        contentPanel.setLayout(new BoxLayout(contentPanel, BoxLayout.Y_AXIS));
+        contentPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        contentPanel.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(79, 195, 247), 1),
+            BorderFactory.createEmptyBorder(10, 10, 10, 10)
+        ));
+        contentPanel.setVisible(false);
+        add(contentPanel);
+
+        JLabel unitsLabel = new JLabel("Latency per stage (ms)");
+        unitsLabel.setForeground(Color.GRAY);
+        unitsLabel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        contentPanel.add(unitsLabel);
+        contentPanel.add(Box.createVerticalStrut(5));
+
+        JTable table = new JTable(tableModel);
+        table.setFillsViewportHeight(true);
+        table.getColumnModel().getColumn(0).setPreferredWidth(110);
+        JScrollPane tableScroll = new JScrollPane(table);
+        tableScroll.setAlignmentX(Component.LEFT_ALIGNMENT);
+        tableScroll.setPreferredSize(new Dimension(260, 200));
+        tableScroll.setMaximumSize(new Dimension(Integer.MAX_VALUE, 200));
+        contentPanel.add(tableScroll);
+        contentPanel.add(Box.createVerticalStrut(5));
+
+        JComboBox<Log.Level> levelCombo = new JComboBox<>(Log.Level.values());
+        levelCombo.setSelectedItem(Log.getLevel());
+        levelCombo.setToolTipText("Messages written to the ImageJ Log window; Debug adds per-request details");
+        levelCombo.addActionListener(e -> Log.setLevel((Log.Level) levelCombo.getSelectedItem()));
+        JPanel levelPanel = new JPanel(new BorderLayout(5, 0));
+        levelPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        levelPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 30));
+        levelPanel.add(new JLabel("Log Level:"), BorderLayout.WEST);
+        levelPanel.add(levelCombo, BorderLayout.CENTER);
+        contentPanel.add(levelPanel);
+        contentPanel.add(Box.createVerticalStrut(5));
+
+        JButton exportButton = new JButton("Export CSV...");
+        exportButton.addActionListener(e -> exportCsv());
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            PipelineMetrics.reset();
+            tableModel.refresh();
+        });
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 0, 0));
+        buttonPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        buttonPanel.add(exportButton);
+        buttonPanel.add(Box.createHorizontalStrut(5));
+        buttonPanel.add(resetButton);
+        contentPanel.add(buttonPanel);
+
+        refreshTimer = new Timer(REFRESH_MS, e -> tableModel.refresh());
+    }
+
+    /** Stops the refresh timer; call when the window closes. */
+    public void dispose() {
+        refreshTimer.stop();
+    }
+
+    private void toggle() {
+        boolean visible = !contentPanel.isVisible();
+        contentPanel.setVisible(visible);
+        toggleButton.setText(visible ? "Diagnostics ▲" : "Diagnostics ▼");
+        if (visible) {
+            tableModel.refresh();
+            refreshTimer.start();
+        } else {
+            refreshTimer.stop();
+        }
+        revalidate();
+        repaint();
+    }
+
+    private void exportCsv() {
+        SaveDialog dialog = new SaveDialog("Export Timings", "cellpose-timings", ".csv");
+        if (dialog.getFileName() == null) return;
+        File file = new File(dialog.getDirectory(), dialog.getFileName());
+        try (Writer out = new OutputStreamWriter(Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+            PipelineMetrics.writeCsv(out);
+        } catch (IOException ex) {
+            IJ.error("Export Error", "Could not write " + file + ":\n" + ex.getMessage());
+        }
+    }
+
+    private static final class StageTableModel extends AbstractTableModel {
+        private List<StageSummary> rows = Collections.emptyList();
+
+        void refresh() {
+            rows = PipelineMetrics.snapshot();
+            fireTableDataChanged();
+        }
+
+        @Override
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            StageSummary s = rows.get(row);
+            switch (column) {
+                case 0: return s.stage;
+                case 1: return s.count;
+                case 2: return format(s.p50);
+                case 3: return format(s.p95);
+                case 4: return format(s.p99);
+                default: return format(s.max);
+            }
+        }
+
+        private static String format(double millis) {
+            return millis >= 100 ? String.format("%.0f", millis) : String.format("%.1f", millis);
+        }
+    }
+}
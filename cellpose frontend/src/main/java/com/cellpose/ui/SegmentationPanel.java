@@ -1,41 +1,47 @@
 package com.cellpose.ui;
 
+import ij.IJ;
 import ij.ImagePlus;
-import ij.io.FileSaver;
+import ij.gui.GenericDialog;
 import ij.gui.Overlay;
-import ij.gui.PolygonRoi;
-import ij.gui.Roi;
-import com.cellpose.model.Cell;
+import com.cellpose.model.CellStore;
+import com.cellpose.model.SegmentationResult;
+import com.cellpose.backend.BackendClient;
+import com.cellpose.backend.BackendException;
 import com.cellpose.backend.BackendManager;
-import org.apache.hc.client5.http.classic.methods.HttpGet;
-import org.apache.hc.client5.http.classic.methods.HttpPost;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
-import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
-import org.apache.hc.client5.http.impl.classic.HttpClients;
-import org.apache.hc.client5.http.entity.mime.MultipartEntityBuilder;
-import org.apache.hc.core5.http.ContentType;
-import org.apache.hc.core5.http.HttpEntity;
+import com.cellpose.backend.RawImageBody;
+import com.cellpose.backend.SegmentationJob;
+import com.cellpose.backend.SegmentationParams;
+import com.cellpose.backend.StackSegmenter;
+import com.cellpose.backend.TilePlan;
+import com.cellpose.backend.TiledSegmenter;
+import com.cellpose.io.LabelTiffWriter;
+import com.cellpose.io.ResultCache;
+import com.cellpose.io.ResultWriter;
+import com.cellpose.io.RoiZipWriter;
+import com.cellpose.diagnostics.Log;
+import com.cellpose.diagnostics.PipelineMetrics;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.Polygon;
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.net.URLEncoder;
+import java.util.concurrent.CancellationException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.function.Consumer;
 
 public class SegmentationPanel extends JPanel {
     private ImagePlus imagePlus;
-    private List<Cell> cells;
-    private Consumer<List<Cell>> cellUpdateCallback;
+    private Consumer<SegmentationResult> cellUpdateCallback;
+    private Consumer<CellStore> cellAppendCallback;
     private BackendManager backendManager;
+    private BackendClient backendClient;
     private boolean backendStarting = false;
 
     private JComboBox<String> modelTypeCombo;
@@ -44,6 +50,7 @@ public class SegmentationPanel extends JPanel {
     private JComboBox<String> channel2Combo;
     private JSpinner diameterSpinner;
     private JCheckBox useGpuCheckBox;
+    private JCheckBox allPlanesCheckBox;
 
     private JTextField backendUrlField;
     private JCheckBox useExternalBackendCheckBox;
@@ -53,15 +60,23 @@ public class SegmentationPanel extends JPanel {
     private boolean additionalSettingsVisible = false;
     
     private JButton computeButton;
+    private JButton cancelButton;
+    private JProgressBar progressBar;
     private JTextArea statusLabel;
 
+    // The run in progress: a backend job for single planes, otherwise just the thread dispatching tiles/planes
+    private volatile SegmentationJob activeJob;
+    private volatile Thread activeThread;
+
     private Map<String, List<String>> modelsByType = new HashMap<>();
+    private final ResultCache resultCache = new ResultCache();
 
-    public SegmentationPanel(ImagePlus imp, List<Cell> cells, Consumer<List<Cell>> cellUpdateCallback, BackendManager backendManager) {
+    public SegmentationPanel(ImagePlus imp, Consumer<SegmentationResult> cellUpdateCallback,
+                             BackendManager backendManager, BackendClient backendClient) {
         this.imagePlus = imp;
-        this.cells = cells;
         this.cellUpdateCallback = cellUpdateCallback;
         this.backendManager = backendManager;
+        this.backendClient = backendClient;
 
         setLayout(new BoxLayout(this, BoxLayout.Y_AXIS));
         setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
@@ -76,6 +91,7 @@ public class SegmentationPanel extends JPanel {
 
         // Backend URL (top item)
         backendUrlField = new JTextField("http://localhost:8000");
+        backendUrlField.setToolTipText("One backend URL, or several separated by commas to spread images and tiles across them");
         add(createLabeledField("Backend URL:", backendUrlField));
 
         // External backend toggle
@@ -136,6 +152,12 @@ public class SegmentationPanel extends JPanel {
 
         // GPU Checkbox
         add(createLabeledCheckBox("Use GPU:", useGpuCheckBox = new JCheckBox()));
+
+        // Stack mode: every Z slice and T frame instead of just the displayed plane
+        allPlanesCheckBox = new JCheckBox();
+        allPlanesCheckBox.setEnabled(imagePlus.getNSlices() * imagePlus.getNFrames() > 1);
+        allPlanesCheckBox.setToolTipText("Segment every slice and frame, pipelining uploads with inference");
+        add(createLabeledCheckBox("All Planes:", allPlanesCheckBox));
         add(Box.createVerticalStrut(5));
 
         // Additional Settings Button
@@ -159,6 +181,21 @@ public class SegmentationPanel extends JPanel {
         add(Box.createVerticalStrut(10));
         add(computeButton);
 
+        // Progress of the running segmentation, with a button that stops it on the backend
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setVisible(false);
+        cancelButton = new JButton("Cancel");
+        cancelButton.setEnabled(false);
+        cancelButton.addActionListener(e -> cancelRun());
+        JPanel progressPanel = new JPanel(new BorderLayout(5, 0));
+        progressPanel.setAlignmentX(Component.LEFT_ALIGNMENT);
+        progressPanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, 30));
+        progressPanel.add(progressBar, BorderLayout.CENTER);
+        progressPanel.add(cancelButton, BorderLayout.EAST);
+        add(Box.createVerticalStrut(5));
+        add(progressPanel);
+
         // Status label
         statusLabel = new JTextArea(3, 24);
         statusLabel.setEditable(false);
@@ -189,6 +226,11 @@ public class SegmentationPanel extends JPanel {
         });
     }
 
+    /** Receives cells while a stack is still being segmented; the final list still goes to the update callback. */
+    public void setCellAppendCallback(Consumer<CellStore> cellAppendCallback) {
+        this.cellAppendCallback = cellAppendCallback;
+    }
+
     public void setBackendUrl(String backendUrl) {
         if (backendUrl != null && !backendUrl.trim().isEmpty()) {
             backendUrlField.setText(backendUrl.trim());
@@ -197,10 +239,8 @@ public class SegmentationPanel extends JPanel {
 
     private void handleBackendToggle() {
         if (useExternalBackendCheckBox.isSelected()) {
+            // The bundled backend is shared with other windows; it stops once no window holds it
             backendStarting = false;
-            if (backendManager != null) {
-                backendManager.stop();
-            }
             backendUrlField.setEnabled(true);
             setStatusText("Using external backend.", new Color(76, 175, 80));
         } else {
@@ -220,9 +260,18 @@ public class SegmentationPanel extends JPanel {
         backendUrlField.setEnabled(false);
         setStatusText("Starting bundled backend...", Color.ORANGE);
 
+        // Pre-warm whatever model is currently selected (built-in model if none fetched yet)
+        String warmModelType = toBackendModelType((String) modelTypeCombo.getSelectedItem());
+        String warmModelName = getSelectedModelName();
+        if (warmModelName == null) {
+            warmModelName = defaultModelName(warmModelType);
+        }
+        final String warmName = warmModelName;
+        final boolean warmGpu = useGpuCheckBox.isSelected();
+
         new Thread(() -> {
             try {
-                String url = backendManager.start();
+                String url = backendManager.start(warmModelType, warmName, warmGpu);
                 SwingUtilities.invokeLater(() -> {
                     backendUrlField.setText(url);
                     backendUrlField.setEnabled(false);
@@ -314,40 +363,21 @@ public class SegmentationPanel extends JPanel {
         setStatusText("Fetching models...", Color.ORANGE);
 
         new Thread(() -> {
-            try (CloseableHttpClient httpClient = HttpClients.createDefault()) {
-                String url = buildEndpoint(backendUrlField.getText(), "/getModels");
-                HttpGet get = new HttpGet(url);
-                CloseableHttpResponse response = httpClient.execute(get);
-                int statusCode = response.getCode();
-
-                if (statusCode == 200) {
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(response.getEntity().getContent())
-                    );
-                    StringBuilder sb = new StringBuilder();
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        sb.append(line);
-                    }
-                    reader.close();
-
-                    Map<String, List<String>> finalResult = parseModelsJson(sb.toString());
-
-                    SwingUtilities.invokeLater(() -> {
-                        modelsByType = finalResult;
-                        updateModelNameOptions();
-                        setStatusText("Models updated.", new Color(76, 175, 80));
-                        fetchModelsButton.setEnabled(true);
-                    });
-                } else {
-                    String errorMsg = new String(response.getEntity().getContent().readAllBytes());
-                    SwingUtilities.invokeLater(() -> {
-                        setStatusText("Error: " + errorMsg, Color.RED);
-                        fetchModelsButton.setEnabled(true);
-                    });
-                }
+            try {
+                String url = BackendClient.endpoint(backendUrlField.getText(), "/getModels");
+                Map<String, List<String>> finalResult = parseModelsJson(backendClient.getString(url));
 
-                response.close();
+                SwingUtilities.invokeLater(() -> {
+                    modelsByType = finalResult;
+                    updateModelNameOptions();
+                    setStatusText("Models updated.", new Color(76, 175, 80));
+                    fetchModelsButton.setEnabled(true);
+                });
+            } catch (BackendException ex) {
+                SwingUtilities.invokeLater(() -> {
+                    setStatusText("Error: " + ex.getMessage(), Color.RED);
+                    fetchModelsButton.setEnabled(true);
+                });
             } catch (Exception ex) {
                 ex.printStackTrace();
                 SwingUtilities.invokeLater(() -> {
@@ -375,207 +405,310 @@ public class SegmentationPanel extends JPanel {
         }
     }
 
+    private String getSelectedModelName() {
+        if (!modelNameCombo.isEnabled()) return null;
+        String modelName = (String) modelNameCombo.getSelectedItem();
+        if (modelName == null || "No models".equals(modelName)) return null;
+        return modelName;
+    }
+
+    private String defaultModelName(String backendModelType) {
+        if ("Cellpose3.1".equals(backendModelType)) return "cyto3";
+        return "cpsam";
+    }
+
     private void computeMasks() {
         computeButton.setEnabled(false);
+        cancelButton.setEnabled(true);
+        progressBar.setIndeterminate(true);
+        progressBar.setString("Submitting...");
+        progressBar.setVisible(true);
         setStatusText("Computing...", Color.ORANGE);
+        long runStart = System.nanoTime();
+
+        SegmentationParams params = buildParams();
+        String baseUrl = backendUrlField.getText();
+        BackendManager.rememberModel(params.getModelType(), params.getModelName(), params.isUseGpu());
+        TilePlan plan = TilePlan.forImage(imagePlus.getWidth(), imagePlus.getHeight(),
+                params.getDiameter(), additionalSettingsPanel.getTileMemoryBytes());
+        int parallelTiles = additionalSettingsPanel.getParallelTiles();
+        int z = imagePlus.getZ();
+        int t = imagePlus.getT();
+        boolean allPlanes = allPlanesCheckBox.isEnabled() && allPlanesCheckBox.isSelected();
+        boolean useCache = additionalSettingsPanel.isResultCache();
+
+        // Virtual stacks may not fit in memory: write each plane to disk instead of collecting cells
+        if (allPlanes && imagePlus.getStack().isVirtual()) {
+            streamToDisk(params, baseUrl, plan);
+            return;
+        }
 
-        new Thread(() -> {
-            File tempImageFile = null;
-            File fileToSend = null;
-            boolean createdTemp = false;
+        activeThread = new Thread(() -> {
             try {
-                // Try to send the original ImageJ file when available
-                try {
-                    ij.io.FileInfo fi = imagePlus.getOriginalFileInfo();
-                    if (fi != null && fi.fileName != null) {
-                        String dir = fi.directory != null ? fi.directory : "";
-                        File orig = new File(dir, fi.fileName);
-                        if (orig.exists()) {
-                            fileToSend = orig;
-                        }
-                    }
-                } catch (Throwable t) {
-                    // Some ImagePlus instances or ImageJ builds may not expose
-                    // original file info; ignore and fall back to creating PNG.
+                SegmentationResult result;
+                if (allPlanes) {
+                    Overlay overlay = new Overlay();
+                    SwingUtilities.invokeLater(() -> {
+                        cellUpdateCallback.accept(new SegmentationResult(CellStore.EMPTY, null));
+                        imagePlus.setOverlay(overlay);
+                    });
+                    StackSegmenter segmenter = new StackSegmenter(backendClient, baseUrl, StackSegmenter.DEFAULT_PIPELINE_DEPTH);
+                    CellStore allCells = segmenter.segment(imagePlus, params, plan, (pz, pt, planeResult, done, total) ->
+                            SwingUtilities.invokeLater(() -> {
+                                // Show each plane's outlines as soon as it is decoded
+                                CellStore plane = planeResult.getStore();
+                                for (int i = 0; i < plane.size(); i++) {
+                                    overlay.add(plane.getRoi(i));
+                                }
+                                if (cellAppendCallback != null) {
+                                    cellAppendCallback.accept(plane);
+                                }
+                                imagePlus.updateAndDraw();
+                                setStatusText("Segmented plane " + done + " of " + total + "...", Color.ORANGE);
+                                setProgress("Plane", done, total);
+                            }));
+                    SwingUtilities.invokeLater(() -> {
+                        cellUpdateCallback.accept(new SegmentationResult(allCells, null));
+                        recordRun(runStart, allCells.size());
+                        setStatusText("Segmentation complete! Found " + allCells.size() + " cells", new Color(76, 175, 80));
+                        finishRun();
+                    });
+                    return;
                 }
 
-                // If original file not available on disk, save a temporary PNG
-                // if (fileToSend == null) {
-                //     tempImageFile = File.createTempFile("cellpose_", ".png");
-                //     FileSaver fs = new FileSaver(imagePlus);
-                //     fs.saveAsPng(tempImageFile.getAbsolutePath());
-                //     fileToSend = tempImageFile;
-                //     createdTemp = true;
-                // }
-
-                // 2. Prepare multipart request
-                String modelType = toBackendModelType((String) modelTypeCombo.getSelectedItem());
-                String modelName = null;
-                if (modelNameCombo.isEnabled()) {
-                    modelName = (String) modelNameCombo.getSelectedItem();
-                    if (modelName != null && "No models".equals(modelName)) {
-                        modelName = null;
-                    }
+                // Published before the plane is hashed, so a cancel meanwhile reaches the job instead of an ignored interrupt
+                SegmentationJob job = plan.isTiled() ? null : new SegmentationJob(backendClient, baseUrl);
+                activeJob = job;
+
+                // Same pixels and settings as an earlier run: answer from the cache without the backend
+                String cacheKey = useCache ? ResultCache.key(RawImageBody.of(imagePlus, z, t), params.toQueryString(),
+                        plan.isTiled() ? "tiles=" + plan.getTileSize() + "/" + plan.getOverlap() : "whole") : null;
+                if (job != null && job.isCancelled()) {
+                    throw new CancellationException("Segmentation cancelled");
                 }
-                int channel1Index = Math.max(0, channelCombo.getSelectedIndex()); // 0-based
-                int channel2Selection = channel2Combo.getSelectedIndex(); // 0 = None, else 1..n
-                String channels;
-                if (channel2Selection <= 0) {
-                    channels = String.valueOf(channel1Index);
+                SegmentationResult cached = cacheKey != null ? resultCache.get(cacheKey) : null;
+                if (cached != null) {
+                    result = cached;
+                } else if (plan.isTiled()) {
+                    // Too large for one request: segment overlapping tiles and stitch the seams
+                    TiledSegmenter segmenter = new TiledSegmenter(backendClient, baseUrl, parallelTiles);
+                    CellStore stitched = segmenter.segment(imagePlus, z, t, params, plan, (done, total) ->
+                            SwingUtilities.invokeLater(() -> {
+                                setStatusText("Segmented tile " + done + " of " + total + "...", Color.ORANGE);
+                                setProgress("Tile", done, total);
+                            }));
+                    result = new SegmentationResult(stitched, null);
                 } else {
-                    int channel2Index = channel2Selection - 1;
-                    channels = channel1Index + "," + channel2Index;
-                }
-                int diameter = (Integer) diameterSpinner.getValue();
-                boolean useGpu = useGpuCheckBox.isSelected();
-                
-                // Get additional settings from the panel
-                int batchSize = additionalSettingsPanel.getBatchSize();
-                boolean resample = additionalSettingsPanel.isResample();
-                boolean normalize = additionalSettingsPanel.isNormalize();
-                double flowThreshold = additionalSettingsPanel.getFlowThreshold();
-                double cellprobThreshold = additionalSettingsPanel.getCellprobThreshold();
-
-                // Build URL with all parameters
-                String url = buildEndpoint(backendUrlField.getText(), "/segment") +
-                    "?model_type=" + encodeUrlParam(modelType) +
-                        "&diameter=" + diameter +
-                        "&channels=" + channels +
-                        "&use_gpu=" + useGpu +
-                        "&batch_size=" + batchSize +
-                        "&resample=" + resample +
-                        "&normalize=" + normalize +
-                        "&flow_threshold=" + flowThreshold +
-                        "&cellprob_threshold=" + cellprobThreshold;
-
-                if (modelName != null && !modelName.trim().isEmpty()) {
-                    url += "&model_name=" + encodeUrlParam(modelName);
+                    // Stream the displayed plane (all channels) straight from memory, as a cancellable job
+                    result = job.run(params, RawImageBody.of(imagePlus, z, t), (state, stage, done, total) ->
+                            SwingUtilities.invokeLater(() -> setJobProgress(state, stage, done, total)));
                 }
-                
-                // Add normalization sub-options if normalize is enabled
-                if (normalize) {
-                    url += "&percentile_low=" + additionalSettingsPanel.getPercentileLow() +
-                           "&percentile_high=" + additionalSettingsPanel.getPercentileHigh() +
-                           "&tile_norm=" + additionalSettingsPanel.getTileNorm();
+                if (cacheKey != null && cached == null) {
+                    try {
+                        resultCache.put(cacheKey, result);
+                    } catch (IOException e) {
+                        Log.warn("[Cellpose] Could not cache result: " + e.getMessage());
+                    }
                 }
+                boolean fromCache = cached != null;
+                CellStore newCells = result.getStore();
 
-                // 3. Build multipart entity
-                HttpEntity entity = MultipartEntityBuilder.create()
-                    .addBinaryBody("image", fileToSend, ContentType.APPLICATION_OCTET_STREAM, fileToSend.getName())
-                    .build();
-
-                // 4. Make HTTP request
-                CloseableHttpClient httpClient = HttpClients.createDefault();
-                HttpPost post = new HttpPost(url);
-                post.setEntity(entity);
-
-                CloseableHttpResponse response = httpClient.execute(post);
-                int statusCode = response.getCode();
-
-                if (statusCode == 200) {
-                    // 5. Parse response - each line contains ROI coordinates
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(response.getEntity().getContent())
-                    );
-
-                    List<Cell> newCells = new ArrayList<>();
-                    List<Roi> rois = new ArrayList<>();
-                    String line;
-                    int cellId = 1;
-
-                    while ((line = reader.readLine()) != null) {
-                        if (line.trim().isEmpty()) continue;
-
-                        // Parse coordinates (format: "x1,y1,x2,y2,...")
-                        String[] coords = line.split(",");
-                        if (coords.length >= 2) {
-                            // Create polygon ROI from coordinates
-                            float[] xPoints = new float[coords.length / 2];
-                            float[] yPoints = new float[coords.length / 2];
-
-                            double sumX = 0, sumY = 0;
-                            int numPoints = coords.length / 2;
-
-                            for (int i = 0; i < coords.length; i += 2) {
-                                xPoints[i / 2] = Float.parseFloat(coords[i]);
-                                yPoints[i / 2] = Float.parseFloat(coords[i + 1]);
-                                sumX += xPoints[i / 2];
-                                sumY += yPoints[i / 2];
-                            }
-
-                            double centerX = sumX / numPoints;
-                            double centerY = sumY / numPoints;
-
-                            // Create ImageJ ROI
-                            PolygonRoi roi = new PolygonRoi(xPoints, yPoints, Roi.POLYGON);
-                            roi.setName("Cell_" + cellId);
-                            roi.setStrokeColor(Color.YELLOW);
-                            roi.setStrokeWidth(2);
-                            rois.add(roi);
-
-                            // Estimate radius as average distance from center
-                            double sumDist = 0;
-                            for (int i = 0; i < coords.length; i += 2) {
-                                double dx = Double.parseDouble(coords[i]) - centerX;
-                                double dy = Double.parseDouble(coords[i + 1]) - centerY;
-                                sumDist += Math.sqrt(dx * dx + dy * dy);
-                            }
-                            double radius = sumDist / numPoints;
-
-                            // Create cell with random color
-                            Color cellColor = new Color(
-                                    (int)(Math.random() * 156 + 100),
-                                    (int)(Math.random() * 156 + 100),
-                                    (int)(Math.random() * 156 + 100)
-                            );
-
-                            Cell cell = new Cell(cellId++, centerX, centerY, radius, cellColor, 0.0);
-                            cell.setRoi(roi);
-                            newCells.add(cell);
-                        }
+                // The update callback puts the outlines into the overlay, building ROIs only for what is on screen
+                SwingUtilities.invokeLater(() -> {
+                    if (result.hasLabelMask()) {
+                        result.getLabelMask().toImagePlus(imagePlus.getShortTitle() + "_labels").show();
                     }
 
-                    reader.close();
-
-                    // Add ROIs to image overlay and RoiManager
+                    cellUpdateCallback.accept(result);
+                    recordRun(runStart, newCells.size());
+                    setStatusText("Segmentation complete! Found " + newCells.size() + " cells" + (fromCache ? " (cached)" : ""),
+                            new Color(76, 175, 80));
+                    finishRun();
+                });
+            } catch (CancellationException ex) {
+                SwingUtilities.invokeLater(() -> {
+                    setStatusText("Cancelled.", Color.ORANGE);
+                    finishRun();
+                });
+            } catch (BackendException ex) {
+                String errorMsg = ex.getMessage();
+                SwingUtilities.invokeLater(() -> {
+                    ij.IJ.error("Segmentation Error", "Segmentation failed:\n" + errorMsg);
+                    setStatusText("Error: " + errorMsg, Color.RED);
+                    finishRun();
+                });
+            } catch (Exception ex) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // Cancelled while dispatching tiles or planes
                     SwingUtilities.invokeLater(() -> {
-                        // Add to overlay - all outlines will be visible at once
-                        Overlay overlay = new Overlay();
+                        setStatusText("Cancelled.", Color.ORANGE);
+                        finishRun();
+                    });
+                    return;
+                }
+                ex.printStackTrace();
+                SwingUtilities.invokeLater(() -> {
+                    ij.IJ.error("Segmentation Error", "An error occurred during segmentation:\n" + ex.getMessage());
+                    setStatusText("Error: " + ex.getMessage(), Color.RED);
+                    finishRun();
+                });
+            }
+        });
+        activeThread.start();
+    }
 
-                        for (Roi roi : rois) {
-                            overlay.add(roi);
-                        }
-                        imagePlus.setOverlay(overlay);
-                        imagePlus.updateAndDraw();
+    /** Stops the running segmentation: the backend job if there is one, otherwise further tiles/planes. */
+    private void cancelRun() {
+        cancelButton.setEnabled(false);
+        setStatusText("Cancelling...", Color.ORANGE);
+        SegmentationJob job = activeJob;
+        Thread thread = activeThread;
+        new Thread(() -> {
+            if (job != null) {
+                try {
+                    job.cancel();
+                } catch (IOException ex) {
+                    Log.warn("[Cellpose] Could not cancel job: " + ex.getMessage());
+                }
+            } else if (thread != null) {
+                thread.interrupt();
+            }
+        }).start();
+    }
+
+    /** Records a finished run, from the click to its cells being shown, once they are on screen. */
+    private void recordRun(long runStart, int cells) {
+        long nanos = System.nanoTime() - runStart;
+        PipelineMetrics.record(PipelineMetrics.RUN, nanos);
+        Log.debug(() -> "[Cellpose] Segmented " + cells + " cells in " + nanos / 1_000_000 + " ms");
+    }
+
+    /** Resets the run controls after completion, failure or cancellation; call on the EDT. */
+    private void finishRun() {
+        activeJob = null;
+        activeThread = null;
+        computeButton.setEnabled(true);
+        cancelButton.setEnabled(false);
+        progressBar.setVisible(false);
+    }
 
-                        cellUpdateCallback.accept(newCells);
-                        setStatusText("Segmentation complete! Found " + newCells.size() + " cells", new Color(76, 175, 80));
-                        computeButton.setEnabled(true);
+    private void setProgress(String unit, int done, int total) {
+        progressBar.setIndeterminate(false);
+        progressBar.setMaximum(total);
+        progressBar.setValue(done);
+        progressBar.setString(unit + " " + done + " / " + total);
+    }
+
+    private void setJobProgress(String state, String stage, int done, int total) {
+        if (total > 0) {
+            setProgress(stageLabel(stage), done, total);
+            return;
+        }
+        progressBar.setIndeterminate(true);
+        if ("queued".equals(state)) {
+            progressBar.setString("Queued");
+        } else if ("inference".equals(stage) && done > 0) {
+            progressBar.setString("Inference: " + done + " tiles");
+        } else {
+            progressBar.setString(stageLabel(stage));
+        }
+    }
+
+    private static String stageLabel(String stage) {
+        if ("model".equals(stage)) return "Loading model";
+        if ("inference".equals(stage)) return "Inference";
+        if ("masks".equals(stage)) return "Reconstructing masks";
+        if ("encode".equals(stage)) return "Encoding result";
+        return "Running";
+    }
+
+    private void streamToDisk(SegmentationParams params, String baseUrl, TilePlan plan) {
+        GenericDialog dialog = new GenericDialog("Stream Virtual Stack");
+        dialog.addMessage("Each plane's result is written to disk as soon as it is segmented.");
+        dialog.addDirectoryField("Output folder:", IJ.getDirectory("current"));
+        dialog.addChoice("Output:", new String[]{"ROI zip", "Label TIFF"}, "ROI zip");
+        dialog.addNumericField("Planes in flight:", StackSegmenter.DEFAULT_PIPELINE_DEPTH, 0);
+        dialog.showDialog();
+        if (dialog.wasCanceled()) {
+            setStatusText("Cancelled.", Color.ORANGE);
+            finishRun();
+            return;
+        }
+        File directory = new File(dialog.getNextString());
+        boolean labels = dialog.getNextChoiceIndex() == 1;
+        int depth = (int) dialog.getNextNumber();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            IJ.error("Segmentation Error", "Cannot create output folder:\n" + directory);
+            finishRun();
+            return;
+        }
+
+        // Label TIFFs come straight from the backend's mask; ROI sets only need outlines
+        params.setFormat(labels ? "mask" : "binary");
+        ResultWriter writer = labels ? new LabelTiffWriter(directory) : new RoiZipWriter(directory);
+        String title = imagePlus.getShortTitle();
+        int width = imagePlus.getWidth();
+        int height = imagePlus.getHeight();
+
+        activeThread = new Thread(() -> {
+            try {
+                StackSegmenter segmenter = new StackSegmenter(backendClient, baseUrl, depth);
+                long found = segmenter.stream(imagePlus, params, plan, (z, t, result, done, total) -> {
+                    writer.write(String.format("%s_z%03d_t%04d", title, z, t), result, width, height);
+                    SwingUtilities.invokeLater(() -> {
+                        setStatusText("Wrote plane " + done + " of " + total + "...", Color.ORANGE);
+                        setProgress("Plane", done, total);
                     });
-                } else {
-                    String errorMsg = new String(response.getEntity().getContent().readAllBytes());
+                });
+                SwingUtilities.invokeLater(() -> {
+                    setStatusText("Segmentation complete! Found " + found + " cells, written to " + directory, new Color(76, 175, 80));
+                    finishRun();
+                });
+            } catch (Exception ex) {
+                if (Thread.currentThread().isInterrupted()) {
                     SwingUtilities.invokeLater(() -> {
-                        ij.IJ.error("Segmentation Error", "Segmentation failed:\n" + errorMsg);
-                        setStatusText("Error: " + errorMsg, Color.RED);
-                        computeButton.setEnabled(true);
+                        setStatusText("Cancelled. Planes written so far are in " + directory, Color.ORANGE);
+                        finishRun();
                     });
+                    return;
                 }
-
-                httpClient.close();
-            } catch (Exception ex) {
                 ex.printStackTrace();
                 SwingUtilities.invokeLater(() -> {
-                    ij.IJ.error("Segmentation Error", "An error occurred during segmentation:\n" + ex.getMessage());
+                    IJ.error("Segmentation Error", "An error occurred during segmentation:\n" + ex.getMessage());
                     setStatusText("Error: " + ex.getMessage(), Color.RED);
-                    computeButton.setEnabled(true);
+                    finishRun();
                 });
-            } finally {
-                // Clean up only the temp file we created
-                if (createdTemp && tempImageFile != null && tempImageFile.exists()) {
-                    tempImageFile.delete();
-                }
             }
-        }).start();
+        });
+        activeThread.start();
+    }
+
+    /** Reads the current settings; call on the EDT. */
+    private SegmentationParams buildParams() {
+        SegmentationParams params = new SegmentationParams();
+        params.setModelType(toBackendModelType((String) modelTypeCombo.getSelectedItem()));
+        params.setModelName(getSelectedModelName());
+
+        int channel1Index = Math.max(0, channelCombo.getSelectedIndex()); // 0-based
+        int channel2Selection = channel2Combo.getSelectedIndex(); // 0 = None, else 1..n
+        if (channel2Selection <= 0) {
+            params.setChannels(String.valueOf(channel1Index));
+        } else {
+            params.setChannels(channel1Index + "," + (channel2Selection - 1));
+        }
+        params.setDiameter((Integer) diameterSpinner.getValue());
+        params.setUseGpu(useGpuCheckBox.isSelected());
+
+        params.setBatchSize(additionalSettingsPanel.getBatchSize());
+        params.setResample(additionalSettingsPanel.isResample());
+        params.setNormalize(additionalSettingsPanel.isNormalize());
+        params.setFlowThreshold(additionalSettingsPanel.getFlowThreshold());
+        params.setCellprobThreshold(additionalSettingsPanel.getCellprobThreshold());
+        params.setPercentileLow(additionalSettingsPanel.getPercentileLow());
+        params.setPercentileHigh(additionalSettingsPanel.getPercentileHigh());
+        params.setTileNorm(additionalSettingsPanel.getTileNorm());
+        params.setFormat(additionalSettingsPanel.isLabelMask() ? "mask" : "binary");
+        return params;
     }
 
     private void setStatusText(String message, Color color) {
@@ -616,26 +749,6 @@ public class SegmentationPanel extends JPanel {
         return values;
     }
 
-    private String buildEndpoint(String baseUrl, String path) {
-        if (baseUrl == null) return path;
-        String trimmed = baseUrl.trim();
-        if (trimmed.endsWith("/")) {
-            trimmed = trimmed.substring(0, trimmed.length() - 1);
-        }
-        if (path != null && !path.startsWith("/")) {
-            return trimmed + "/" + path;
-        }
-        return trimmed + path;
-    }
-
-    private String encodeUrlParam(String value) {
-        try {
-            return URLEncoder.encode(value == null ? "" : value, "UTF-8");
-        } catch (Exception e) {
-            return value;
-        }
-    }
-
     private String toBackendModelType(String displayName) {
         if (displayName == null) return "";
         if ("Cellpose SAM".equals(displayName)) return "CellposeSAM";
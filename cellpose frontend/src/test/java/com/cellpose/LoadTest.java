@@ -0,0 +1,169 @@
+package com.cellpose;
+
+import com.cellpose.backend.BackendClient;
+import com.cellpose.backend.BackendException;
+import com.cellpose.backend.RawImageBody;
+import com.cellpose.backend.SegmentationParams;
+import com.cellpose.backend.StubBackend;
+import com.cellpose.batch.BatchConfig;
+import com.cellpose.diagnostics.LatencyHistogram;
+import com.cellpose.diagnostics.PipelineMetrics;
+import com.cellpose.diagnostics.PipelineMetrics.StageSummary;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fires concurrent segmentation requests through {@link BackendClient} and
+ * reports throughput, latency percentiles, errors and the per-stage
+ * {@link PipelineMetrics}. Without {@code url} it starts {@code stubs}
+ * in-process {@link StubBackend}s and passes them every other option, so
+ * client scaling, retries and backpressure can be tried without a GPU:
+ *
+ * <pre>
+ * java -cp &lt;test classpath&gt; com.cellpose.LoadTest requests=500 concurrency=16 stubs=2 slots=2 latency=100 busy_rate=0.05
+ * java -cp &lt;test classpath&gt; com.cellpose.LoadTest url=http://localhost:8000 requests=50 concurrency=4
+ * </pre>
+ */
+public class LoadTest {
+    public static final String USAGE = "[url=<backend list>] [stubs=1] [requests=200] [concurrency=8] [warmup=5]\n"
+            + "  [size=512] [bits=8] [format=binary] [max_per_route=8] [model_type=CellposeSAM] [model_name=cpsam]\n"
+            + "  plus StubBackend options when no url is given: " + StubBackend.USAGE.replace("[port=8000] ", "");
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && (args[0].equals("help") || args[0].equals("--help"))) {
+            System.out.println("Usage: LoadTest " + USAGE);
+            return;
+        }
+        String options = BatchConfig.optionsFromArgs(args);
+        int requests = Integer.parseInt(Macro.getValue(options, "requests", "200"));
+        int concurrency = Math.max(1, Integer.parseInt(Macro.getValue(options, "concurrency", "8")));
+        int warmup = Integer.parseInt(Macro.getValue(options, "warmup", "5"));
+        int size = Integer.parseInt(Macro.getValue(options, "size", "512"));
+        int bits = Integer.parseInt(Macro.getValue(options, "bits", "8"));
+        int maxPerRoute = Integer.parseInt(Macro.getValue(options, "max_per_route",
+                String.valueOf(BackendClient.DEFAULT_MAX_PER_ROUTE)));
+
+        SegmentationParams params = new SegmentationParams();
+        params.setModelType(Macro.getValue(options, "model_type", params.getModelType()));
+        params.setModelName(Macro.getValue(options, "model_name", "cpsam"));
+        params.setFormat(Macro.getValue(options, "format", params.getFormat()));
+
+        List<StubBackend> stubs = new ArrayList<>();
+        String url = Macro.getValue(options, "url", null);
+        if (url == null) {
+            int count = Math.max(1, Integer.parseInt(Macro.getValue(options, "stubs", "1")));
+            List<String> urls = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                StubBackend stub = StubBackend.fromOptions("port=0 " + options);
+                urls.add(stub.start());
+                stubs.add(stub);
+            }
+            url = String.join(",", urls);
+        }
+        ImagePlus image = syntheticImage(size, bits);
+
+        System.out.println(String.format(Locale.ROOT, "Load test: %d requests, concurrency %d, %dx%d %d-bit planes, %s results, %s",
+                requests, concurrency, size, size, bits, params.getFormat(), url));
+        try (BackendClient client = new BackendClient(BackendClient.DEFAULT_CONNECT_TIMEOUT_MS,
+                BackendClient.DEFAULT_READ_TIMEOUT_MS, BackendClient.DEFAULT_SEGMENT_TIMEOUT_MS,
+                maxPerRoute, BackendClient.DEFAULT_MAX_RETRIES)) {
+            // Warmup failures (e.g. injected busy replies) are reported but kept out of the statistics
+            Map<String, Integer> warmupErrors = new TreeMap<>();
+            for (int i = 0; i < warmup; i++) {
+                try {
+                    client.segment(url, params, RawImageBody.of(image, 1, 1));
+                } catch (Exception e) {
+                    warmupErrors.merge(errorKey(e), 1, Integer::sum);
+                }
+            }
+            if (!warmupErrors.isEmpty()) {
+                System.out.println("Warmup failed: " + warmupErrors);
+            }
+            PipelineMetrics.reset();
+
+            String target = url;
+            LatencyHistogram latency = new LatencyHistogram();
+            AtomicLong cells = new AtomicLong();
+            AtomicInteger succeeded = new AtomicInteger();
+            Map<String, AtomicInteger> errors = new TreeMap<>();
+            AtomicInteger threadCount = new AtomicInteger();
+            ExecutorService pool = Executors.newFixedThreadPool(concurrency, r -> {
+                Thread t = new Thread(r, "cellpose-load-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                pool.execute(() -> {
+                    long sent = System.nanoTime();
+                    try {
+                        int n = client.segment(target, params, RawImageBody.of(image, 1, 1)).getStore().size();
+                        latency.record((System.nanoTime() - sent) / 1000);
+                        cells.addAndGet(n);
+                        succeeded.incrementAndGet();
+                    } catch (Exception e) {
+                        synchronized (errors) {
+                            errors.computeIfAbsent(errorKey(e), k -> new AtomicInteger()).incrementAndGet();
+                        }
+                    }
+                });
+            }
+            pool.shutdown();
+            pool.awaitTermination(1, TimeUnit.DAYS);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println(String.format(Locale.ROOT, "%nElapsed %.2f s: %.1f requests/s, %.0f cells/s",
+                    seconds, succeeded.get() / seconds, cells.get() / seconds));
+            System.out.println(String.format(Locale.ROOT, "Latency (ms): p50 %.1f, p95 %.1f, p99 %.1f, max %.1f, mean %.1f",
+                    latency.getPercentileMicros(0.50) / 1000.0, latency.getPercentileMicros(0.95) / 1000.0,
+                    latency.getPercentileMicros(0.99) / 1000.0, latency.getMaxMicros() / 1000.0,
+                    latency.getMeanMicros() / 1000.0));
+            System.out.println(succeeded.get() + " succeeded" + (errors.isEmpty() ? "" : ", failed: " + errors));
+
+            System.out.println(String.format(Locale.ROOT, "%n%-18s %8s %9s %9s %9s %9s", "Stage", "n", "p50", "p95", "p99", "max"));
+            for (StageSummary s : PipelineMetrics.snapshot()) {
+                System.out.println(String.format(Locale.ROOT, "%-18s %8d %9.1f %9.1f %9.1f %9.1f",
+                        s.stage, s.count, s.p50, s.p95, s.p99, s.max));
+            }
+        } finally {
+            if (!stubs.isEmpty()) System.out.println();
+            for (StubBackend stub : stubs) {
+                System.out.println(stub.summary());
+                stub.close();
+            }
+        }
+    }
+
+    /** How a failed request is counted: by HTTP status, or by exception type. */
+    private static String errorKey(Exception e) {
+        return e instanceof BackendException
+                ? "HTTP " + ((BackendException) e).getStatusCode()
+                : e.getClass().getSimpleName();
+    }
+
+    /** A noisy plane, so uploads are not unrealistically compressible anywhere along the way. */
+    private static ImagePlus syntheticImage(int size, int bits) {
+        Random random = new Random(1);
+        ImageProcessor ip = bits == 16 ? new ShortProcessor(size, size) : new ByteProcessor(size, size);
+        int range = bits == 16 ? 65536 : 256;
+        for (int i = 0; i < size * size; i++) {
+            ip.set(i, random.nextInt(range));
+        }
+        return new ImagePlus("load-test", ip);
+    }
+}
@@ -0,0 +1,187 @@
+package com.cellpose.analysis;
+
+import com.cellpose.model.CellStore;
+import com.cellpose.model.LabelMask;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Traces label masks with ContourTracer, fills the outlines back in with
+ * LabelRasterizer and checks that every pixel comes back with its label:
+ * squares, an L-shape, lines one pixel wide, single pixels and random blobs.
+ * Needs no backend: run main() directly.
+ */
+public class LabelRoundTripTest {
+
+    public static void main(String[] args) {
+        System.out.println("=== Label Mask Round-Trip Test ===\n");
+
+        System.out.println("1. Hand-drawn shapes...");
+        roundTrip("10x10 square", mask(20, 20, square(5, 5, 10, 1)));
+        roundTrip("L-shape", mask(20, 20, lShape(1)));
+        roundTrip("horizontal line", mask(20, 20, line(2, 3, 12, 3, 1)));
+        roundTrip("vertical line", mask(20, 20, line(4, 1, 4, 15, 1)));
+        roundTrip("diagonal line", mask(20, 20, line(1, 1, 10, 10, 1)));
+        roundTrip("single pixel", mask(20, 20, square(7, 9, 1, 1)));
+        roundTrip("pixel on the border", mask(20, 20, square(19, 19, 1, 1)));
+        roundTrip("touching labels", mask(20, 20, square(2, 2, 6, 1), square(8, 2, 6, 2), line(2, 8, 13, 8, 3)));
+        System.out.println("   ✓ Every shape filled back to its mask");
+
+        System.out.println("\n2. Random blobs...");
+        Random random = new Random(7);
+        for (int run = 0; run < 200; run++) {
+            roundTrip("blob " + run, blob(random, 48));
+        }
+        System.out.println("   ✓ 200 blobs filled back to their masks");
+
+        System.out.println("\n3. Labels split into pieces...");
+        // Like cellpose's outlines_list, only the piece with the longest outline is kept
+        roundTrip("two equal pieces", mask(20, 20, square(2, 2, 3, 1), square(10, 10, 3, 1)),
+                mask(20, 20, square(2, 2, 3, 1)));
+        roundTrip("larger second piece", mask(20, 20, square(2, 2, 3, 1), square(10, 10, 5, 1), square(8, 2, 4, 2)),
+                mask(20, 20, square(10, 10, 5, 1), square(8, 2, 4, 2)));
+        System.out.println("   ✓ Each split label traced from its largest piece");
+
+        System.out.println("\n=== ✓ All tests passed! ===");
+    }
+
+    private static void roundTrip(String name, int[][] labels) {
+        roundTrip(name, labels, labels);
+    }
+
+    /** Traces {@code labels}, fills the outlines and compares the result with {@code expected}. */
+    private static void roundTrip(String name, int[][] labels, int[][] expected) {
+        LabelMask mask = toMask(labels);
+        LabelMask want = toMask(expected);
+        int width = mask.getWidth(), height = mask.getHeight();
+        CellStore cells = ContourTracer.trace(mask);
+        LabelMask filled = LabelRasterizer.rasterize(cells, width, height);
+        for (int i = 0; i < width * height; i++) {
+            check(filled.getLabel(i) == want.getLabel(i), name + ": pixel (" + i % width + ", " + i / width + ") is "
+                    + filled.getLabel(i) + ", expected " + want.getLabel(i));
+        }
+    }
+
+    private static LabelMask toMask(int[][] labels) {
+        int height = labels.length, width = labels[0].length;
+        short[] pixels = new short[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = (short) labels[y][x];
+            }
+        }
+        return new LabelMask(width, height, pixels);
+    }
+
+    /** Draws the shapes (each an int[][] of x, y, label triples) into a blank mask. */
+    private static int[][] mask(int width, int height, int[][]... shapes) {
+        int[][] labels = new int[height][width];
+        for (int[][] shape : shapes) {
+            for (int[] p : shape) {
+                labels[p[1]][p[0]] = p[2];
+            }
+        }
+        return labels;
+    }
+
+    private static int[][] square(int x0, int y0, int size, int label) {
+        int[][] points = new int[size * size][];
+        for (int i = 0; i < size * size; i++) {
+            points[i] = new int[]{x0 + i % size, y0 + i / size, label};
+        }
+        return points;
+    }
+
+    /** A 51-pixel L: a 3x12 upright and a 5x3 foot. */
+    private static int[][] lShape(int label) {
+        int[][] points = new int[51][];
+        int k = 0;
+        for (int y = 2; y < 14; y++) {
+            for (int x = 2; x < 5; x++) {
+                points[k++] = new int[]{x, y, label};
+            }
+        }
+        for (int y = 11; y < 14; y++) {
+            for (int x = 5; x < 10; x++) {
+                points[k++] = new int[]{x, y, label};
+            }
+        }
+        return points;
+    }
+
+    /** Horizontal, vertical or 45-degree line, inclusive of both ends. */
+    private static int[][] line(int x0, int y0, int x1, int y1, int label) {
+        int steps = Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0));
+        int[][] points = new int[steps + 1][];
+        for (int i = 0; i <= steps; i++) {
+            points[i] = new int[]{x0 + Integer.signum(x1 - x0) * i, y0 + Integer.signum(y1 - y0) * i, label};
+        }
+        return points;
+    }
+
+    /**
+     * A random star-shaped blob: pixels within a radius that varies with the
+     * angle, so outlines have concave stretches, spurs and diagonal steps.
+     */
+    private static int[][] blob(Random random, int size) {
+        int[][] labels = new int[size][size];
+        double c = size / 2.0;
+        double[] radius = new double[8];
+        for (int k = 0; k < radius.length; k++) {
+            radius[k] = 2 + random.nextDouble() * (size / 2.0 - 3);
+        }
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                double angle = Math.atan2(y - c, x - c) + Math.PI;
+                double pos = angle / (2 * Math.PI) * radius.length;
+                int k = (int) pos % radius.length;
+                double t = pos - Math.floor(pos);
+                double r = radius[k] * (1 - t) + radius[(k + 1) % radius.length] * t;
+                if (Math.hypot(x - c, y - c) <= r) labels[y][x] = 1;
+            }
+        }
+        fillHoles(labels);
+        return labels;
+    }
+
+    /**
+     * Fills background not 4-connected to the border. An outline cannot
+     * describe holes, including one-pixel notches closed off diagonally.
+     */
+    private static void fillHoles(int[][] labels) {
+        int height = labels.length, width = labels[0].length;
+        boolean[][] outside = new boolean[height][width];
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if ((x == 0 || y == 0 || x == width - 1 || y == height - 1) && labels[y][x] == 0) {
+                    outside[y][x] = true;
+                    queue.add(new int[]{x, y});
+                }
+            }
+        }
+        int[][] steps = {{1, 0}, {-1, 0}, {0, 1}, {0, -1}};
+        while (!queue.isEmpty()) {
+            int[] p = queue.poll();
+            for (int[] d : steps) {
+                int x = p[0] + d[0], y = p[1] + d[1];
+                if (x >= 0 && y >= 0 && x < width && y < height && !outside[y][x] && labels[y][x] == 0) {
+                    outside[y][x] = true;
+                    queue.add(new int[]{x, y});
+                }
+            }
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (labels[y][x] == 0 && !outside[y][x]) labels[y][x] = 1;
+            }
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.cellpose.backend;
+
+import com.cellpose.model.Cell;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks RoiResponseDecoder against the original String-splitting parser on a
+ * synthetic response, checks the binary format decodes to the same cells, and
+ * reports decode throughput in cells/sec.
+ * Needs no backend: run main() directly.
+ */
+public class RoiResponseDecoderTest {
+
+    public static void main(String[] args) {
+        System.out.println("=== ROI Response Decoder Test ===\n");
+
+        int cellCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+
+        // Test 1: Correctness on a small, hand-written response
+        System.out.println("1. Decoding hand-written response...");
+        String small = "10,10,20,10,20,20,10,20\n\n1.5,2.5,3.5,4.5\r\n-4,2e1,6,8\n";
+        List<Cell> smallCells = RoiResponseDecoder.decode(small.getBytes(StandardCharsets.US_ASCII));
+        check(smallCells.size() == 3, "expected 3 cells, got " + smallCells.size());
+        check(smallCells.get(0).getId() == 1 && "Cell_1".equals(smallCells.get(0).getRoi().getName()), "ids start at 1");
+        check(close(smallCells.get(0).getX(), 15) && close(smallCells.get(0).getY(), 15), "square centroid");
+        check(close(smallCells.get(0).getRadius(), Math.sqrt(50)), "square radius");
+        check(close(smallCells.get(1).getX(), 2.5) && close(smallCells.get(1).getY(), 3.5), "decimal centroid");
+        check(close(smallCells.get(2).getX(), 1) && close(smallCells.get(2).getY(), 14), "signed/exponent centroid");
+        System.out.println("   ✓ Hand-written response decoded correctly");
+
+        // Test 2: Agreement with the String-based reference on a large response
+        System.out.println("\n2. Comparing against reference parser on " + cellCount + " cells...");
+        byte[] response = syntheticResponse(cellCount, 64, 42L);
+        List<Cell> cells = RoiResponseDecoder.decode(response);
+        String[] lines = new String(response, StandardCharsets.US_ASCII).split("\n");
+        check(cells.size() == lines.length, "expected " + lines.length + " cells, got " + cells.size());
+        for (int i = 0; i < lines.length; i += Math.max(1, lines.length / 500)) {
+            double[] ref = referenceCentroidAndRadius(lines[i]);
+            Cell c = cells.get(i);
+            check(c.getId() == i + 1, "cell order preserved at " + i);
+            check(close(c.getX(), ref[0]) && close(c.getY(), ref[1]) && close(c.getRadius(), ref[2]),
+                    "cell " + (i + 1) + " matches reference");
+        }
+        System.out.println("   ✓ All sampled cells match the reference parser");
+
+        // Test 3: Throughput
+        System.out.println("\n3. Measuring throughput...");
+        for (int i = 0; i < 3; i++) {
+            RoiResponseDecoder.decode(response);
+        }
+        int runs = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            RoiResponseDecoder.decode(response);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / runs;
+        System.out.printf("   %d cells, %.1f MB in %.1f ms -> %.0f cells/sec%n",
+                cellCount, response.length / 1e6, seconds * 1000, cellCount / seconds);
+
+        // Test 4: Binary format decodes to the same cells, faster and smaller
+        System.out.println("\n4. Comparing binary format against text...");
+        byte[] binary = toBinary(lines);
+        List<Cell> binaryCells = RoiResponseDecoder.decode(binary);
+        check(binaryCells.size() == cells.size(), "binary cell count matches text");
+        for (int i = 0; i < cells.size(); i += Math.max(1, cells.size() / 500)) {
+            Cell a = cells.get(i), b = binaryCells.get(i);
+            check(close(a.getX(), b.getX()) && close(a.getY(), b.getY()) && close(a.getRadius(), b.getRadius()),
+                    "binary cell " + (i + 1) + " matches text");
+        }
+        for (int i = 0; i < 3; i++) {
+            RoiResponseDecoder.decode(binary);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < runs; i++) {
+            RoiResponseDecoder.decode(binary);
+        }
+        double binarySeconds = (System.nanoTime() - start) / 1e9 / runs;
+        System.out.printf("   %.1f MB (%.1fx smaller) in %.1f ms -> %.0f cells/sec%n",
+                binary.length / 1e6, (double) response.length / binary.length,
+                binarySeconds * 1000, cellCount / binarySeconds);
+
+        System.out.println("\n=== ✓ All tests passed! ===");
+    }
+
+    static byte[] syntheticResponse(int cells, int verticesPerCell, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(cells * verticesPerCell * 10);
+        for (int c = 0; c < cells; c++) {
+            int cx = 50 + random.nextInt(4000);
+            int cy = 50 + random.nextInt(4000);
+            int r = 5 + random.nextInt(20);
+            for (int v = 0; v < verticesPerCell; v++) {
+                double a = 2 * Math.PI * v / verticesPerCell;
+                if (v > 0) sb.append(',');
+                sb.append((int) Math.round(cx + r * Math.cos(a))).append(',').append((int) Math.round(cy + r * Math.sin(a)));
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /** Mirrors worker.encode_outlines_binary for integer outlines. */
+    static byte[] toBinary(String[] lines) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('C'); out.write('P'); out.write('R'); out.write('B');
+        out.write(1); out.write(0); out.write(0); out.write(0);
+        int n = lines.length;
+        out.write(n); out.write(n >>> 8); out.write(n >>> 16); out.write(n >>> 24);
+        for (String line : lines) {
+            String[] coords = line.split(",");
+            writeVarint(out, coords.length / 2);
+            int px = 0, py = 0;
+            for (int i = 0; i < coords.length; i += 2) {
+                int x = Integer.parseInt(coords[i]);
+                int y = Integer.parseInt(coords[i + 1]);
+                writeVarint(out, zigzag(x - px));
+                writeVarint(out, zigzag(y - py));
+                px = x;
+                py = y;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int v) {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static double[] referenceCentroidAndRadius(String line) {
+        String[] coords = line.split(",");
+        int n = coords.length / 2;
+        double sumX = 0, sumY = 0;
+        for (int i = 0; i < coords.length; i += 2) {
+            sumX += Float.parseFloat(coords[i]);
+            sumY += Float.parseFloat(coords[i + 1]);
+        }
+        double cx = sumX / n, cy = sumY / n, sumDist = 0;
+        for (int i = 0; i < coords.length; i += 2) {
+            double dx = Double.parseDouble(coords[i]) - cx;
+            double dy = Double.parseDouble(coords[i + 1]) - cy;
+            sumDist += Math.sqrt(dx * dx + dy * dy);
+        }
+        return new double[]{cx, cy, sumDist / n};
+    }
+
+    private static boolean close(double a, double b) {
+        return Math.abs(a - b) < 1e-4;
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+}
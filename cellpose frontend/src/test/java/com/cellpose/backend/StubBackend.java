@@ -0,0 +1,343 @@
+package com.cellpose.backend;
+
+import com.cellpose.batch.BatchConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import ij.Macro;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Python backend that answers {@code /getModels} and
+ * {@code /segment} without a model, a GPU or a Python environment, for
+ * exercising the client's pooling, retries and backpressure handling.
+ *
+ * Like the real backend, {@code slots} requests are "inferred" at once and
+ * up to {@code queue_depth} more wait for a slot; anything beyond that gets
+ * 429 with a Retry-After hint. Inference is a sleep of {@code latency} ms
+ * give or take {@code jitter}. A share of the requests can be failed with
+ * 500 ({@code failure_rate}) or turned away as busy ({@code busy_rate})
+ * regardless of load. Results are either replayed from recorded response
+ * bodies ({@code replay}, a file or a folder of files, in any of the
+ * backend's formats) or generated: {@code cells} round outlines of
+ * {@code vertices} points each, scattered over the uploaded plane, in the
+ * text or binary format the request asks for.
+ *
+ * <pre>
+ * java -cp &lt;test classpath&gt; com.cellpose.backend.StubBackend port=8000 latency=500 slots=2 failure_rate=0.02
+ * </pre>
+ */
+public class StubBackend implements AutoCloseable {
+    public static final String USAGE = "[port=8000] [latency=200] [jitter=50] [slots=1] [queue_depth=8] [retry_after=1]\n"
+            + "  [failure_rate=0] [busy_rate=0] [cells=200] [vertices=32] [replay=<file or folder>]";
+
+    private static final String MODELS_JSON = "{\"Cellpose3.1\": [\"cyto3\", \"nuclei\"], \"CellposeSAM\": [\"cpsam\"]}";
+    private static final byte[] RAW_IMAGE_MAGIC = {'C', 'P', 'I', 'X'};
+    // Plane size assumed when the upload is not a raw image body
+    private static final int DEFAULT_SIZE = 512;
+    private static final double MIN_RADIUS = 5;
+    private static final double MAX_RADIUS = 14;
+
+    private int port = 8000;
+    private int latencyMs = 200;
+    private int jitterMs = 50;
+    private int slots = 1;
+    private int queueDepth = 8;
+    private int retryAfterSeconds = 1;
+    private double failureRate;
+    private double busyRate;
+    private int cells = 200;
+    private int vertices = 32;
+    private final List<byte[]> replay = new ArrayList<>();
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Semaphore inference;
+    private final AtomicInteger admitted = new AtomicInteger();
+    private final AtomicInteger replayNext = new AtomicInteger();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong served = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Reads the {@code key=value} options listed in {@link #USAGE}; port 0 picks a free port. */
+    public static StubBackend fromOptions(String options) throws IOException {
+        if (options == null) options = "";
+        StubBackend stub = new StubBackend();
+        stub.port = Integer.parseInt(Macro.getValue(options, "port", String.valueOf(stub.port)));
+        stub.latencyMs = Integer.parseInt(Macro.getValue(options, "latency", String.valueOf(stub.latencyMs)));
+        stub.jitterMs = Integer.parseInt(Macro.getValue(options, "jitter", String.valueOf(stub.jitterMs)));
+        stub.slots = Math.max(1, Integer.parseInt(Macro.getValue(options, "slots", String.valueOf(stub.slots))));
+        stub.queueDepth = Math.max(0, Integer.parseInt(Macro.getValue(options, "queue_depth", String.valueOf(stub.queueDepth))));
+        stub.retryAfterSeconds = Integer.parseInt(Macro.getValue(options, "retry_after", String.valueOf(stub.retryAfterSeconds)));
+        stub.failureRate = Double.parseDouble(Macro.getValue(options, "failure_rate", "0"));
+        stub.busyRate = Double.parseDouble(Macro.getValue(options, "busy_rate", "0"));
+        stub.cells = Integer.parseInt(Macro.getValue(options, "cells", String.valueOf(stub.cells)));
+        stub.vertices = Math.max(3, Integer.parseInt(Macro.getValue(options, "vertices", String.valueOf(stub.vertices))));
+        String replayPath = Macro.getValue(options, "replay", null);
+        if (replayPath != null) {
+            File path = new File(replayPath);
+            File[] files = path.isDirectory() ? path.listFiles(File::isFile) : new File[]{path};
+            if (files == null || files.length == 0) {
+                throw new IOException("No recorded responses in " + path);
+            }
+            Arrays.sort(files);
+            for (File file : files) {
+                stub.replay.add(Files.readAllBytes(file.toPath()));
+            }
+        }
+        return stub;
+    }
+
+    /** Starts serving on the configured port and returns the base URL. */
+    public String start() throws IOException {
+        inference = new Semaphore(slots, true);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 256);
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "cellpose-stub-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        server.createContext("/getModels", exchange -> {
+            drain(exchange.getRequestBody());
+            send(exchange, 200, "application/json", MODELS_JSON.getBytes(StandardCharsets.UTF_8));
+        });
+        server.createContext("/segment", this::segment);
+        server.start();
+        return getUrl();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    /** Requests received, answered with a result, turned away with 429, and failed with 500. */
+    public String summary() {
+        return String.format(Locale.ROOT, "%s: %d received, %d served, %d busy, %d failed",
+                getUrl(), received.get(), served.get(), rejected.get(), failed.get());
+    }
+
+    @Override
+    public void close() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+    }
+
+    private void segment(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        received.incrementAndGet();
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            drain(exchange.getRequestBody());
+            send(exchange, 405, "text/plain", "Method not allowed".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        byte[] upload = readAll(exchange.getRequestBody());
+        String format = queryValue(exchange.getRequestURI(), "format", "text");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        if (admitted.incrementAndGet() > slots + queueDepth || random.nextDouble() < busyRate) {
+            admitted.decrementAndGet();
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+            send(exchange, 429, "text/plain", "Backend is busy: stub queue full.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        long queued, inferred;
+        try {
+            long waitStart = System.nanoTime();
+            inference.acquireUninterruptibly();
+            queued = System.nanoTime() - waitStart;
+            try {
+                int sleep = Math.max(0, latencyMs + (jitterMs > 0 ? random.nextInt(-jitterMs, jitterMs + 1) : 0));
+                Thread.sleep(sleep);
+                inferred = sleep * 1_000_000L;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                inference.release();
+            }
+        } finally {
+            admitted.decrementAndGet();
+        }
+
+        if (random.nextDouble() < failureRate) {
+            failed.incrementAndGet();
+            send(exchange, 500, "text/plain", "Server Error: synthetic failure.".getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+
+        long encodeStart = System.nanoTime();
+        byte[] payload;
+        if (!replay.isEmpty()) {
+            payload = replay.get(Math.floorMod(replayNext.getAndIncrement(), replay.size()));
+        } else if (format.equals("text") || format.equals("binary")) {
+            int[] size = planeSize(upload);
+            payload = generate(format.equals("binary"), size[0], size[1], random);
+        } else {
+            send(exchange, 400, "text/plain",
+                    ("The stub generates text and binary results only; replay a recorded " + format + " response instead.")
+                            .getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        long encoded = System.nanoTime() - encodeStart;
+
+        exchange.getResponseHeaders().set("Server-Timing", String.format(Locale.ROOT,
+                "queue;dur=%.1f, inference;dur=%.1f, encode;dur=%.1f, total;dur=%.1f",
+                queued / 1e6, inferred / 1e6, encoded / 1e6, (System.nanoTime() - start) / 1e6));
+        served.incrementAndGet();
+        send(exchange, 200, mediaType(payload), payload);
+    }
+
+    /** Round outlines over a {@code width} by {@code height} plane, in the text or binary response format. */
+    private byte[] generate(boolean binary, int width, int height, Random random) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(binary ? 12 + cells * vertices * 2 : cells * vertices * 8);
+        if (binary) {
+            out.write('C');
+            out.write('P');
+            out.write('R');
+            out.write('B');
+            out.write(1);
+            out.write(0);
+            out.write(0);
+            out.write(0);
+            for (int shift = 0; shift < 32; shift += 8) {
+                out.write(cells >>> shift & 0xFF);
+            }
+        }
+        StringBuilder line = new StringBuilder();
+        for (int c = 0; c < cells; c++) {
+            double radius = MIN_RADIUS + random.nextDouble() * (MAX_RADIUS - MIN_RADIUS);
+            double cx = radius + random.nextDouble() * Math.max(1, width - 2 * radius);
+            double cy = radius + random.nextDouble() * Math.max(1, height - 2 * radius);
+            int px = 0, py = 0;
+            if (binary) writeVarint(out, vertices);
+            line.setLength(0);
+            for (int i = 0; i < vertices; i++) {
+                double angle = 2 * Math.PI * i / vertices;
+                double r = radius * (0.85 + 0.3 * random.nextDouble());
+                int x = (int) Math.round(cx + r * Math.cos(angle));
+                int y = (int) Math.round(cy + r * Math.sin(angle));
+                if (binary) {
+                    writeVarint(out, zigzag(x - px));
+                    writeVarint(out, zigzag(y - py));
+                    px = x;
+                    py = y;
+                } else {
+                    if (i > 0) line.append(',');
+                    line.append(x).append(',').append(y);
+                }
+            }
+            if (!binary) {
+                byte[] bytes = line.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+                out.write(bytes, 0, bytes.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Width and height from the header of a raw image part in the multipart
+     * upload (see {@link RawImageBody}); a default plane for other uploads.
+     */
+    private static int[] planeSize(byte[] upload) {
+        outer:
+        for (int i = 0; i + 16 <= upload.length; i++) {
+            for (int j = 0; j < RAW_IMAGE_MAGIC.length; j++) {
+                if (upload[i + j] != RAW_IMAGE_MAGIC[j]) continue outer;
+            }
+            return new int[]{readInt(upload, i + 8), readInt(upload, i + 12)};
+        }
+        return new int[]{DEFAULT_SIZE, DEFAULT_SIZE};
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8
+                | (data[offset + 2] & 0xFF) << 16 | (data[offset + 3] & 0xFF) << 24;
+    }
+
+    private static String mediaType(byte[] payload) {
+        if (payload.length >= 4 && payload[0] == 'C' && payload[1] == 'P' && payload[2] == 'R' && payload[3] == 'B') {
+            return "application/x-cellpose-rois";
+        }
+        if (payload.length >= 4 && payload[0] == 'C' && payload[1] == 'P' && payload[2] == 'L' && payload[3] == 'M') {
+            return "application/x-cellpose-labels";
+        }
+        return "text/plain";
+    }
+
+    private static String queryValue(URI uri, String key, String defaultValue) {
+        String query = uri.getRawQuery();
+        if (query == null) return defaultValue;
+        for (String pair : query.split("&")) {
+            if (pair.startsWith(key + "=")) return pair.substring(key.length() + 1);
+        }
+        return defaultValue;
+    }
+
+    private static int zigzag(int v) {
+        return v << 1 ^ v >> 31;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        // -1: no body; 0 would mean chunked
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        while (in.read(buffer) != -1) {
+            // discard
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        StubBackend stub = fromOptions(BatchConfig.optionsFromArgs(args));
+        System.out.println("Stub backend at " + stub.start());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(stub.summary())));
+        Thread.currentThread().join();
+    }
+}